@@ -12,9 +12,12 @@ import net.handler.CommandHandler;
 import net.handler.FileHandler;
 import net.handler.Handler;
 import net.handler.MessageHandler;
+import net.handler.MuxHandler;
 import net.log.NetLog;
 import net.util.LinkTable;
 import net.util.NetTool;
+import net.util.TaskId;
+import net.util.TimingWheel;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -36,7 +39,8 @@ public class Link extends Thread{
     private final ConcurrentHashMap<SelectionKey, Handler> relevancyHashMap;
     private final ConcurrentHashMap<SelectionKey, Queue<DataPackage>> sendHashMap;
     private final ConcurrentLinkedQueue<DataPackage> receiveQueue;
-    private final ConcurrentHashMap<String, DataPackage> receiveHashMap;
+    private final ConcurrentLinkedQueue<CommandPackage> commandQueue;
+    private final ConcurrentHashMap<TaskId, DataPackage> receiveHashMap;
     private final Set<SelectionKey> cancelSet;
     private final Object sendLock = new Object(), receiveLock = new Object();
     private InetSocketAddress serverAddress;
@@ -54,6 +58,7 @@ public class Link extends Thread{
         relevancyHashMap = new ConcurrentHashMap<>();
         sendHashMap = new ConcurrentHashMap<>();
         receiveQueue = new ConcurrentLinkedQueue<>();
+        commandQueue = new ConcurrentLinkedQueue<>();
         receiveHashMap = new ConcurrentHashMap<>();
         cancelSet = ConcurrentHashMap.newKeySet();
 
@@ -104,23 +109,27 @@ public class Link extends Thread{
             Handler handler = relevancyHashMap.get(key);
             if (key.isReadable()) {
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
-                linkTable.updateLastActivityTime(key);
-                if (handler instanceof CommandHandler) {
+                if (handler instanceof CommandHandler || handler instanceof MuxHandler) {
                     heartBeat.upDateLastActivityTime();
                 }
                 workPool.submit(() -> {handler.receiveHandler(key);});
             } else if (key.isWritable()) {
                 Queue<DataPackage> sendQueue = sendHashMap.get(key);
                 if (sendQueue != null) {
-                    DataPackage dataPackage = sendQueue.poll();
-                    if (dataPackage != null) {
-                        if (sendingStateHashMap.get(key).compareAndSet(false, true)) {
+                    // 先设置发送状态再出队,其他线程入队与sendFinish重复注册 OP_WRITE 时不会丢弃数据包
+                    if (sendingStateHashMap.get(key).compareAndSet(false, true)) {
+                        DataPackage dataPackage = sendQueue.poll();
+                        if (dataPackage != null) {
                             key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-                            if (handler instanceof CommandHandler) {
+                            if (handler instanceof CommandHandler || handler instanceof MuxHandler) {
                                 heartBeat.upDateLastActivityTime();
                             }
                             workPool.submit(() -> {handler.sendHandle(key, dataPackage);});
+                        } else {
+                            sendingStateHashMap.get(key).set(false);
                         }
+                    } else {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
                     }
                     if (sendQueue.isEmpty()) {
                         sendHashMap.remove(key);
@@ -139,8 +148,12 @@ public class Link extends Thread{
         heartBeat.setHeartBeatInterval(heartBeatInterval);
     }
 
-    public synchronized void register(SocketChannel socketChannel, Handler handler) throws IOException {
+    /**
+     * 注册在事件循环线程中完成,返回的future在注册完成后以新的key完成
+     */
+    public synchronized CompletableFuture<SelectionKey> register(SocketChannel socketChannel, Handler handler) throws IOException {
         socketChannel.configureBlocking(false);
+        CompletableFuture<SelectionKey> future = new CompletableFuture<>();
         eventQueue.add(() -> {
             try {
                 SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
@@ -162,16 +175,46 @@ public class Link extends Thread{
                         linkTable.putFileKey(key);
                         NetLog.info("连接 [fileLink] 已建立");
                     }
+                    case MuxHandler muxHandler -> {
+                        linkTable.putCommandKey(key);
+                        serverAddress = (InetSocketAddress) socketChannel.getRemoteAddress();
+                        heartBeat.upDateLastActivityTime();
+                        heartBeat.start(key);
+                        NetLog.info("连接 [muxLink] 已建立");
+                    }
                     default -> throw new IllegalStateException("Unexpected value: " + handler);
                 }
+                future.complete(key);
+            } catch (IOException e) {
+                NetLog.error(e);
+                future.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        return future;
+    }
+    /**
+     * 注册文件连接的分段连接,不替换linkTable中的文件连接
+     */
+    public synchronized CompletableFuture<SelectionKey> registerStripe(SocketChannel socketChannel, FileHandler fileHandler) throws IOException {
+        socketChannel.configureBlocking(false);
+        CompletableFuture<SelectionKey> future = new CompletableFuture<>();
+        eventQueue.add(() -> {
+            try {
+                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+                sendingStateHashMap.put(key, new AtomicBoolean(false));
+                relevancyHashMap.put(key, fileHandler);
+                NetLog.info("分段连接 [fileLink] 已建立");
+                future.complete(key);
             } catch (IOException e) {
                 NetLog.error(e);
+                future.completeExceptionally(e);
             }
         });
         selector.wakeup();
+        return future;
     }
     public synchronized void cancel(SelectionKey key, boolean againLink) {
-        linkTable.removeLastActivityTime(key);
         sendHashMap.remove(key);
         if (sendingStateHashMap.remove(key) != null) {
             cancelSet.add(key);
@@ -181,12 +224,14 @@ public class Link extends Thread{
                     linkTable.removeCommandKey();
                     heartBeat.stop();
                     if (againLink) {
-                        if (againLink(commandHandler)) {
-                            for (int i = 0; linkTable.getCommandKey() == null && i < 100; i++) {
-                                NetTool.sleep();
-                            }
-                            putDataPackage(linkTable.getCommandKey(), new CommandPackage
-                                    (DataPackage.WAY_TOKEN_VERIFY, linkTable.getToken().getBytes()));
+                        CompletableFuture<SelectionKey> future = againLink(commandHandler);
+                        if (future != null) {
+                            byte[] token = linkTable.getToken();
+                            // Token验证须先于暂存的指令发出
+                            future.thenAccept(commandKey -> {
+                                putDataPackage(commandKey, new CommandPackage(DataPackage.WAY_TOKEN_VERIFY, token));
+                                flushCommandPackage();
+                            });
                         } else {
                             linkTable.removeToken();
                             addException(new AgainLinkTimeOutException());
@@ -201,31 +246,63 @@ public class Link extends Thread{
                     NetLog.info("连接 [MessageLink] 已断开");
                     linkTable.removeMessageKey();
                     if (againLink) {
-                        for (int i = 0; linkTable.getCommandKey() == null && linkTable.getToken() == null && i < 100; i++) {
-                            NetTool.sleep();
-                        }
-                        if (linkTable.getCommandKey() != null && linkTable.getToken() != null) {
-                            putDataPackage(linkTable.getCommandKey()
-                                    , new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_MESSAGE_ADDRESS));
+                        if (linkTable.getToken() != null) {
+                            linkTable.setMessageLinkState(LinkTable.LINK_2);
+                            putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_MESSAGE_ADDRESS));
                         }
                     } else {
                         NetLog.info("服务器主动关闭了连接 [MessageLink]");
                     }
                 }
+                case MuxHandler muxHandler -> {
+                    NetLog.info("连接 [MuxLink] 已断开");
+                    muxHandler.clear();
+                    linkTable.removeCommandKey();
+                    linkTable.unbindMultiplex();
+                    heartBeat.stop();
+                    if (againLink) {
+                        CompletableFuture<SelectionKey> future = againLink(muxHandler);
+                        if (future != null) {
+                            byte[] token = linkTable.getToken();
+                            // Token验证后服务器将会话转到新连接,其后的消息与文件随之恢复
+                            future.thenAccept(muxKey -> {
+                                putDataPackage(muxKey, new CommandPackage(DataPackage.WAY_TOKEN_VERIFY, token));
+                                muxHandler.bind(muxKey);
+                                flushCommandPackage();
+                            });
+                        } else {
+                            linkTable.removeToken();
+                            addException(new AgainLinkTimeOutException());
+                        }
+                    } else {
+                        NetLog.info("服务器主动关闭了连接 [MuxLink]");
+                        linkTable.removeToken();
+                        addException(new ServerCloseLinkException());
+                    }
+                }
+                case FileHandler fileHandler when fileHandler.removeStripeKey(key) -> {
+                    NetLog.info("分段连接 [FileLink] 已断开");
+                    for (FilePackage filePackage : fileHandler.takeInterrupted(key)) {
+                        netClient.putFilePackage(filePackage);
+                    }
+                }
                 case FileHandler fileHandler -> {
                     NetLog.info("连接 [FileLink] 已断开");
                     linkTable.removeFileKey();
+                    for (SelectionKey stripeKey : fileHandler.getStripeKeys()) {
+                        cancel(stripeKey, false);
+                    }
                     if (againLink) {
-                        for (int i = 0; linkTable.getCommandKey() == null && linkTable.getToken() == null && i < 100; i++) {
-                            NetTool.sleep();
-                        }
-                        if (linkTable.getCommandKey() != null && linkTable.getToken() != null) {
-                            putDataPackage(linkTable.getCommandKey(), new CommandPackage
-                                    (DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_FILE_ADDRESS));
+                        if (linkTable.getToken() != null) {
+                            linkTable.setFileLinkState(LinkTable.LINK_2);
+                            putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_FILE_ADDRESS));
                         }
                     } else {
                         NetLog.info("服务器主动关闭了连接 [FileLink]");
                     }
+                    for (FilePackage filePackage : fileHandler.takeInterrupted(key)) {
+                        netClient.putFilePackage(filePackage);
+                    }
                 }
                 default -> {
                     throw new IllegalStateException();
@@ -234,6 +311,12 @@ public class Link extends Thread{
             eventQueue.add(() -> {
                 key.cancel();
                 cancelSet.remove(key);
+                // 本端主动取消的连接(如随文件连接断开的分段连接)需关闭,服务器方能感知
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    NetLog.error(e);
+                }
             });
             selector.wakeup();
         }
@@ -276,9 +359,10 @@ public class Link extends Thread{
                 }
             }
         }
-        if (dataPackage.getAppendState() == DataPackage.APPEND_1) {
+        // 续传的文件其附加数据包已随首次发送发出
+        if (dataPackage.getAppendState() == DataPackage.APPEND_1 && dataPackage.getAppendDataPackage() != null) {
             DataPackage DP = dataPackage.getAppendDataPackage();
-            String taskId = dataPackage.getTaskId();
+            TaskId taskId = dataPackage.getTaskId();
             if (!taskId.equals(DP.getTaskId())) {
                 DP.setTaskId(taskId);
             }
@@ -291,6 +375,27 @@ public class Link extends Thread{
         }
     }
 
+    /**
+     * 控制连接未建立,或尚未获得Token时(登录指令除外)暂存指令,连接建立与获得Token后按顺序发出
+     */
+    public void putCommandPackage(CommandPackage commandPackage) {
+        commandQueue.add(commandPackage);
+        flushCommandPackage();
+    }
+    public void flushCommandPackage() {
+        synchronized (commandQueue) {
+            CommandPackage commandPackage;
+            while ((commandPackage = commandQueue.peek()) != null) {
+                SelectionKey commandKey = linkTable.getCommandKey();
+                if (commandKey == null || (commandPackage.getWay() != DataPackage.WAY_LOGIN && linkTable.getToken() == null)) {
+                    return;
+                }
+                commandQueue.poll();
+                putDataPackage(commandKey, commandPackage);
+            }
+        }
+    }
+
     public void receiveFinish(SelectionKey key) {
         if (!cancelSet.contains(key) && key.isValid()) {
             eventQueue.add(() -> {
@@ -360,7 +465,7 @@ public class Link extends Thread{
         }
     }
 
-    private boolean againLink(CommandHandler commandHandler) {
+    private CompletableFuture<SelectionKey> againLink(Handler handler) {
         for (int i = 1; i <= 5; i++) {
             try {
                 Thread.sleep(4000);
@@ -369,57 +474,56 @@ public class Link extends Thread{
             NetLog.info("第[$]次尝试重新连接服务器", i);
             try {
                 SocketChannel socketChannel = SocketChannel.open(serverAddress);
-                register(socketChannel, commandHandler);
+                CompletableFuture<SelectionKey> future = register(socketChannel, handler);
                 NetLog.info("重新连接服务器成功");
-                return true;
+                return future;
             } catch (IOException ignored) {
             }
         }
         NetLog.info("重新连接服务器失败");
-        return false;
+        return null;
     }
 
-    private class HeartBeat implements Runnable{
-        private long HEARTBEAT_INTERVAL = 30000;
-        private long lastActivityTime;
-        private boolean running;
-        private Thread heartBeatThread;
+    /**
+     * 在共用时间轮上定时检查,空闲超过间隔时发送心跳包
+     */
+    private class HeartBeat {
+        private volatile long HEARTBEAT_INTERVAL = 30000;
+        private volatile long lastActivityTime;
+        private TimingWheel.Timeout timeout;
         private SelectionKey key;
 
         public HeartBeat() {
             lastActivityTime = System.currentTimeMillis();
         }
 
-        @Override
-        public void run() {
-            while (running) {
-                try {
-                    Thread.sleep(HEARTBEAT_INTERVAL);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-                if (System.currentTimeMillis() - lastActivityTime > HEARTBEAT_INTERVAL) {
-                    sendHeartBeat(key);
+        private void check() {
+            long idleTime = System.currentTimeMillis() - lastActivityTime;
+            SelectionKey tempKey;
+            synchronized (this) {
+                if (timeout == null) {
+                    return;
                 }
+                tempKey = idleTime >= HEARTBEAT_INTERVAL ? key : null;
+                timeout = TimingWheel.shared().newTimeout(this::check, tempKey != null ? HEARTBEAT_INTERVAL : HEARTBEAT_INTERVAL - idleTime);
+            }
+            if (tempKey != null) {
+                sendHeartBeat(tempKey);
             }
         }
 
-        public void start(SelectionKey key) {
-            if (heartBeatThread == null || !heartBeatThread.isAlive()) {
-                this.key = key;
-                running = true;
-                heartBeatThread = new Thread(this);
-                heartBeatThread.setDaemon(true);
-                heartBeatThread.start();
+        public synchronized void start(SelectionKey key) {
+            this.key = key;
+            if (timeout == null) {
+                timeout = TimingWheel.shared().newTimeout(this::check, HEARTBEAT_INTERVAL);
             }
             NetLog.info("已开启心跳,间隔 [$] 秒", HEARTBEAT_INTERVAL / 1000);
         }
 
-        public void stop() {
-            running = false;
-            if (heartBeatThread != null) {
-                heartBeatThread.interrupt();
+        public synchronized void stop() {
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
                 NetLog.info("已关闭心跳");
             }
         }
@@ -435,8 +539,6 @@ public class Link extends Thread{
         private void sendHeartBeat(SelectionKey key) {
             if (key.channel().isOpen()) {
                 putDataPackage(key, new CommandPackage(DataPackage.WAY_HEART_BEAT));
-            } else {
-                linkTable.removeLastActivityTime(key);
             }
         }
     }
@@ -10,16 +10,18 @@ import net.exception.token.TokenMissingException;
 import net.handler.CommandHandler;
 import net.handler.FileHandler;
 import net.handler.MessageHandler;
+import net.handler.MuxHandler;
 import net.log.LogHandler;
 import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.TaskId;
+import net.util.TimingWheel;
 import net.util.LinkTable;
-import net.util.NetTool;
 import net.util.TransferSchedule;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
 public class NetClient {
@@ -28,6 +30,8 @@ public class NetClient {
     private final CommandHandler commandHandler;
     private final MessageHandler messageHandler;
     private final FileHandler fileHandler;
+    private final MuxHandler muxHandler;
+    private boolean multiplex;
 
     public NetClient() throws IOException {
         linkTable = new LinkTable();
@@ -38,6 +42,49 @@ public class NetClient {
         commandHandler.setMessageHandler(messageHandler);
         commandHandler.setFileHandler(fileHandler);
         commandHandler.setLinkTable(linkTable);
+        muxHandler = new MuxHandler(link);
+        muxHandler.setCommandHandler(commandHandler);
+        muxHandler.setFileHandler(fileHandler);
+        muxHandler.setLinkTable(linkTable);
+    }
+
+    /**
+     * 开启后openLink()连接服务器的多路复用端口,指令、消息与文件共用一条连接,登录后即可发送消息与文件
+     */
+    public void setMultiplex(boolean multiplex) {
+        this.multiplex = multiplex;
+    }
+    /**
+     * 多路复用连接上文件内容每个分块的字节数,默认64K减去帧头与taskId,使分块帧可使用缓冲池
+     * 调大时服务器的setMuxMaxFrameSize()需同时调大
+     */
+    public void setMuxFileChunkSize(int fileChunkSize) {
+        muxHandler.setFileChunkSize(fileChunkSize);
+    }
+    /**
+     * 文件连接上文件内容每个分块的字节数,默认1M,连接断开后从服务器已接收的分块处续传
+     */
+    public void setFileChunkSize(int fileChunkSize) {
+        fileHandler.setFileChunkSize(fileChunkSize);
+    }
+    /**
+     * 未接收完整的文件保留供续传的时间与数量上限,默认30分钟,10000个
+     */
+    public void setPartialFileLimit(long ttl, int maxCount) {
+        fileHandler.setPartialFileLimit(ttl, maxCount);
+    }
+    /**
+     * 建立文件连接时另开stripeCount-1条分段连接,大文件分为多个区间并行收发,默认为1即不开启
+     * @param stripeMinSize 本端发送时每个区间的最小字节数,默认8M
+     */
+    public void setFileStripe(int stripeCount, long stripeMinSize) {
+        fileHandler.setFileStripe(stripeCount, stripeMinSize);
+    }
+    /**
+     * 开启后发送文件前先以哈希值询问服务器,服务器设置了文件存储且已有相同内容时跳过上传,默认关闭
+     */
+    public void setFileDedup(boolean fileDedup) {
+        fileHandler.setFileDedup(fileDedup);
     }
 
     /**
@@ -47,90 +94,48 @@ public class NetClient {
         NetLog.info("正在连接服务器 [$:$]", host, port);
         SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
         link.start();
-        link.register(socketChannel, commandHandler);
+        if (multiplex) {
+            linkTable.unbindMultiplex();
+            link.register(socketChannel, muxHandler).thenRun(link::flushCommandPackage);
+        } else {
+            link.register(socketChannel, commandHandler).thenRun(link::flushCommandPackage);
+        }
     }
     public void closeLink() {
         putCommandPackage(new CommandPackage(DataPackage.WAY_LOGOUT));
         link.stop(0);
     }
 
-    public synchronized void putCommandPackage(CommandPackage commandPackage) {
-        for (int i = 0; (linkTable.getCommandKey() == null || (commandPackage.getWay() != DataPackage.WAY_LOGIN
-                && linkTable.getToken() == null)) && i < 100; i++) {
-            NetTool.sleep();
-        }
-        link.putDataPackage(linkTable.getCommandKey(), commandPackage);
+    /**
+     * 控制连接未就绪时暂存,就绪后按顺序发出,不阻塞调用线程
+     */
+    public void putCommandPackage(CommandPackage commandPackage) {
+        link.putCommandPackage(commandPackage);
     }
-    public synchronized void putMessagePackage(MessagePackage messagePackage) {
-        SelectionKey messageKey = linkTable.getMessageKey();
-        switch (linkTable.getMessageLinkState()) {
+    public void putMessagePackage(MessagePackage messagePackage) {
+        switch (linkTable.offerMessagePackage(messagePackage)) {
             case LinkTable.READY -> {
-                link.putDataPackage(messageKey, messagePackage);
-            }
-            case LinkTable.VERIFY -> {
-                for (int i = 0; !linkTable.messageQueueEmpty() && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.messageQueueEmpty()) {
-                    link.putDataPackage(messageKey, messagePackage);
-                } else {
-                    linkTable.putMessagePackage(messagePackage);
-                }
-            }
-            case LinkTable.LINK_2 -> {
-                linkTable.putMessagePackage(messagePackage);
+                link.putDataPackage(linkTable.getMessageKey(), messagePackage);
             }
             case LinkTable.LINK_1 -> {
-                for (int i = 0; linkTable.getToken() == null && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.getToken() != null) {
-                    putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_MESSAGE_ADDRESS));
-                    linkTable.setMessageLinkState(LinkTable.LINK_2);
-                    linkTable.putMessagePackage(messagePackage);
-                } else {
-                    link.addException(new TokenMissingException());
-                }
+                putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_MESSAGE_ADDRESS));
             }
         }
     }
-    public synchronized void putFilePackage(FilePackage filePackage) {
-        SelectionKey fileKey = linkTable.getFileKey();
-        switch (linkTable.getFileLinkState()) {
+    public void putFilePackage(FilePackage filePackage) {
+        switch (linkTable.offerFilePackage(filePackage)) {
             case LinkTable.READY -> {
-                link.putDataPackage(fileKey, filePackage);
-            }
-            case LinkTable.VERIFY -> {
-                for (int i = 0; !linkTable.fileQueueEmpty() && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.fileQueueEmpty()) {
-                    link.putDataPackage(fileKey, filePackage);
-                } else {
-                    linkTable.putFilePackage(filePackage);
-                }
-            }
-            case LinkTable.LINK_2 -> {
-                linkTable.putFilePackage(filePackage);
+                link.putDataPackage(linkTable.getFileKey(), filePackage);
             }
             case LinkTable.LINK_1 -> {
-                for (int i = 0; linkTable.getToken() == null && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.getToken() != null) {
-                    putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_FILE_ADDRESS));
-                    linkTable.setFileLinkState(LinkTable.LINK_2);
-                    linkTable.putFilePackage(filePackage);
-                } else {
-                    link.addException(new TokenMissingException());
-                }
+                putCommandPackage(new CommandPackage(DataPackage.WAY_BUILD_LINK, DataPackage.TYPE_FILE_ADDRESS));
             }
         }
     }
-    public void getFileSendSchedule(String taskId, TransferSchedule transferSchedule) {
+    public void getFileSendSchedule(TaskId taskId, TransferSchedule transferSchedule) {
         fileHandler.putSendTransferSchedule(taskId, transferSchedule);
     }
-    public void getFileReceiveSchedule(String taskId, TransferSchedule transferSchedule) {
+    public void getFileReceiveSchedule(TaskId taskId, TransferSchedule transferSchedule) {
         fileHandler.putReceiveTransferSchedule(taskId, transferSchedule);
     }
 
@@ -148,6 +153,19 @@ public class NetClient {
         NetLog.setLogHandler(logHandler);
     }
 
+    /**
+     * 开启后记录缓冲池中每个缓冲的申请位置,可通过BufferPool.reportLeak()输出未归还的缓冲
+     */
+    public void setBufferPoolDebug(boolean debug) {
+        BufferPool.setDebug(debug);
+    }
+    public String getBufferPoolStatistics() {
+        return BufferPool.getStatistics();
+    }
+    public String getTimingWheelStatistics() {
+        return TimingWheel.shared().getStatistics();
+    }
+
     /**
      * 单位(s)
      */
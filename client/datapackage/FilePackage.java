@@ -7,10 +7,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 public class FilePackage extends DataPackage {
-    public static final int HEADER_SIZE = 21;
+    public static final int HEADER_SIZE = 35;
+    // 文件连接上的帧头部,在HEADER_SIZE后附加分块偏移(8)与分块长度(4)
+    public static final int CHUNK_HEADER_SIZE = HEADER_SIZE + 12;
 
-    private long fileSize;
+    private long fileSize, offset;
     private File file;
+    private boolean resume;
 
     public FilePackage() {}
     public FilePackage(byte way, byte[] data) {
@@ -44,6 +47,26 @@ public class FilePackage extends DataPackage {
     public void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
+    /**
+     * 续传协商帧中对方已接收的长度,为-1时表示询问
+     */
+    public long getOffset() {
+        return offset;
+    }
+    public FilePackage setOffset(long offset) {
+        this.offset = offset;
+        return this;
+    }
+    /**
+     * 为true时表示此前发送中断,发送前先询问对方已接收的长度,只发送其余部分
+     */
+    public boolean isResume() {
+        return resume;
+    }
+    public FilePackage setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
 
     public boolean moveFile(File destFile) {
         try {
@@ -58,6 +81,6 @@ public class FilePackage extends DataPackage {
     @Override
     public String toString() {
         return getClass().getSimpleName()+ " [way=" + way + ", type=" + type + ", time=" + dateFormat.format(time)
-                + " ,fileSize=" + formatBytes(fileSize) + ", taskId=" + new String(taskId) + "]";
+                + " ,fileSize=" + formatBytes(fileSize) + ", taskId=" + taskId + "]";
     }
 }
\ No newline at end of file
@@ -4,7 +4,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 public class MessagePackage extends DataPackage {
-    public static final int HEADER_SIZE = 21;
+    public static final int HEADER_SIZE = 35;
     private short senderLenght;
     private short receiverLenght;
     private byte[] sender;
@@ -25,6 +25,12 @@ public class MessagePackage extends DataPackage {
         this(way, type, hostAddress, "0", null);
     }
 
+    public MessagePackage(byte way, byte[] data) {
+        this(way, MessagePackage.TYPE_TEXT, hostAddress, "0", null);
+        this.data = data;
+        dataSize = data.length;
+    }
+
     public MessagePackage(byte way, String text) {
         this(way, MessagePackage.TYPE_TEXT, hostAddress, "0", text);
     }
@@ -7,18 +7,21 @@ import net.datapackage.DataPackage;
 import net.datapackage.FilePackage;
 import net.datapackage.MessagePackage;
 import net.log.NetLog;
-import net.util.NetTool;
+import net.util.BufferPool;
+import net.util.TaskId;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CommandHandler extends Handler{
     private MessageHandler messageHandler;
     private FileHandler fileHandler;
     private LinkTable linkTable;
+    private final AtomicBoolean messageConnecting = new AtomicBoolean(), fileConnecting = new AtomicBoolean();
 
     public CommandHandler(Link link) {
         super(link);
@@ -38,8 +41,9 @@ public class CommandHandler extends Handler{
     public void receiveHandler(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
         CommandPackage CDP = new CommandPackage();
+        ByteBuffer buffer = null;
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(CommandPackage.HEADER_SIZE);
+            buffer = BufferPool.acquire(CommandPackage.HEADER_SIZE);
             while (buffer.hasRemaining()) {
                 if (channel.read(buffer) == -1) {
                     link.cancel(key, false);
@@ -48,19 +52,12 @@ public class CommandHandler extends Handler{
             }
             buffer.flip();
             CDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
-                    .setTime(buffer.getLong()).setDataSize(buffer.getInt());
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.wrap(taskIdBytes);
-            while (buffer.hasRemaining()) {
-                channel.read(buffer);
-            }
-            buffer.flip();
-            buffer.get(taskIdBytes);
-            CDP.setTaskId(new String(taskIdBytes));
+                    .setTime(buffer.getLong()).setDataSize(buffer.getInt()).setTaskId(TaskId.read(buffer));
             int dataSize = CDP.getDataSize();
             if (dataSize > 0) {
                 byte[] data = new byte[dataSize];
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
+                BufferPool.release(buffer);
+                buffer = BufferPool.acquire(Math.min(dataSize, BUFFER_MAX_SIZE));
                 for (int residue = dataSize, readCount = 0; residue > 0;residue -= readCount, readCount = 0) {
                     if (residue < buffer.remaining()) {
                         buffer.limit(residue);
@@ -76,83 +73,100 @@ public class CommandHandler extends Handler{
                 CDP.setData(data);
             }
 
-            NetLog.debug("接收 {$}", CDP);
+            handle(key, CDP);
+        } catch (IOException e) {
+            link.cancel(key, true);
+        } finally {
+            BufferPool.release(buffer);
+            link.receiveFinish(key);
+        }
+    }
+
+    /**
+     * 处理一个已读入的指令,多路复用连接上的指令也由此处理
+     */
+    void handle(SelectionKey key, CommandPackage CDP) {
+        NetLog.debug("接收 {$}", CDP);
 
-            switch (CDP.getWay()) {
-                case DataPackage.WAY_TOKEN_VERIFY -> {
-                    linkTable.putToken(CDP.getContent());
-                    NetLog.info("获得Token");
-                }
+        switch (CDP.getWay()) {
+            case DataPackage.WAY_TOKEN_VERIFY -> {
+                linkTable.putToken(CDP.getData());
+                NetLog.info("获得Token");
+                link.flushCommandPackage();
+            }
 
-                case DataPackage.WAY_BUILD_LINK -> {
-                    try {
-                        switch (CDP.getType()) {
-                            case DataPackage.TYPE_MESSAGE_ADDRESS -> {
-                                if (linkTable.getMessageKey() == null) {
-                                    String[] address = CDP.getContent().split(":");
-                                    SocketChannel socketChannel = SocketChannel.open(
-                                            new InetSocketAddress(address[0], Integer.parseInt(address[1])));
-                                    link.register(socketChannel, messageHandler);
-                                    for (int i = 0; linkTable.getMessageKey() == null && i < 100; i++) {
-                                        NetTool.sleep();
+            case DataPackage.WAY_BUILD_LINK -> {
+                try {
+                    switch (CDP.getType()) {
+                        case DataPackage.TYPE_MESSAGE_ADDRESS -> {
+                            if (linkTable.getMessageKey() == null && messageConnecting.compareAndSet(false, true)) {
+                                String[] address = CDP.getContent().split(":");
+                                SocketChannel socketChannel = SocketChannel.open(
+                                        new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+                                byte[] token = linkTable.getToken();
+                                link.register(socketChannel, messageHandler).whenComplete((messageKey, throwable) -> {
+                                    messageConnecting.set(false);
+                                    if (messageKey == null) {
+                                        return;
                                     }
-                                    link.putDataPackage(linkTable.getMessageKey(), new MessagePackage
-                                            (DataPackage.WAY_TOKEN_VERIFY, linkTable.getToken()));
+                                    link.putDataPackage(messageKey, new MessagePackage(DataPackage.WAY_TOKEN_VERIFY, token));
                                     linkTable.setMessageLinkState(LinkTable.VERIFY);
-                                    while (true) {
-                                        MessagePackage messagePackage = linkTable.getMessagePackage();
-                                        if (messagePackage != null) {
-                                            SelectionKey messageKey = linkTable.getMessageKey();
-                                            if (messageKey != null) {
-                                                link.putDataPackage(messageKey, messagePackage);
-                                            }
-                                        } else {
-                                            linkTable.setMessageLinkState(LinkTable.READY);
-                                            return;
-                                        }
+                                    MessagePackage messagePackage;
+                                    while ((messagePackage = linkTable.pollMessagePackage()) != null) {
+                                        link.putDataPackage(messageKey, messagePackage);
                                     }
-                                }
+                                });
                             }
-                            case DataPackage.TYPE_FILE_ADDRESS -> {
-                                if (linkTable.getFileKey() == null) {
-                                    String[] address = CDP.getContent().split(":");
-                                    SocketChannel socketChannel = SocketChannel.open(
-                                            new InetSocketAddress(address[0], Integer.parseInt(address[1])));
-                                    link.register(socketChannel, fileHandler);
-                                    for (int i = 0; linkTable.getFileKey() == null && i < 100; i++) {
-                                        NetTool.sleep();
+                        }
+                        case DataPackage.TYPE_FILE_ADDRESS -> {
+                            if (linkTable.getFileKey() == null && fileConnecting.compareAndSet(false, true)) {
+                                String[] address = CDP.getContent().split(":");
+                                SocketChannel socketChannel = SocketChannel.open(
+                                        new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+                                byte[] token = linkTable.getToken();
+                                link.register(socketChannel, fileHandler).whenComplete((fileKey, throwable) -> {
+                                    fileConnecting.set(false);
+                                    if (fileKey == null) {
+                                        return;
                                     }
-                                    link.putDataPackage(linkTable.getFileKey(), new FilePackage(DataPackage.WAY_TOKEN_VERIFY
-                                            , linkTable.getToken().getBytes()));
+                                    link.putDataPackage(fileKey, new FilePackage(DataPackage.WAY_TOKEN_VERIFY, token));
                                     linkTable.setFileLinkState(LinkTable.VERIFY);
-                                    while (true) {
-                                        FilePackage filePackage = linkTable.getFilePackage();
-                                        if (filePackage != null) {
-                                            SelectionKey fileKey = linkTable.getFileKey();
-                                            if (fileKey != null) {
-                                                link.putDataPackage(fileKey, filePackage);
-                                            }
-                                        } else {
-                                            linkTable.setFileLinkState(LinkTable.READY);
-                                            return;
-                                        }
+                                    FilePackage filePackage;
+                                    while ((filePackage = linkTable.pollFilePackage()) != null) {
+                                        link.putDataPackage(fileKey, filePackage);
                                     }
+                                });
+                                for (int i = 1; i < fileHandler.getStripeCount(); i++) {
+                                    connectStripe(address, token);
                                 }
                             }
                         }
-                    } catch (IOException e) {
-                        NetLog.error(e);
                     }
+                } catch (IOException e) {
+                    NetLog.error(e);
+                    (CDP.getType() == DataPackage.TYPE_MESSAGE_ADDRESS ? messageConnecting : fileConnecting).set(false);
                 }
+            }
 
-                default -> {
-                    link.addDataPackage(CDP);
-                }
+            default -> {
+                link.addDataPackage(CDP);
             }
+        }
+    }
+
+    /**
+     * 另开一条分段连接,以TYPE_FILE_STRIPE类型的Token验证帧关联到本端会话,失败时仅少一条分段连接
+     */
+    private void connectStripe(String[] address, byte[] token) {
+        try {
+            SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+            link.registerStripe(socketChannel, fileHandler).thenAccept(stripeKey -> {
+                // Token验证帧先于分块入队后才参与分段
+                link.putDataPackage(stripeKey, new FilePackage(DataPackage.WAY_TOKEN_VERIFY, token).setType(DataPackage.TYPE_FILE_STRIPE));
+                fileHandler.addStripeKey(stripeKey);
+            });
         } catch (IOException e) {
-            link.cancel(key, true);
-        } finally {
-            link.receiveFinish(key);
+            NetLog.error(e);
         }
     }
 
@@ -160,32 +174,23 @@ public class CommandHandler extends Handler{
     public void sendHandle(SelectionKey key, DataPackage dataPackage) {
         CommandPackage CDP = (CommandPackage) dataPackage;
         SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = null;
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(CommandPackage.HEADER_SIZE + CDP.getTaskIdLength());
-            buffer.put(CDP.getWay()).put(CDP.getType()).put(CDP.getAppendState()).putLong(CDP.getTime())
-                    .putInt(CDP.getDataSize()).putShort(CDP.getTaskIdLength()).put(CDP.getTaskIdBytes());
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
-            }
+            buffer = BufferPool.acquire(CommandPackage.HEADER_SIZE);
+            buffer.put(CDP.getWay()).put(CDP.getType()).put(CDP.getAppendState()).putLong(CDP.getTime()).putInt(CDP.getDataSize());
+            TaskId.write(buffer, CDP.getTaskId()).flip();
             int dataSize = CDP.getDataSize();
             if (dataSize > 0) {
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                byte[] data = CDP.getData();
-                for (int residue = dataSize, writeCount = 0; residue > 0;residue -= writeCount, writeCount = 0) {
-                    buffer.put(data, dataSize - residue, Math.min(residue, buffer.remaining()));
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        writeCount += channel.write(buffer);
-                    }
-                    buffer.clear();
-                }
+                writeFully(channel, buffer, ByteBuffer.wrap(CDP.getData(), 0, dataSize));
+            } else {
+                writeFully(channel, buffer);
             }
             NetLog.debug("发送 {$} 成功", CDP);
         } catch (IOException e) {
             NetLog.error("发送 {$} 失败", CDP);
             link.cancel(key, true);
         } finally {
+            BufferPool.release(buffer);
             link.sendFinish(key);
         }
     }
@@ -4,7 +4,10 @@ import net.Link;
 import net.datapackage.DataPackage;
 import net.datapackage.FilePackage;
 import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.TaskId;
 import net.util.NetTool;
+import net.util.PartialFileTable;
 import net.util.TransferSchedule;
 
 import java.io.File;
@@ -15,20 +18,42 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class FileHandler extends Handler {
-    private final ConcurrentHashMap<String, TransferSchedule> sendScheduleHashMap;
-    private final ConcurrentHashMap<String, TransferSchedule> receiveScheduleHashMap;
+    // 与服务器文件存储使用的哈希算法一致
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final ConcurrentHashMap<TaskId, TransferSchedule> sendScheduleHashMap;
+    private final ConcurrentHashMap<TaskId, TransferSchedule> receiveScheduleHashMap;
+    private final ConcurrentHashMap<TaskId, Source> sendingHashMap;
+    private final PartialFileTable partialFileTable;
+    private final CopyOnWriteArrayList<SelectionKey> stripeKeys;
     private String tempFilePath;
+    private int fileChunkSize, stripeCount;
+    private long stripeMinSize;
+    private volatile boolean fileDedup;
+    // 单连接实测吞吐,字节/秒
+    private volatile double throughput;
 
     public FileHandler(Link link) {
         super(link);
         tempFilePath = ".\\";
         sendScheduleHashMap = new ConcurrentHashMap<>();
         receiveScheduleHashMap = new ConcurrentHashMap<>();
+        sendingHashMap = new ConcurrentHashMap<>();
+        partialFileTable = new PartialFileTable();
+        stripeKeys = new CopyOnWriteArrayList<>();
+        fileChunkSize = 1024 * 1024;
+        stripeCount = 1;
+        stripeMinSize = 8 * 1024 * 1024;
     }
 
     public void setTempFilePath(String tempFilePath) throws FileNotFoundException {
@@ -40,154 +65,495 @@ public class FileHandler extends Handler {
             }
         }
     }
-    public void putSendTransferSchedule(String taskId, TransferSchedule schedule) {
+    /**
+     * 文件按分块发送,每个分块的字节数;连接断开后从服务器已连续接收的位置续传
+     */
+    public void setFileChunkSize(int fileChunkSize) {
+        this.fileChunkSize = Math.max(1024, fileChunkSize);
+    }
+    /**
+     * 建立文件连接时另开stripeCount-1条分段连接,大文件分为多个区间在各连接上并行收发;为1时不开启(默认)
+     * @param stripeMinSize 本端发送时每个区间的最小字节数,文件不足两个区间时不分段
+     */
+    public void setFileStripe(int stripeCount, long stripeMinSize) {
+        this.stripeCount = Math.max(1, stripeCount);
+        this.stripeMinSize = Math.max(fileChunkSize, stripeMinSize);
+    }
+    /**
+     * 开启后发送文件前先计算哈希值询问服务器,服务器已存有相同内容的文件时跳过上传,默认关闭
+     */
+    public void setFileDedup(boolean fileDedup) {
+        this.fileDedup = fileDedup;
+    }
+    public int getStripeCount() {
+        return stripeCount;
+    }
+    public void addStripeKey(SelectionKey stripeKey) {
+        stripeKeys.add(stripeKey);
+    }
+    /**
+     * @return stripeKey为分段连接时返回true
+     */
+    public boolean removeStripeKey(SelectionKey stripeKey) {
+        return stripeKeys.remove(stripeKey);
+    }
+    public List<SelectionKey> getStripeKeys() {
+        return stripeKeys;
+    }
+    /**
+     * @param ttl 未接收完整的文件等待续传的最长时间,超时后删除临时文件,单位(ms)
+     */
+    public void setPartialFileLimit(long ttl, int maxCount) {
+        partialFileTable.setLimit(ttl, maxCount);
+    }
+    public void putSendTransferSchedule(TaskId taskId, TransferSchedule schedule) {
         sendScheduleHashMap.put(taskId, schedule);
     }
-    public void putReceiveTransferSchedule(String taskId, TransferSchedule schedule) {
+    public void putReceiveTransferSchedule(TaskId taskId, TransferSchedule schedule) {
         receiveScheduleHashMap.put(taskId, schedule);
     }
+    TransferSchedule removeSendTransferSchedule(TaskId taskId) {
+        return sendScheduleHashMap.remove(taskId);
+    }
+    TransferSchedule removeReceiveTransferSchedule(TaskId taskId) {
+        return receiveScheduleHashMap.remove(taskId);
+    }
 
+    /**
+     * 读取已到达的帧: 续传协商帧只有头部;文件分块帧的内容写入未完成的文件,收齐后交付
+     * 未读完的头部与分块保存在连接上,下次可读时继续,不等待未到达的数据
+     */
     @Override
     public void receiveHandler(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        FilePackage FDP = new FilePackage();
-        File tempFile = new File(getTempFileName());
-        RandomAccessFile raf = null;
-        FileChannel fileChannel = null;
+        ReceiveState state = (ReceiveState) key.attachment();
+        if (state == null) {
+            state = new ReceiveState();
+            key.attach(state);
+        }
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(FilePackage.HEADER_SIZE);
-            while (buffer.hasRemaining()) {
-                if (socketChannel.read(buffer) == -1) {
+            while (true) {
+                if (state.chunkReceiver != null) {
+                    if (!receiveChunk(state, socketChannel)) {
+                        return;
+                    }
+                }
+                int readCount = socketChannel.read(state.header);
+                if (readCount == -1) {
                     link.cancel(key, false);
                     return;
+                } else if (state.header.hasRemaining()) {
+                    return;
                 }
-            }
-            buffer.flip();
-            FDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get()).setTime(buffer.getLong());
-            long fileSize = buffer.getLong();
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.wrap(taskIdBytes);
-            while (buffer.hasRemaining()) {
-                socketChannel.read(buffer);
-            }
-            buffer.flip();
-            buffer.get(taskIdBytes);
-            FDP.setTaskId(new String(taskIdBytes));
-            if (fileSize > 0) {
-                raf = new RandomAccessFile(tempFile, "rw");
-                fileChannel = raf.getChannel();
-                TransferSchedule transferSchedule = receiveScheduleHashMap.remove(FDP.getTaskId());
-                if (transferSchedule != null) {
-                    transferSchedule.setSize(fileSize);
-                    for (long residue = fileSize, readCount = 0; residue > 0; residue -= readCount) {
-                        readCount = fileChannel.transferFrom(socketChannel, fileSize - residue, residue);
-                        if (readCount > 0) {
-                            transferSchedule.updateSchedule(readCount);
-                        }
-                    }
-                    transferSchedule.transFinish();
+                ByteBuffer buffer = state.header.flip();
+                FilePackage FDP = new FilePackage();
+                FDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get()).setTime(buffer.getLong());
+                long fileSize = buffer.getLong();
+                FDP.setTaskId(TaskId.read(buffer));
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                buffer.clear();
+                if (fileSize < 0 || offset < -1 || length < 0 || offset + length > fileSize) {
+                    throw new IOException("非法的帧头部");
+                }
+                FDP.setFileSize(fileSize);
+                FDP.setOffset(offset);
+                if (FDP.getWay() == DataPackage.WAY_FILE_RESUME) {
+                    receiveResume(key, FDP);
+                } else if (offset >= 0) {
+                    openChunk(state, FDP, length);
                 } else {
-                    for (long residue = fileSize, readCount = 0; residue > 0; residue -= readCount) {
-                        readCount = fileChannel.transferFrom(socketChannel, fileSize - residue, residue);
-                    }
+                    throw new IOException("非法的帧头部");
                 }
-                FDP.setFile(tempFile).setFileSize(fileSize);
             }
-            link.addDataPackage(FDP);
-            NetLog.debug("接收 {$}", FDP);
         } catch (IOException e) {
             NetLog.error(e);
             link.cancel(key, true);
         } finally {
             link.receiveFinish(key);
-            try {
-                if (raf != null) {
-                    raf.close();
-                }
-                if (fileChannel != null) {
-                    fileChannel.close();
-                }
-            } catch (IOException e) {
-                NetLog.error(e);
+        }
+    }
+    /**
+     * 偏移为-1时为服务器询问本端已接收的长度,否则为服务器对本端询问的应答
+     */
+    private void receiveResume(SelectionKey key, FilePackage FDP) {
+        if (FDP.getOffset() < 0) {
+            link.putDataPackage(key, resumePackage(FDP, partialFileTable.getReceived(FDP.getTaskId(), FDP.getFileSize())));
+            return;
+        }
+        Source source = sendingHashMap.get(FDP.getTaskId());
+        if (source == null || !source.begin()) {
+            NetLog.debug("续传应答 {$} 无对应的待续传文件,已忽略", FDP);
+            return;
+        }
+        long offset = FDP.getOffset();
+        if (offset == FDP.getFileSize() && offset > 0) {
+            // 服务器已存有相同内容的文件并已交付
+            if (source.release()) {
+                NetLog.debug("服务器已有相同内容的文件,{$} 跳过上传", source.filePackage);
+            }
+            return;
+        }
+        NetLog.debug("{$} 从 [$] 处续传", source.filePackage, offset);
+        if (source.transferSchedule != null && offset > 0) {
+            source.transferSchedule.updateSchedule(offset);
+        }
+        link.putDataPackage(key, startRanges(key, source, offset));
+    }
+    /**
+     * 分块按偏移写入未完成的文件,分段并行发送的各区间可能来自不同连接,全部收齐后交付
+     */
+    private void openChunk(ReceiveState state, FilePackage FDP, int length) throws IOException {
+        PartialFileTable.PartialFile partialFile = partialFileTable.open(FDP.getTaskId(), FDP.getFileSize(), () -> new File(getTempFileName()));
+        if (partialFile == null) {
+            NetLog.warn("{$} 与未完成的文件不符,已丢弃", FDP);
+        } else if (partialFile.getCovered() == 0) {
+            TransferSchedule transferSchedule = receiveScheduleHashMap.get(FDP.getTaskId());
+            if (transferSchedule != null) {
+                transferSchedule.setSize(FDP.getFileSize());
             }
         }
+        state.chunkPackage = FDP;
+        state.chunkReceiver = new PartialFileTable.ChunkReceiver(partialFile, FDP.getOffset(), length);
+    }
+    /**
+     * 读入分块中已到达的部分,分块已读完时返回true
+     */
+    private boolean receiveChunk(ReceiveState state, SocketChannel socketChannel) throws IOException {
+        PartialFileTable.PartialFile partialFile = state.chunkReceiver.getPartialFile();
+        FilePackage FDP = state.chunkPackage;
+        long covered = partialFile != null ? partialFile.getCovered() : 0;
+        boolean finished = state.chunkReceiver.receive(socketChannel);
+        if (partialFile == null) {
+            if (finished) {
+                state.chunkReceiver = null;
+                state.chunkPackage = null;
+            }
+            return finished;
+        }
+        TransferSchedule transferSchedule = receiveScheduleHashMap.get(FDP.getTaskId());
+        if (transferSchedule != null && partialFile.getCovered() > covered) {
+            transferSchedule.updateSchedule(partialFile.getCovered() - covered);
+        }
+        if (!finished) {
+            return false;
+        }
+        state.chunkReceiver = null;
+        state.chunkPackage = null;
+        if (partialFile.complete()) {
+            partialFileTable.finish(partialFile);
+            transferSchedule = receiveScheduleHashMap.remove(FDP.getTaskId());
+            if (transferSchedule != null) {
+                transferSchedule.transFinish();
+            }
+            FDP.setFile(partialFile.getFile());
+            FDP.setOffset(0);
+            link.addDataPackage(FDP);
+            NetLog.debug("接收 {$}", FDP);
+        }
+        return true;
+    }
+    private static FilePackage resumePackage(FilePackage FDP, long offset) {
+        FilePackage resumePackage = new FilePackage();
+        resumePackage.setWay(DataPackage.WAY_FILE_RESUME).setType(FDP.getType()).setTime(FDP.getTime()).setTaskId(FDP.getTaskId());
+        resumePackage.setFileSize(FDP.getFileSize());
+        return resumePackage.setOffset(offset);
     }
 
+    /**
+     * 文件按分块发送,写出一块后再将区间内的下一块放入发送队列;标记为续传的文件先询问服务器已接收的长度
+     */
     @Override
     public void sendHandle(SelectionKey key, DataPackage dataPackage) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        FilePackage FDP = (FilePackage) dataPackage;
-        RandomAccessFile raf = null;
-        FileChannel fileChannel = null;
+        FileChunk fileChunk = null;
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(FilePackage.HEADER_SIZE + FDP.getTaskIdLength());
-            if (FDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
-                buffer.put(FDP.getWay()).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime())
-                        .putLong(FDP.getDataSize()).putShort(FDP.getTaskIdLength()).put(FDP.getTaskIdBytes());
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    socketChannel.write(buffer);
-                }
-                int dataSize = FDP.getDataSize();
-                if (dataSize > 0) {
-                    buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                    byte[] data = FDP.getData();
-                    for (int residue = dataSize, writeCount = 0; residue > 0;residue -= writeCount, writeCount = 0) {
-                        buffer.put(data, dataSize - residue, Math.min(residue, buffer.remaining()));
-                        buffer.flip();
-                        while (buffer.hasRemaining()) {
-                            writeCount += socketChannel.write(buffer);
-                        }
-                        buffer.clear();
+            switch (dataPackage) {
+                case FilePackage FDP when FDP.getWay() == DataPackage.WAY_TOKEN_VERIFY -> {
+                    writeHeader(socketChannel, FDP.getWay(), FDP, FDP.getDataSize(), 0, 0);
+                    if (FDP.getDataSize() > 0) {
+                        writeFully(socketChannel, ByteBuffer.wrap(FDP.getData(), 0, FDP.getDataSize()));
                     }
+                    NetLog.debug("发送 {$} 成功", FDP);
                 }
-            } else {
-                buffer.put(FDP.getWay()).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime())
-                        .putLong(FDP.getFileSize()).putShort(FDP.getTaskIdLength()).put(FDP.getTaskIdBytes());
-                buffer.flip();
-                while (buffer.hasRemaining()) {
-                    socketChannel.write(buffer);
+                case FilePackage FDP when FDP.getWay() == DataPackage.WAY_FILE_RESUME -> {
+                    writeHeader(socketChannel, FDP.getWay(), FDP, FDP.getFileSize(), FDP.getOffset(), 0);
                 }
-                raf = new RandomAccessFile(FDP.getFile(), "r");
-                fileChannel = raf.getChannel();
-                long fileSize = FDP.getFileSize();
-                TransferSchedule transferSchedule = sendScheduleHashMap.remove(FDP.getTaskId());
-                if (transferSchedule != null) {
-                    transferSchedule.setSize(fileSize);
-                    for (long residue = fileSize, writeCount = 0; residue > 0; residue -= writeCount) {
-                        writeCount = fileChannel.transferTo(fileSize - residue, residue, socketChannel);
-                        if (writeCount > 0) {
-                            transferSchedule.updateSchedule(writeCount);
-                        }
-                    }
-                    transferSchedule.transFinish();
-                } else {
-                    for (long residue = fileSize, writeCount = 0; residue > 0; residue -= writeCount) {
-                        writeCount = fileChannel.transferTo(fileSize - residue, residue, socketChannel);
+                case FilePackage FDP -> {
+                    Source source = new Source(FDP, removeSendTransferSchedule(FDP.getTaskId()));
+                    source.keys.add(key);
+                    sendingHashMap.put(FDP.getTaskId(), source);
+                    byte[] hashData = fileDedup ? hashData(FDP) : null;
+                    if (hashData != null) {
+                        writeHeader(socketChannel, DataPackage.WAY_FILE_RESUME, FDP, FDP.getFileSize(), -1, hashData.length);
+                        writeFully(socketChannel, ByteBuffer.wrap(hashData));
+                    } else if (FDP.isResume()) {
+                        writeHeader(socketChannel, DataPackage.WAY_FILE_RESUME, FDP, FDP.getFileSize(), -1, 0);
+                    } else {
+                        source.begin();
+                        fileChunk = startRanges(key, source, 0);
                     }
                 }
+                case FileChunk chunk -> fileChunk = chunk;
+                default -> throw new IllegalStateException();
+            }
+            if (fileChunk != null) {
+                FilePackage FDP = fileChunk.source.filePackage;
+                if (fileChunk.source.isInterrupted()) {
+                    // 其他区间所在的连接已断开,整个文件待续传,本区间停止
+                    fileChunk.source.release();
+                    return;
+                }
+                long startTime = System.nanoTime();
+                writeHeader(socketChannel, FDP.getWay(), FDP, FDP.getFileSize(), fileChunk.offset, fileChunk.getDataSize());
+                fileChunk.transferTo(socketChannel);
+                measure(fileChunk.getDataSize(), System.nanoTime() - startTime);
+                FileChunk next = fileChunk.next(fileChunkSize);
+                if (next != null) {
+                    link.putDataPackage(key, next);
+                } else if (fileChunk.source.release()) {
+                    NetLog.debug("发送 {$} 成功", FDP);
+                }
             }
-
-            NetLog.debug("发送 {$} 成功", FDP);
         } catch (IOException e) {
-            NetLog.error("发送 {$} 失败", FDP);
+            NetLog.error("发送 {$} 失败", dataPackage);
+            if (fileChunk != null) {
+                fileChunk.source.release();
+            }
             link.cancel(key, true);
         } finally {
             link.sendFinish(key);
-            try {
-                if (raf != null) {
-                    raf.close();
-                }
-                if (fileChannel != null) {
-                    fileChannel.close();
+        }
+    }
+    /**
+     * 去重询问的内容: 原数据包的way与文件的哈希值;空文件或无法计算时返回null,按普通发送处理
+     */
+    private static byte[] hashData(FilePackage FDP) {
+        if (FDP.getFileSize() == 0) {
+            return null;
+        }
+        try {
+            byte[] hash = NetTool.getFileHashValue(FDP.getFile(), HASH_ALGORITHM).getBytes(StandardCharsets.US_ASCII);
+            byte[] hashData = new byte[hash.length + 1];
+            hashData[0] = FDP.getWay();
+            System.arraycopy(hash, 0, hashData, 1, hash.length);
+            return hashData;
+        } catch (NoSuchAlgorithmException | IOException e) {
+            NetLog.error(e);
+            return null;
+        }
+    }
+    /**
+     * 将[from, 文件末尾)分为若干区间,其余区间交给分段连接并行发送,返回在key上发送的首个区间的首个分块
+     */
+    private FileChunk startRanges(SelectionKey key, Source source, long from) {
+        long fileSize = source.filePackage.getFileSize();
+        List<SelectionKey> stripeKeys = new ArrayList<>(this.stripeKeys);
+        int stripeCount = stripeCount(fileSize - from, stripeKeys.size());
+        long rangeSize = (fileSize - from + stripeCount - 1) / stripeCount;
+        if (stripeCount > 1) {
+            NetLog.debug("{$} 分为 [$] 段并行发送", source.filePackage, stripeCount);
+        }
+        for (int i = 1; i < stripeCount; i++) {
+            SelectionKey stripeKey = stripeKeys.get(i - 1);
+            long start = from + rangeSize * i;
+            source.acquire();
+            source.keys.add(stripeKey);
+            link.putDataPackage(stripeKey, new FileChunk(source, start, Math.min(start + rangeSize, fileSize), fileChunkSize));
+        }
+        return new FileChunk(source, from, Math.min(from + rangeSize, fileSize), fileChunkSize);
+    }
+    /**
+     * 分段数: 单连接按实测吞吐1秒内可发完时不分段,否则每段不小于stripeMinSize,且不超过分段连接数+1
+     */
+    private int stripeCount(long size, int stripeKeyCount) {
+        if (stripeKeyCount == 0 || size < 2 * stripeMinSize || size < throughput) {
+            return 1;
+        }
+        return (int) Math.min(stripeKeyCount + 1, size / stripeMinSize);
+    }
+    /**
+     * 以分块的写出耗时估计单连接吞吐,指数加权平均;过小的分块多在发送缓冲内完成,不计入
+     */
+    private void measure(int bytes, long nanos) {
+        if (bytes < 64 * 1024 || nanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / nanos;
+        double oldThroughput = throughput;
+        throughput = oldThroughput == 0 ? rate : oldThroughput * 0.8 + rate * 0.2;
+    }
+    private static void writeHeader(SocketChannel socketChannel, byte way, FilePackage FDP, long size, long offset, int length) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire(FilePackage.CHUNK_HEADER_SIZE);
+        try {
+            buffer.put(way).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime()).putLong(size);
+            TaskId.write(buffer, FDP.getTaskId()).putLong(offset).putInt(length).flip();
+            writeFully(socketChannel, buffer);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 文件连接或分段连接断开时取出有区间在该连接上的未发送完的文件并标记为续传,由调用方重新交给文件连接,
+     * 重建后只发送服务器缺少的部分;文件的其余区间随之停止
+     */
+    public List<FilePackage> takeInterrupted(SelectionKey key) {
+        List<FilePackage> filePackages = new ArrayList<>();
+        for (Source source : sendingHashMap.values()) {
+            if (!source.keys.contains(key)) {
+                continue;
+            }
+            if (source.begin()) {
+                // 续传询问尚未应答,没有发送中的区间
+                source.release();
+            }
+            if (!source.interrupt() || !sendingHashMap.remove(source.filePackage.getTaskId(), source)) {
+                continue;
+            }
+            FilePackage FDP = source.filePackage;
+            if (FDP.getAppendState() == DataPackage.APPEND_1) {
+                // 附加的数据包已随首次发送发出,续传时不再重复发送
+                FDP.removeAppendDataPackage().setAppendState(DataPackage.APPEND_1);
+            }
+            if (source.transferSchedule != null) {
+                putSendTransferSchedule(FDP.getTaskId(), source.transferSchedule);
+            }
+            NetLog.info("{$} 发送中断,待文件连接重建后续传", FDP);
+            filePackages.add(FDP.setResume(true));
+        }
+        return filePackages;
+    }
+
+    /**
+     * 连接上的接收进度,作为SelectionKey的attachment保存
+     */
+    private static class ReceiveState {
+        private final ByteBuffer header = ByteBuffer.allocate(FilePackage.CHUNK_HEADER_SIZE);
+        private FilePackage chunkPackage;
+        private PartialFileTable.ChunkReceiver chunkReceiver;
+    }
+    /**
+     * 正在发送的文件,各分块共用打开的FileChannel
+     */
+    private class Source {
+        private final FilePackage filePackage;
+        private final RandomAccessFile raf;
+        private final FileChannel fileChannel;
+        private final TransferSchedule transferSchedule;
+        // 有区间在其上发送的连接
+        private final Set<SelectionKey> keys;
+        private boolean begun, interrupted;
+        // 尚未发送完的区间数,打开时即有首个区间
+        private int rangeCount = 1;
+
+        private Source(FilePackage filePackage, TransferSchedule transferSchedule) throws IOException {
+            this.filePackage = filePackage;
+            this.transferSchedule = transferSchedule;
+            raf = new RandomAccessFile(filePackage.getFile(), "r");
+            fileChannel = raf.getChannel();
+            keys = ConcurrentHashMap.newKeySet();
+            if (transferSchedule != null) {
+                transferSchedule.setSize(filePackage.getFileSize());
+            }
+        }
+
+        /**
+         * 发出首个分块前调用,已开始发送时返回false
+         */
+        private synchronized boolean begin() {
+            boolean first = !begun;
+            begun = true;
+            return first;
+        }
+        private synchronized void acquire() {
+            rangeCount++;
+        }
+        /**
+         * 释放一个区间,全部释放后关闭文件;未中断时视为发送完成并返回true
+         */
+        private boolean release() {
+            synchronized (this) {
+                if (--rangeCount > 0) {
+                    return false;
                 }
+            }
+            close();
+            if (isInterrupted()) {
+                return false;
+            }
+            sendingHashMap.remove(filePackage.getTaskId(), this);
+            if (transferSchedule != null) {
+                transferSchedule.transFinish();
+            }
+            return true;
+        }
+        /**
+         * 首次调用返回true,由调用方安排续传
+         */
+        private synchronized boolean interrupt() {
+            boolean first = !interrupted;
+            interrupted = true;
+            return first;
+        }
+        private synchronized boolean isInterrupted() {
+            return interrupted;
+        }
+        private void close() {
+            try {
+                raf.close();
             } catch (IOException e) {
                 NetLog.error(e);
             }
         }
     }
 
-    private synchronized String getTempFileName() {
+    /**
+     * 文件内容的一个分块
+     */
+    private class FileChunk extends DataPackage {
+        private final Source source;
+        private final long offset, end;
+
+        /**
+         * 区间[offset, end)的首个分块,区间内后续分块由next()取得
+         */
+        private FileChunk(Source source, long offset, long end, int chunkSize) {
+            this.source = source;
+            this.offset = offset;
+            this.end = end;
+            way = source.filePackage.getWay();
+            type = source.filePackage.getType();
+            time = source.filePackage.getTime();
+            taskId = source.filePackage.getTaskId();
+            dataSize = (int) Math.min(end - offset, chunkSize);
+        }
+
+        private FileChunk next(int chunkSize) {
+            long nextOffset = offset + dataSize;
+            return nextOffset < end ? new FileChunk(source, nextOffset, end, chunkSize) : null;
+        }
+        private void transferTo(SocketChannel socketChannel) throws IOException {
+            long chunkEnd = offset + dataSize;
+            if (source.fileChannel.size() < chunkEnd) {
+                throw new IOException("文件长度已改变 " + source.filePackage.getFile());
+            }
+            for (long position = offset; position < chunkEnd; ) {
+                long writeCount = source.fileChannel.transferTo(position, chunkEnd - position, socketChannel);
+                position += writeCount;
+                if (source.transferSchedule != null && writeCount > 0) {
+                    source.transferSchedule.updateSchedule(writeCount);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FileChunk [taskId=" + taskId + ", offset=" + offset + ", size=" + formatBytes(dataSize) + "]";
+        }
+    }
+
+    synchronized String getTempFileName() {
         try {
             return tempFilePath + NetTool.getHashValue((String.valueOf(System.currentTimeMillis()) + UUID.randomUUID()).getBytes(), "MD5");
         } catch (NoSuchAlgorithmException e) {
@@ -3,6 +3,9 @@ package net.handler;
 import net.Link;
 import net.datapackage.DataPackage;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 
 public abstract class Handler {
@@ -14,4 +17,17 @@ public abstract class Handler {
     }
     public abstract void receiveHandler(SelectionKey key);
     public abstract void sendHandle(SelectionKey key, DataPackage dataPackage);
+
+    /**
+     * 以聚集写一次发出所有缓冲,未写完时从中断处继续
+     */
+    protected static void writeFully(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long residue = 0;
+        for (ByteBuffer buffer : buffers) {
+            residue += buffer.remaining();
+        }
+        while (residue > 0) {
+            residue -= channel.write(buffers);
+        }
+    }
 }
\ No newline at end of file
@@ -4,6 +4,8 @@ import net.Link;
 import net.datapackage.DataPackage;
 import net.datapackage.MessagePackage;
 import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.TaskId;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -20,8 +22,9 @@ public class MessageHandler extends Handler{
     public void receiveHandler(SelectionKey key) {
         SocketChannel channel = (SocketChannel) key.channel();
         MessagePackage MDP = new MessagePackage();
+        ByteBuffer buffer = null;
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(MessagePackage.HEADER_SIZE);
+            buffer = BufferPool.acquire(MessagePackage.HEADER_SIZE);
             while (buffer.hasRemaining()) {
                 if (channel.read(buffer) == -1) {
                     link.cancel(key, false);
@@ -33,18 +36,20 @@ public class MessageHandler extends Handler{
                     .setTime(buffer.getLong()).setDataSize(buffer.getInt());
             byte[] senderBytes = new byte[buffer.getShort()];
             byte[] receiverBytes = new byte[buffer.getShort()];
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.allocate(senderBytes.length + receiverBytes.length + taskIdBytes.length);
+            MDP.setTaskId(TaskId.read(buffer));
+            BufferPool.release(buffer);
+            buffer = BufferPool.acquire(senderBytes.length + receiverBytes.length);
             while (buffer.hasRemaining()) {
                 channel.read(buffer);
             }
             buffer.flip();
-            buffer.get(senderBytes).get(receiverBytes).get(taskIdBytes);
-            MDP.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes)).setTaskId(new String(taskIdBytes));
+            buffer.get(senderBytes).get(receiverBytes);
+            MDP.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes));
             int dataSize = MDP.getDataSize();
             if (dataSize > 0) {
                 byte[] data = new byte[dataSize];
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
+                BufferPool.release(buffer);
+                buffer = BufferPool.acquire(Math.min(dataSize, BUFFER_MAX_SIZE));
                 for (int residue = dataSize, readCount = 0; residue > 0; residue -= readCount, readCount = 0) {
                     if (residue < buffer.remaining()) {
                         buffer.limit(residue);
@@ -66,6 +71,7 @@ public class MessageHandler extends Handler{
         } catch (IOException e) {
             link.cancel(key, true);
         } finally {
+            BufferPool.release(buffer);
             link.receiveFinish(key);
         }
     }
@@ -73,35 +79,25 @@ public class MessageHandler extends Handler{
     @Override
     public void sendHandle(SelectionKey key, DataPackage dataPackage) {
         MessagePackage MDP = (MessagePackage) dataPackage;
+        ByteBuffer buffer = null;
         try {
             SocketChannel channel = (SocketChannel) key.channel();
-            ByteBuffer buffer = ByteBuffer.allocate(MessagePackage.HEADER_SIZE
-                    + MDP.getTaskIdLength() + MDP.getSenderLenght() + MDP.getReceiverLenght());
+            buffer = BufferPool.acquire(MessagePackage.HEADER_SIZE + MDP.getSenderLenght() + MDP.getReceiverLenght());
             buffer.put(MDP.getWay()).put(MDP.getType()).put(MDP.getAppendState()).putLong(MDP.getTime()).putInt(MDP.getDataSize())
-                    .putShort(MDP.getSenderLenght()).putShort(MDP.getReceiverLenght()).putShort(MDP.getTaskIdLength())
-                    .put(MDP.getSenderBytes()).put(MDP.getReceiverBytes()).put(MDP.getTaskIdBytes());
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
-            }
+                    .putShort(MDP.getSenderLenght()).putShort(MDP.getReceiverLenght());
+            TaskId.write(buffer, MDP.getTaskId()).put(MDP.getSenderBytes()).put(MDP.getReceiverBytes()).flip();
             int dataSize = MDP.getDataSize();
             if (dataSize > 0) {
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                byte[] data = MDP.getData();
-                for (int residue = dataSize, writeCount = 0; residue > 0;residue -= writeCount, writeCount = 0) {
-                    buffer.put(data, dataSize - residue, Math.min(residue, buffer.remaining()));
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        writeCount += channel.write(buffer);
-                    }
-                    buffer.clear();
-                }
+                writeFully(channel, buffer, ByteBuffer.wrap(MDP.getData(), 0, dataSize));
+            } else {
+                writeFully(channel, buffer);
             }
             NetLog.debug("发送 {$} 成功", MDP);
         } catch (IOException e) {
             NetLog.error("发送 {$} 失败", MDP);
             link.cancel(key, true);
         } finally {
+            BufferPool.release(buffer);
             link.sendFinish(key);
         }
     }
@@ -0,0 +1,423 @@
+package net.handler;
+
+import net.Link;
+import net.datapackage.CommandPackage;
+import net.datapackage.DataPackage;
+import net.datapackage.FilePackage;
+import net.datapackage.MessagePackage;
+import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.LinkTable;
+import net.util.TaskId;
+import net.util.TransferSchedule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 多路复用连接,指令、消息与文件三种流共用一条连接,帧结构与服务器MuxLink相同: 流(1) + 长度(4) + 原有帧
+ * 文件内容按分块发送,每写出一块才将下一块排到发送队列末尾,期间的指令与消息不必等待整个文件
+ */
+
+public class MuxHandler extends Handler {
+    public static final int HEADER_SIZE = 5;
+    // 控制流
+    public static final byte STREAM_COMMAND = 1;
+    // 消息流
+    public static final byte STREAM_MESSAGE = 2;
+    // 文件流,文件头部
+    public static final byte STREAM_FILE = 3;
+    // 文件流,文件内容分块: taskId(16) + 数据
+    public static final byte STREAM_FILE_DATA = 4;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final ConcurrentHashMap<TaskId, IncomingFile> incomingHashMap;
+    private final Set<Source> sourceSet;
+    private CommandHandler commandHandler;
+    private FileHandler fileHandler;
+    private LinkTable linkTable;
+    private int fileChunkSize;
+
+    public MuxHandler(Link link) {
+        super(link);
+        incomingHashMap = new ConcurrentHashMap<>();
+        sourceSet = ConcurrentHashMap.newKeySet();
+        // 分块帧连同帧头恰好放入缓冲池最大一级的缓冲
+        fileChunkSize = BufferPool.MAX_POOLED_SIZE - HEADER_SIZE - TaskId.SIZE;
+    }
+
+    public void setCommandHandler(CommandHandler commandHandler) {
+        this.commandHandler = commandHandler;
+    }
+    public void setFileHandler(FileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+    }
+    public void setLinkTable(LinkTable linkTable) {
+        this.linkTable = linkTable;
+    }
+    public void setFileChunkSize(int fileChunkSize) {
+        this.fileChunkSize = Math.max(1024, fileChunkSize);
+    }
+
+    /**
+     * 获得Token或重新连接后,消息与文件直接经由多路复用连接发送,并发出暂存的内容
+     */
+    public void bind(SelectionKey key) {
+        linkTable.bindMultiplex(key);
+        MessagePackage messagePackage;
+        while ((messagePackage = linkTable.pollMessagePackage()) != null) {
+            link.putDataPackage(key, messagePackage);
+        }
+        FilePackage filePackage;
+        while ((filePackage = linkTable.pollFilePackage()) != null) {
+            link.putDataPackage(key, filePackage);
+        }
+    }
+    /**
+     * 连接断开时关闭正在发送的文件,删除未接收完的文件
+     */
+    public void clear() {
+        for (Source source : sourceSet) {
+            source.close();
+        }
+        for (IncomingFile incomingFile : incomingHashMap.values()) {
+            incomingFile.abort();
+        }
+        incomingHashMap.clear();
+    }
+
+    @Override
+    public void receiveHandler(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = null;
+        try {
+            buffer = BufferPool.acquire(HEADER_SIZE);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    link.cancel(key, false);
+                    return;
+                }
+            }
+            buffer.flip();
+            byte stream = buffer.get();
+            int length = buffer.getInt();
+            int minLength = switch (stream) {
+                case STREAM_COMMAND -> CommandPackage.HEADER_SIZE;
+                case STREAM_MESSAGE -> MessagePackage.HEADER_SIZE;
+                case STREAM_FILE -> FilePackage.HEADER_SIZE;
+                case STREAM_FILE_DATA -> TaskId.SIZE;
+                default -> throw new IOException("未知的流 " + stream);
+            };
+            if (length < minLength) {
+                throw new IOException("非法的帧长度");
+            }
+            BufferPool.release(buffer);
+            buffer = BufferPool.acquire(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("连接已关闭");
+                }
+            }
+            buffer.flip();
+            switch (stream) {
+                case STREAM_COMMAND -> {
+                    CommandPackage CDP = new CommandPackage();
+                    CDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
+                            .setTime(buffer.getLong()).setDataSize(buffer.getInt()).setTaskId(TaskId.read(buffer));
+                    CDP.setData(readData(buffer, CDP.getDataSize()));
+                    if (CDP.getWay() == DataPackage.WAY_BUILD_LINK) {
+                        // 多路复用连接不另建消息与文件连接
+                        NetLog.debug("忽略 {$}", CDP);
+                    } else {
+                        commandHandler.handle(key, CDP);
+                        if (CDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
+                            bind(key);
+                        }
+                    }
+                }
+                case STREAM_MESSAGE -> {
+                    MessagePackage MDP = new MessagePackage();
+                    MDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
+                            .setTime(buffer.getLong()).setDataSize(buffer.getInt());
+                    byte[] senderBytes = new byte[buffer.getShort()];
+                    byte[] receiverBytes = new byte[buffer.getShort()];
+                    MDP.setTaskId(TaskId.read(buffer));
+                    buffer.get(senderBytes).get(receiverBytes);
+                    MDP.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes));
+                    MDP.setData(readData(buffer, MDP.getDataSize()));
+                    NetLog.debug("接收 {$}", MDP);
+                    link.addDataPackage(MDP);
+                }
+                case STREAM_FILE -> {
+                    FilePackage FDP = new FilePackage();
+                    FDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get()).setTime(buffer.getLong());
+                    long fileSize = buffer.getLong();
+                    FDP.setTaskId(TaskId.read(buffer));
+                    IncomingFile incomingFile = new IncomingFile(FDP, new File(fileHandler.getTempFileName()), fileSize
+                            , fileHandler.removeReceiveTransferSchedule(FDP.getTaskId()));
+                    if (fileSize == 0) {
+                        finishFile(incomingFile);
+                    } else {
+                        incomingHashMap.put(FDP.getTaskId(), incomingFile);
+                    }
+                }
+                case STREAM_FILE_DATA -> {
+                    TaskId taskId = TaskId.read(buffer);
+                    IncomingFile incomingFile = incomingHashMap.get(taskId);
+                    if (incomingFile == null) {
+                        throw new IOException("未知文件的分块 " + taskId);
+                    }
+                    if (incomingFile.write(buffer)) {
+                        incomingHashMap.remove(taskId);
+                        finishFile(incomingFile);
+                    }
+                }
+                default -> throw new IllegalStateException();
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            NetLog.error(e);
+            link.cancel(key, true);
+        } finally {
+            BufferPool.release(buffer);
+            link.receiveFinish(key);
+        }
+    }
+
+    private static byte[] readData(ByteBuffer buffer, int dataSize) throws IOException {
+        if (dataSize != buffer.remaining()) {
+            throw new IOException("非法的数据长度");
+        }
+        if (dataSize == 0) {
+            return null;
+        }
+        byte[] data = new byte[dataSize];
+        buffer.get(data);
+        return data;
+    }
+    private void finishFile(IncomingFile incomingFile) throws IOException {
+        incomingFile.close();
+        FilePackage FDP = incomingFile.filePackage;
+        if (incomingFile.size > 0) {
+            FDP.setFile(incomingFile.file).setFileSize(incomingFile.size);
+        }
+        NetLog.debug("接收 {$}", FDP);
+        link.addDataPackage(FDP);
+    }
+
+    @Override
+    public void sendHandle(SelectionKey key, DataPackage dataPackage) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = null;
+        try {
+            switch (dataPackage) {
+                case CommandPackage CDP -> {
+                    buffer = BufferPool.acquire(HEADER_SIZE + CommandPackage.HEADER_SIZE);
+                    buffer.put(STREAM_COMMAND).putInt(CommandPackage.HEADER_SIZE + CDP.getDataSize())
+                            .put(CDP.getWay()).put(CDP.getType()).put(CDP.getAppendState()).putLong(CDP.getTime()).putInt(CDP.getDataSize());
+                    TaskId.write(buffer, CDP.getTaskId()).flip();
+                    writeFully(channel, buffer, wrapData(CDP));
+                }
+                case MessagePackage MDP -> {
+                    int headerSize = MessagePackage.HEADER_SIZE + MDP.getSenderLenght() + MDP.getReceiverLenght();
+                    buffer = BufferPool.acquire(HEADER_SIZE + headerSize);
+                    buffer.put(STREAM_MESSAGE).putInt(headerSize + MDP.getDataSize())
+                            .put(MDP.getWay()).put(MDP.getType()).put(MDP.getAppendState()).putLong(MDP.getTime()).putInt(MDP.getDataSize())
+                            .putShort(MDP.getSenderLenght()).putShort(MDP.getReceiverLenght());
+                    TaskId.write(buffer, MDP.getTaskId()).put(MDP.getSenderBytes()).put(MDP.getReceiverBytes()).flip();
+                    writeFully(channel, buffer, wrapData(MDP));
+                }
+                case FilePackage FDP -> {
+                    // 先打开文件,打开失败时不发出文件头部
+                    Source source = FDP.getFileSize() > 0
+                            ? new Source(FDP, fileHandler.removeSendTransferSchedule(FDP.getTaskId())) : null;
+                    buffer = BufferPool.acquire(HEADER_SIZE + FilePackage.HEADER_SIZE);
+                    buffer.put(STREAM_FILE).putInt(FilePackage.HEADER_SIZE)
+                            .put(FDP.getWay()).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime()).putLong(FDP.getFileSize());
+                    TaskId.write(buffer, FDP.getTaskId()).flip();
+                    writeFully(channel, buffer);
+                    if (source != null) {
+                        link.putDataPackage(key, new FileChunk(source, 0, (int) Math.min(FDP.getFileSize(), fileChunkSize)));
+                    }
+                }
+                case FileChunk fileChunk -> {
+                    buffer = BufferPool.acquire(HEADER_SIZE + TaskId.SIZE + fileChunk.getDataSize());
+                    buffer.put(STREAM_FILE_DATA).putInt(TaskId.SIZE + fileChunk.getDataSize());
+                    TaskId.write(buffer, fileChunk.getTaskId());
+                    fileChunk.read(buffer);
+                    writeFully(channel, buffer.flip());
+                    FileChunk next = fileChunk.next(fileChunkSize);
+                    if (next != null) {
+                        link.putDataPackage(key, next);
+                    } else {
+                        fileChunk.source.finish();
+                        NetLog.debug("发送 {$} 成功", fileChunk.source.filePackage);
+                    }
+                }
+                default -> throw new IllegalStateException();
+            }
+            if (!(dataPackage instanceof FileChunk) && !(dataPackage instanceof FilePackage)) {
+                NetLog.debug("发送 {$} 成功", dataPackage);
+            }
+        } catch (IOException e) {
+            NetLog.error("发送 {$} 失败", dataPackage);
+            if (dataPackage instanceof FileChunk fileChunk) {
+                fileChunk.source.close();
+            }
+            link.cancel(key, true);
+        } finally {
+            BufferPool.release(buffer);
+            link.sendFinish(key);
+        }
+    }
+
+    private static ByteBuffer wrapData(DataPackage dataPackage) {
+        return dataPackage.getDataSize() > 0 ? ByteBuffer.wrap(dataPackage.getData(), 0, dataPackage.getDataSize()) : EMPTY_BUFFER;
+    }
+
+    /**
+     * 正在发送的文件,各分块共用打开的FileChannel
+     */
+    private class Source {
+        private final FilePackage filePackage;
+        private final RandomAccessFile raf;
+        private final FileChannel fileChannel;
+        private final TransferSchedule transferSchedule;
+
+        private Source(FilePackage filePackage, TransferSchedule transferSchedule) throws IOException {
+            this.filePackage = filePackage;
+            this.transferSchedule = transferSchedule;
+            raf = new RandomAccessFile(filePackage.getFile(), "r");
+            fileChannel = raf.getChannel();
+            if (transferSchedule != null) {
+                transferSchedule.setSize(filePackage.getFileSize());
+            }
+            sourceSet.add(this);
+        }
+
+        private void finish() {
+            close();
+            if (transferSchedule != null) {
+                transferSchedule.transFinish();
+            }
+        }
+        private void close() {
+            if (sourceSet.remove(this)) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    NetLog.error(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 文件内容的一个分块,写出后再将下一块放入发送队列
+     */
+    private class FileChunk extends DataPackage {
+        private final Source source;
+        private final long offset;
+
+        private FileChunk(Source source, long offset, int size) {
+            this.source = source;
+            this.offset = offset;
+            way = source.filePackage.getWay();
+            type = source.filePackage.getType();
+            time = source.filePackage.getTime();
+            taskId = source.filePackage.getTaskId();
+            dataSize = size;
+        }
+
+        private FileChunk next(int chunkSize) {
+            long nextOffset = offset + dataSize;
+            long residue = source.filePackage.getFileSize() - nextOffset;
+            return residue > 0 ? new FileChunk(source, nextOffset, (int) Math.min(residue, chunkSize)) : null;
+        }
+        private void read(ByteBuffer buffer) throws IOException {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + dataSize);
+            for (long position = offset; buffer.hasRemaining(); ) {
+                int readCount = source.fileChannel.read(buffer, position);
+                if (readCount < 0) {
+                    throw new IOException("文件长度已改变 " + source.filePackage.getFile());
+                }
+                position += readCount;
+            }
+            buffer.limit(limit);
+            if (source.transferSchedule != null) {
+                source.transferSchedule.updateSchedule(dataSize);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FileChunk [taskId=" + taskId + ", offset=" + offset + ", size=" + formatBytes(dataSize) + "]";
+        }
+    }
+
+    /**
+     * 正在接收的文件,按分块到达顺序追加写入临时文件
+     */
+    private static class IncomingFile {
+        private final FilePackage filePackage;
+        private final File file;
+        private final long size;
+        private final RandomAccessFile raf;
+        private final FileChannel fileChannel;
+        private final TransferSchedule transferSchedule;
+        private long position;
+
+        private IncomingFile(FilePackage filePackage, File file, long size, TransferSchedule transferSchedule) throws IOException {
+            this.filePackage = filePackage;
+            this.file = file;
+            this.size = size;
+            this.transferSchedule = transferSchedule;
+            raf = new RandomAccessFile(file, "rw");
+            fileChannel = raf.getChannel();
+            if (transferSchedule != null) {
+                transferSchedule.setSize(size);
+            }
+        }
+
+        /**
+         * 写入一个分块,文件已接收完整时返回true
+         */
+        private boolean write(ByteBuffer buffer) throws IOException {
+            int length = buffer.remaining();
+            if (position + length > size) {
+                throw new IOException("文件分块超出文件长度 " + filePackage);
+            }
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            if (transferSchedule != null) {
+                transferSchedule.updateSchedule(length);
+            }
+            return position == size;
+        }
+        private void close() throws IOException {
+            raf.close();
+            if (transferSchedule != null) {
+                transferSchedule.transFinish();
+            }
+        }
+        private void abort() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                NetLog.error(e);
+            }
+            if (!file.delete()) {
+                NetLog.warn("删除未接收完的文件 [$] 失败", file);
+            }
+        }
+    }
+}
\ No newline at end of file
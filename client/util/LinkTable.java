@@ -4,8 +4,6 @@ import net.datapackage.FilePackage;
 import net.datapackage.MessagePackage;
 
 import java.nio.channels.SelectionKey;
-import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -13,26 +11,24 @@ public class LinkTable {
     private final ConcurrentHashMap<String, Object> hashMap;
     private final ConcurrentLinkedQueue<MessagePackage> messageQueue;
     private final ConcurrentLinkedQueue<FilePackage> fileQueue;
-    private final ConcurrentHashMap<SelectionKey, Long> lastActivityTime;
-    private byte messageLinkState, fileLinkState;
+    private volatile byte messageLinkState, fileLinkState;
 
     public LinkTable() {
         hashMap = new ConcurrentHashMap<>();
         messageQueue = new ConcurrentLinkedQueue<>();
         fileQueue = new ConcurrentLinkedQueue<>();
-        lastActivityTime = new ConcurrentHashMap<>();
         messageLinkState = LINK_1;
         fileLinkState = LINK_1;
     }
 
-    public void putToken(String token) {
+    public void putToken(byte[] token) {
         hashMap.put("token", token);
     }
     public void removeToken() {
         hashMap.remove("token");
     }
-    public String getToken() {
-        return (String) hashMap.get("token");
+    public byte[] getToken() {
+        return (byte[]) hashMap.get("token");
     }
 
     public void putCommandKey(SelectionKey commandKey) {
@@ -50,8 +46,10 @@ public class LinkTable {
         hashMap.put("messageKey", messageKey);
     }
     public void removeMessageKey() {
-        messageLinkState = LINK_1;
-        hashMap.remove("messageKey");
+        synchronized (messageQueue) {
+            messageLinkState = LINK_1;
+            hashMap.remove("messageKey");
+        }
     }
     public SelectionKey getMessageKey() {
         return (SelectionKey) hashMap.get("messageKey");
@@ -61,30 +59,104 @@ public class LinkTable {
         hashMap.put("fileKey", fileKey);
     }
     public void removeFileKey() {
-        fileLinkState = LINK_1;
-        hashMap.remove("fileKey");
+        synchronized (fileQueue) {
+            fileLinkState = LINK_1;
+            hashMap.remove("fileKey");
+        }
     }
     public SelectionKey getFileKey() {
         return (SelectionKey) hashMap.get("fileKey");
     }
 
-    public void putMessagePackage(MessagePackage messagePackage) {
-        messageQueue.add(messagePackage);
-    }
-    public MessagePackage getMessagePackage() {
-        return messageQueue.poll();
-    }
-    public boolean messageQueueEmpty() {
-        return messageQueue.isEmpty();
-    }
-    public void putFilePackage(FilePackage filePackage) {
-        fileQueue.add(filePackage);
-    }
-    public FilePackage getFilePackage() {
-        return fileQueue.poll();
+    /**
+     * 多路复用连接上消息与文件直接经由该连接发送,获得Token或重新连接后置为VERIFY,由调用方发出暂存的内容
+     */
+    public void bindMultiplex(SelectionKey key) {
+        synchronized (messageQueue) {
+            hashMap.put("messageKey", key);
+            messageLinkState = VERIFY;
+        }
+        synchronized (fileQueue) {
+            hashMap.put("fileKey", key);
+            fileLinkState = VERIFY;
+        }
+    }
+    /**
+     * 多路复用连接未建立或已断开,之后的消息与文件暂存,不请求另建连接
+     */
+    public void unbindMultiplex() {
+        synchronized (messageQueue) {
+            hashMap.remove("messageKey");
+            messageLinkState = LINK_2;
+        }
+        synchronized (fileQueue) {
+            hashMap.remove("fileKey");
+            fileLinkState = LINK_2;
+        }
     }
-    public boolean fileQueueEmpty() {
-        return fileQueue.isEmpty();
+
+    /**
+     * 消息连接未就绪时暂存messagePackage,返回暂存前的状态;返回READY时未暂存,由调用方直接发送
+     * 状态为LINK_1时同时置为LINK_2,调用方负责请求建立连接
+     */
+    public byte offerMessagePackage(MessagePackage messagePackage) {
+        byte state = messageLinkState;
+        if (state == READY) {
+            return state;
+        }
+        synchronized (messageQueue) {
+            state = messageLinkState;
+            if (state != READY) {
+                messageQueue.add(messagePackage);
+                if (state == LINK_1) {
+                    messageLinkState = LINK_2;
+                }
+            }
+            return state;
+        }
+    }
+    /**
+     * 取出一个暂存的消息;队列已空时在同一把锁内将VERIFY置为READY,之后的消息由调用方直接发送,不会乱序
+     */
+    public MessagePackage pollMessagePackage() {
+        synchronized (messageQueue) {
+            MessagePackage messagePackage = messageQueue.poll();
+            if (messagePackage == null && messageLinkState == VERIFY) {
+                messageLinkState = READY;
+            }
+            return messagePackage;
+        }
+    }
+    /**
+     * 同offerMessagePackage()
+     */
+    public byte offerFilePackage(FilePackage filePackage) {
+        byte state = fileLinkState;
+        if (state == READY) {
+            return state;
+        }
+        synchronized (fileQueue) {
+            state = fileLinkState;
+            if (state != READY) {
+                fileQueue.add(filePackage);
+                if (state == LINK_1) {
+                    fileLinkState = LINK_2;
+                }
+            }
+            return state;
+        }
+    }
+    /**
+     * 同pollMessagePackage()
+     */
+    public FilePackage pollFilePackage() {
+        synchronized (fileQueue) {
+            FilePackage filePackage = fileQueue.poll();
+            if (filePackage == null && fileLinkState == VERIFY) {
+                fileLinkState = READY;
+            }
+            return filePackage;
+        }
     }
 
     public void setMessageLinkState(byte messageLinkState) {
@@ -100,16 +172,6 @@ public class LinkTable {
         return fileLinkState;
     }
 
-    public void updateLastActivityTime(SelectionKey key) {
-        lastActivityTime.put(key, System.currentTimeMillis());
-    }
-    public Set<Map.Entry<SelectionKey, Long>> getLastActivityTime() {
-        return lastActivityTime.entrySet();
-    }
-    public void removeLastActivityTime(SelectionKey key) {
-        lastActivityTime.remove(key);
-    }
-
     // 未连接
     public static final byte LINK_1 = 1;
     // 连接中
@@ -11,8 +11,6 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class NetTool {
-    private static int taskId = 0;
-
     public static void sleep() {
         try {
             Thread.sleep(100);
@@ -21,13 +19,8 @@ public class NetTool {
         }
     }
 
-    public static synchronized String produceTaskId() {
-        taskId++;
-        try {
-            return getHashValue((String.valueOf(System.currentTimeMillis() + taskId)).getBytes(), "MD5");
-        } catch (NoSuchAlgorithmException ignored) {
-            return String.valueOf(System.currentTimeMillis() + taskId);
-        }
+    public static TaskId produceTaskId() {
+        return TaskId.next();
     }
 
     public static String getHashValue(byte[] data, String algorithm) throws NoSuchAlgorithmException {
@@ -4,13 +4,13 @@ import net.datapackage.DataPackage;
 
 public abstract class Task implements Runnable{
     private final Object lock = new Object();
-    protected final String taskId;
+    protected final TaskId taskId;
     private DataPackage dataPackage;
 
     public Task() {
         this.taskId = NetTool.produceTaskId();
     }
-    public Task(String taskId) {
+    public Task(TaskId taskId) {
         this.taskId = taskId;
     }
 
@@ -33,7 +33,7 @@ public abstract class Task implements Runnable{
         }
     }
 
-    public String getTaskId() {
+    public TaskId getTaskId() {
         return taskId;
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package net.util;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 128位任务ID,高64位为生成时间(ms),低64位为节点号(24位)与计数(40位),线路上固定占16字节
+ * 不可变,hashCode与字符串形式在首次使用时缓存,可直接作为Map的键
+ */
+
+public final class TaskId {
+    public static final int SIZE = 16;
+    private static final long NODE = (long) new SecureRandom().nextInt(1 << 24) << 40;
+    private static final long COUNT_MASK = (1L << 40) - 1;
+    private static final AtomicLong count = new AtomicLong(new SecureRandom().nextLong());
+    private static final HexFormat hexFormat = HexFormat.of();
+
+    private final long high, low;
+    private int hash;
+    private String string;
+
+    public TaskId(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * 无锁生成,同一节点同一毫秒内的计数不重复
+     */
+    public static TaskId next() {
+        return new TaskId(System.currentTimeMillis(), NODE | (count.getAndIncrement() & COUNT_MASK));
+    }
+    public static TaskId read(ByteBuffer buffer) {
+        return new TaskId(buffer.getLong(), buffer.getLong());
+    }
+    /**
+     * taskId为null时写入16个0
+     */
+    public static ByteBuffer write(ByteBuffer buffer, TaskId taskId) {
+        return taskId != null ? buffer.putLong(taskId.high).putLong(taskId.low) : buffer.putLong(0).putLong(0);
+    }
+    /**
+     * 解析toString()得到的32位十六进制字符串
+     */
+    public static TaskId fromString(String string) {
+        if (string.length() != SIZE * 2) {
+            throw new IllegalArgumentException("非法的TaskId " + string);
+        }
+        return new TaskId(HexFormat.fromHexDigitsToLong(string, 0, 16), HexFormat.fromHexDigitsToLong(string, 16, 32));
+    }
+
+    public long getHigh() {
+        return high;
+    }
+    public long getLow() {
+        return low;
+    }
+    /**
+     * 生成时间
+     */
+    public long getTime() {
+        return high;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        return this == object || (object instanceof TaskId taskId && high == taskId.high && low == taskId.low);
+    }
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            long mix = high * 0x9E3779B97F4A7C15L ^ low;
+            h = (int) (mix ^ (mix >>> 32));
+            hash = h;
+        }
+        return h;
+    }
+    @Override
+    public String toString() {
+        String s = string;
+        if (s == null) {
+            s = hexFormat.toHexDigits(high) + hexFormat.toHexDigits(low);
+            string = s;
+        }
+        return s;
+    }
+}
\ No newline at end of file
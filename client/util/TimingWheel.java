@@ -0,0 +1,233 @@
+package net.util;
+
+import net.log.NetLog;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 哈希时间轮,所有定时任务由一个线程推进,加入与取消为O(1),每次推进只处理到期和已取消的任务
+ * 任务在时间轮线程中执行,不应阻塞
+ */
+
+public class TimingWheel {
+    private static final TimingWheel shared = new TimingWheel("TimingWheel", 10, 4096);
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final ConcurrentLinkedQueue<Timeout> pendingQueue, cancelledQueue;
+    private final Thread workerThread;
+    private final AtomicInteger workerState;
+    private volatile long startTime;
+    private long tick;
+
+    private final LongAdder scheduledCount = new LongAdder();
+    private final LongAdder expiredCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+
+    /**
+     * @param tickMillis 每格时长(ms)
+     * @param wheelSize 格数,向上取为2的幂
+     */
+    public TimingWheel(String name, long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickDuration = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        pendingQueue = new ConcurrentLinkedQueue<>();
+        cancelledQueue = new ConcurrentLinkedQueue<>();
+        workerState = new AtomicInteger();
+        workerThread = new Thread(this::work, name);
+        workerThread.setDaemon(true);
+    }
+
+    /**
+     * 服务端与客户端共用的时间轮,每格10ms,合并发送的等待也由其计时
+     */
+    public static TimingWheel shared() {
+        return shared;
+    }
+
+    /**
+     * delayMillis毫秒后执行task,精度为一格
+     */
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        if (workerState.compareAndSet(0, 1)) {
+            startTime = System.nanoTime();
+            workerThread.start();
+        }
+        while (startTime == 0) {
+            Thread.onSpinWait();
+        }
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        pendingQueue.add(timeout);
+        scheduledCount.increment();
+        return timeout;
+    }
+
+    private void work() {
+        while (true) {
+            long deadline = tickDuration * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        // 每格最多转移10万个,避免新任务过多时无法推进
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = pendingQueue.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != Timeout.INIT) {
+                continue;
+            }
+            long ticks = Math.max(timeout.deadline / tickDuration, tick);
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledQueue.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    public long getScheduledCount() {
+        return scheduledCount.sum();
+    }
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+    public long getCancelledCount() {
+        return cancelledCount.sum();
+    }
+    public String getStatistics() {
+        return "TimingWheel [scheduled=" + scheduledCount.sum() + ", expired=" + expiredCount.sum()
+                + ", cancelled=" + cancelledCount.sum() + ", pending=" + pendingQueue.size() + "]";
+    }
+
+    public static class Timeout {
+        private static final int INIT = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final TimingWheel timingWheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private long remainingRounds;
+        private Timeout next, prev;
+        private Bucket bucket;
+
+        private Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(INIT);
+        }
+
+        /**
+         * 返回false表示任务已执行或已取消
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            timingWheel.cancelledCount.increment();
+            timingWheel.cancelledQueue.add(this);
+            return true;
+        }
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+            timingWheel.expiredCount.increment();
+            try {
+                task.run();
+            } catch (Exception e) {
+                NetLog.error(e);
+            }
+        }
+    }
+
+    /**
+     * 双向链表,只由时间轮线程访问
+     */
+    private static class Bucket {
+        private Timeout head, tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.next = timeout.prev = null;
+            timeout.bucket = null;
+        }
+    }
+}
\ No newline at end of file
@@ -6,9 +6,12 @@ import net.util.TokenBucket;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.*;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -16,7 +19,10 @@ public class Accept extends Thread{
     private final Selector selector;
     private final ConcurrentHashMap<ServerSocketChannel, Link> relevancyHashMap;
     private final ConcurrentLinkedQueue<Runnable> eventQueue;
+    private final LinkedHashMap<InetAddress, TokenBucket> sourceHashMap;
     private TokenBucket tokenBucket;
+    private long sourceCapacity, sourceRate;
+    private int maxSourceCount;
     private boolean running;
 
     public Accept() throws IOException {
@@ -24,6 +30,16 @@ public class Accept extends Thread{
         relevancyHashMap = new ConcurrentHashMap<>();
         eventQueue = new ConcurrentLinkedQueue<>();
         tokenBucket = new TokenBucket(3000, 1000);
+        sourceCapacity = 200;
+        sourceRate = 100;
+        maxSourceCount = 10000;
+        // 只在Accept线程中访问,按访问顺序淘汰最久未出现的来源
+        sourceHashMap = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+                return size() > maxSourceCount;
+            }
+        };
         running = true;
         NetLog.info("服务器地址 [$]", InetAddress.getLocalHost().getHostAddress());
     }
@@ -60,7 +76,10 @@ public class Accept extends Thread{
                 ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
                 SocketChannel socketChannel = serverSocketChannel.accept();
                 SocketAddress socketAddress = socketChannel.getRemoteAddress();
-                if (tokenBucket.acquire()) {
+                if (!acquireSource(socketAddress)) {
+                    socketChannel.close();
+                    NetLog.warn("连接 [$] 已建立,来源地址连接过于频繁,已断开", socketAddress);
+                } else if (tokenBucket.acquire()) {
                     Link link = relevancyHashMap.get(serverSocketChannel);
                     if (link != null) {
                         NetLog.info("连接 [$] 已建立,正常", socketAddress);
@@ -98,4 +117,28 @@ public class Accept extends Thread{
     public void setTokenBucket(long capacity, long rate) {
         tokenBucket = new TokenBucket(capacity, rate);
     }
+    /**
+     * 每个来源IP单独的令牌桶,最多记录maxSourceCount个来源,capacity为0时不限制
+     */
+    public void setSourceTokenBucket(long capacity, long rate, int maxSourceCount) {
+        eventQueue.add(() -> {
+            sourceCapacity = capacity;
+            sourceRate = rate;
+            this.maxSourceCount = maxSourceCount;
+            sourceHashMap.clear();
+        });
+        selector.wakeup();
+    }
+
+    private boolean acquireSource(SocketAddress socketAddress) {
+        if (sourceCapacity <= 0 || !(socketAddress instanceof InetSocketAddress inetSocketAddress)) {
+            return true;
+        }
+        TokenBucket sourceBucket = sourceHashMap.get(inetSocketAddress.getAddress());
+        if (sourceBucket == null) {
+            sourceBucket = new TokenBucket(sourceCapacity, sourceRate);
+            sourceHashMap.put(inetSocketAddress.getAddress(), sourceBucket);
+        }
+        return sourceBucket.acquire();
+    }
 }
\ No newline at end of file
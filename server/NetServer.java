@@ -5,14 +5,30 @@ import net.datapackage.DataPackage;
 import net.datapackage.FilePackage;
 import net.datapackage.MessagePackage;
 import net.exception.NetException;
+import net.link.ClusterLink;
 import net.link.CommandLink;
 import net.link.FileLink;
+import net.link.Link;
 import net.link.MessageLink;
+import net.link.MuxLink;
+import net.link.ReactorGroup;
+import net.link.SharedFrame;
+import net.link.WritabilityListener;
 import net.log.NetLogHandler;
 import net.log.NetLog;
+import net.util.BandwidthTable;
+import net.util.BufferPool;
+import net.util.FileStore;
+import net.util.GroupTable;
 import net.util.LinkTable;
+import net.util.MappedOfflineStore;
 import net.util.NetTool;
+import net.util.OfflineStore;
+import net.util.SessionDirectory;
+import net.util.TimingWheel;
+import net.util.Token;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -21,6 +37,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Set;
 
 public class NetServer {
@@ -28,23 +45,45 @@ public class NetServer {
     private final CommandLink commandLink;
     private final MessageLink messageLink;
     private final FileLink fileLink;
+    private final MuxLink muxLink;
+    private final ClusterLink clusterLink;
     private final LinkTable linkTable;
-    private ServerSocketChannel CSSC, MSSC, FSSC;
+    private final GroupTable groupTable;
+    private final BandwidthTable bandwidthTable;
+    private ServerSocketChannel CSSC, MSSC, FSSC, MUXSSC, CLUSSC;
     private String messagAddress, fileAddress;
+    private int reactorCount;
+    private byte reactorStrategy;
+    private boolean reactorPinned;
+    private OfflineStore offlineStore;
+    private String offlineStorePath;
+    private SessionDirectory sessionDirectory;
 
     public NetServer() throws IOException {
         accept = new Accept();
         accept.setName("Accept");
         linkTable = new LinkTable();
+        groupTable = new GroupTable();
+        bandwidthTable = new BandwidthTable();
         commandLink = new CommandLink(this, linkTable);
         commandLink.setName("CommandLink");
         messageLink = new MessageLink(this, linkTable);
         messageLink.setName("MessageLink");
         fileLink = new FileLink(this, linkTable);
         fileLink.setName("FileLink");
+        muxLink = new MuxLink(this, linkTable);
+        muxLink.setName("MuxLink");
+        clusterLink = new ClusterLink(this, linkTable);
+        clusterLink.setName("ClusterLink");
         linkTable.setLink(commandLink, messageLink, fileLink);
+        commandLink.setBandwidthTable(bandwidthTable);
+        messageLink.setBandwidthTable(bandwidthTable);
+        fileLink.setBandwidthTable(bandwidthTable);
+        muxLink.setBandwidthTable(bandwidthTable);
         messageLink.setHeartBeatInterval(300);
         fileLink.setHeartBeatInterval(60);
+        reactorCount = 1;
+        reactorStrategy = ReactorGroup.ROUND_ROBIN;
     }
 
     public void bindCommandPort(int port) throws IOException {
@@ -67,6 +106,23 @@ public class NetServer {
         NetLog.info("文件端口绑定 [$] ", FSSC.socket().getLocalPort());
     }
 
+    /**
+     * 绑定多路复用端口,客户端可在一条连接上收发指令、消息与文件,未绑定时不开启
+     */
+    public void bindMuxPort(int port) throws IOException {
+        MUXSSC = ServerSocketChannel.open();
+        MUXSSC.bind(new InetSocketAddress(port));
+        NetLog.info("多路复用端口绑定 [$] ", MUXSSC.socket().getLocalPort());
+    }
+    /**
+     * 绑定集群端口,接收其他节点转发的指令与消息,需与setCluster()一同使用
+     */
+    public void bindClusterPort(int port) throws IOException {
+        CLUSSC = ServerSocketChannel.open();
+        CLUSSC.bind(new InetSocketAddress(port));
+        NetLog.info("集群端口绑定 [$] ", CLUSSC.socket().getLocalPort());
+    }
+
     public void accept() throws IOException {
         if (CSSC == null || !CSSC.isOpen()) {
             bindCommandPort(0);
@@ -80,17 +136,57 @@ public class NetServer {
         accept.addMonitor(CSSC, commandLink);
         accept.addMonitor(MSSC, messageLink);
         accept.addMonitor(FSSC, fileLink);
+        if (reactorPinned) {
+            ReactorGroup reactorGroup = new ReactorGroup("Reactor", reactorCount, reactorStrategy, true);
+            commandLink.setReactorGroup(reactorGroup);
+            messageLink.setReactorGroup(reactorGroup);
+            fileLink.setReactorGroup(reactorGroup);
+            muxLink.setReactorGroup(reactorGroup);
+            clusterLink.setReactorGroup(reactorGroup);
+        } else {
+            for (Link link : new Link[]{commandLink, messageLink, fileLink, muxLink, clusterLink}) {
+                link.setReactorCount(reactorCount);
+                link.setReactorStrategy(reactorStrategy);
+            }
+        }
+        if (offlineStore == null) {
+            // 默认目录按指令端口区分,同一主机上的多个实例互不共用
+            File directory = offlineStorePath != null ? new File(offlineStorePath)
+                    : new File(System.getProperty("java.io.tmpdir"), "NetOffline-" + CSSC.socket().getLocalPort());
+            offlineStore = new MappedOfflineStore(directory);
+            linkTable.setOfflineStore(offlineStore);
+        }
         commandLink.start();
         messageLink.start();
         fileLink.start();
+        if (MUXSSC != null) {
+            accept.addMonitor(MUXSSC, muxLink);
+            muxLink.start();
+        }
+        if (sessionDirectory != null) {
+            if (CLUSSC != null) {
+                accept.addMonitor(CLUSSC, clusterLink);
+            }
+            clusterLink.start();
+        }
         accept.start();
     }
 
+    /**
+     * Token为随机生成,addition不再参与生成,仅为兼容保留
+     */
     public boolean register(SelectionKey key, String UID, String addition) {
-        String token = NetTool.getToken(key, addition);
-        if (linkTable.register(key, UID, token)) {
+        Token token = linkTable.register(key, UID);
+        if (token != null) {
             commandLink.putDataPackage(key, new CommandPackage(DataPackage.WAY_TOKEN_VERIFY, token.getBytes())
                     .setSelectionKey(key).setUID(UID));
+            // 多路复用连接登录后即可收发消息与文件;否则有离线消息时直接请求建立消息连接
+            if (muxLink.isOwner(key)) {
+                muxLink.bind(key);
+            } else if (linkTable.requestMessageLink(UID)) {
+                putCommandPackage(UID, new CommandPackage(DataPackage.WAY_BUILD_LINK
+                        , DataPackage.TYPE_MESSAGE_ADDRESS, messagAddress.getBytes()));
+            }
             return true;
         } else {
             return false;
@@ -100,85 +196,144 @@ public class NetServer {
         linkTable.cancel(UID);
     }
 
+    public void joinGroup(String groupId, String UID) {
+        groupTable.join(groupId, UID);
+    }
+    public void leaveGroup(String groupId, String UID) {
+        groupTable.leave(groupId, UID);
+    }
+    public void removeGroup(String groupId) {
+        groupTable.removeGroup(groupId);
+    }
+    public Set<String> getGroupMembers(String groupId) {
+        return groupTable.getMembers(groupId);
+    }
+    public Set<String> getGroups(String UID) {
+        return groupTable.getGroups(UID);
+    }
+
     public void putCommandPackage(SelectionKey key, CommandPackage commandPackage) {
         commandLink.putDataPackage(key, commandPackage);
     }
 
     public boolean putCommandPackage(String UID, CommandPackage commandPackage) {
         SelectionKey commandKey = linkTable.getCommandKeyByUID(UID);
+        String node;
         if (commandKey != null) {
             commandLink.putDataPackage(commandKey, commandPackage.setSelectionKey(commandKey).setUID(UID));
             return true;
+        } else if ((node = remoteNode(UID, commandPackage)) != null) {
+            return clusterLink.forward(node, UID, commandPackage) != Link.PUT_REJECTED;
         } else {
             NetLog.warn("发送 [CommandPackage] 时,目标UID [$] 不存在", UID);
             return false;
         }
     }
-    public boolean putMessagePackage(String UID, MessagePackage messagePackage) {
-        SelectionKey messageKey = linkTable.getMessageKeyByUID(UID);
-        switch (linkTable.getMessageLinkStata(UID)) {
-            case LinkTable.READY -> {
-                messageLink.putDataPackage(messageKey, messagePackage.setSelectionKey(messageKey).setUID(UID));
-            }
-            case LinkTable.VERIFY -> {
-                for (int i = 0; !linkTable.messageQueueEmpty(UID) && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.messageQueueEmpty(UID)) {
-                    messageLink.putDataPackage(messageKey, messagePackage.setSelectionKey(messageKey).setUID(UID));
-                } else {
-                    linkTable.putMessagePackage(UID, messagePackage);
+    /**
+     * @return Link.PUT_ACCEPTED 已放入发送队列, Link.PUT_QUEUED 连接未就绪已暂存, Link.PUT_REJECTED 目标不存在或发送队列已满
+     */
+    public byte putMessagePackage(String UID, MessagePackage messagePackage) {
+        return putMessagePackage(UID, messagePackage, null);
+    }
+    /**
+     * 向群组的所有成员发送messagePackage,消息只编码一次,由各成员连接的发送队列共享
+     * 消息连接未就绪或不在线的成员与putMessagePackage()相同,存入离线存储
+     * @return 已放入发送队列或已暂存的成员数
+     */
+    public int publish(String groupId, MessagePackage messagePackage) {
+        Set<String> members = groupTable.getMembers(groupId);
+        if (members.isEmpty()) {
+            return 0;
+        }
+        if (messagePackage.getTaskId() == null) {
+            messagePackage.setTaskId(NetTool.produceTaskId());
+        }
+        // 带附加数据包的消息无法合并为一帧,逐个编码
+        SharedFrame frame = messagePackage.getAppendState() == DataPackage.APPEND_1
+                ? null : messageLink.encodeShared(messagePackage);
+        int count = 0;
+        try {
+            for (String UID : members) {
+                if (putMessagePackage(UID, messagePackage, frame) != Link.PUT_REJECTED) {
+                    count++;
                 }
             }
-            case LinkTable.LINK_2 -> {
-                linkTable.putMessagePackage(UID, messagePackage);
+        } finally {
+            if (frame != null) {
+                frame.release();
+            }
+        }
+        NetLog.debug("向群组 [$] 发送 {$} ,成员数:$ 成功数:$", groupId, messagePackage, members.size(), count);
+        return count;
+    }
+    private byte putMessagePackage(String UID, MessagePackage messagePackage, SharedFrame frame) {
+        String node = remoteNode(UID, messagePackage);
+        if (node != null) {
+            return clusterLink.forward(node, UID, messagePackage);
+        }
+        Byte state = linkTable.offerMessagePackage(UID, messagePackage);
+        switch (state) {
+            case LinkTable.READY -> {
+                SelectionKey messageKey = linkTable.getMessageKeyByUID(UID);
+                if (frame != null) {
+                    return messageLink.putSharedFrame(messageKey, frame, messagePackage, UID);
+                }
+                return messageLink.putDataPackage(messageKey, messagePackage.setSelectionKey(messageKey).setUID(UID));
             }
             case LinkTable.LINK_1 -> {
-                linkTable.putMessagePackage(UID, messagePackage);
-                linkTable.setMessageLinkStata(UID, LinkTable.LINK_2);
                 return putCommandPackage(UID, new CommandPackage(DataPackage.WAY_BUILD_LINK
-                        , DataPackage.TYPE_MESSAGE_ADDRESS, messagAddress.getBytes()));
+                        , DataPackage.TYPE_MESSAGE_ADDRESS, messagAddress.getBytes())) ? Link.PUT_QUEUED : Link.PUT_REJECTED;
+            }
+            case LinkTable.OFFLINE -> {
+                // 存入离线存储的同时目标可能已经上线
+                if (linkTable.requestMessageLink(UID)) {
+                    putCommandPackage(UID, new CommandPackage(DataPackage.WAY_BUILD_LINK
+                            , DataPackage.TYPE_MESSAGE_ADDRESS, messagAddress.getBytes()));
+                } else {
+                    messageLink.replay(UID);
+                }
+                return Link.PUT_QUEUED;
             }
             case null -> {
-                NetLog.debug("发送 [MessagePackage] 时,目标UID [$] 不存在", UID);
-                return false;
+                NetLog.debug("发送 [MessagePackage] 时,存入离线存储失败,目标UID [$]", UID);
+                return Link.PUT_REJECTED;
+            }
+            default -> {
+                return Link.PUT_QUEUED;
             }
-            default -> NetLog.error(new IllegalStateException());
         }
-        return true;
     }
-    public boolean putFilePackage(String UID, FilePackage filePackage) {
-        SelectionKey fileKey = linkTable.getFileKeyByUID(UID);
-        switch (linkTable.getFileLinkStata(UID)) {
+    /**
+     * 集群模式下UID不在本节点而在其他节点在线时返回该节点;其他节点转发来的数据包只在本节点投递
+     */
+    private String remoteNode(String UID, DataPackage dataPackage) {
+        if (sessionDirectory == null || clusterLink.isOwner(dataPackage.getSelectionKey())) {
+            return null;
+        }
+        return linkTable.locateRemote(UID);
+    }
+    /**
+     * @return Link.PUT_ACCEPTED 已放入发送队列, Link.PUT_QUEUED 连接未就绪已暂存, Link.PUT_REJECTED 目标不存在或发送队列已满
+     */
+    public byte putFilePackage(String UID, FilePackage filePackage) {
+        Byte state = linkTable.offerFilePackage(UID, filePackage);
+        switch (state) {
             case LinkTable.READY -> {
-                fileLink.putDataPackage(fileKey, filePackage.setSelectionKey(fileKey).setUID(UID));
-            }
-            case LinkTable.VERIFY -> {
-                for (int i = 0; !linkTable.fileQueueEmpty(UID) && i < 100; i++) {
-                    NetTool.sleep();
-                }
-                if (linkTable.fileQueueEmpty(UID)) {
-                    fileLink.putDataPackage(fileKey, filePackage.setSelectionKey(fileKey).setUID(UID));
-                } else {
-                    linkTable.putFilePackage(UID, filePackage);
-                }
-            }
-            case LinkTable.LINK_2 -> {
-                linkTable.putFilePackage(UID, filePackage);
+                SelectionKey fileKey = linkTable.getFileKeyByUID(UID);
+                return fileLink.putDataPackage(fileKey, filePackage.setSelectionKey(fileKey).setUID(UID));
             }
             case LinkTable.LINK_1 -> {
-                linkTable.putFilePackage(UID, filePackage);
-                linkTable.setFileLinkStata(UID, LinkTable.LINK_2);
                 return putCommandPackage(UID, new CommandPackage(DataPackage.WAY_BUILD_LINK
-                        , DataPackage.TYPE_FILE_ADDRESS, fileAddress.getBytes()));
+                        , DataPackage.TYPE_FILE_ADDRESS, fileAddress.getBytes())) ? Link.PUT_QUEUED : Link.PUT_REJECTED;
             }
             case null -> {
                 NetLog.debug("发送 [FilePackage] 时,目标UID [$] 不存在", UID);
-                return false;
+                return Link.PUT_REJECTED;
+            }
+            default -> {
+                return Link.PUT_QUEUED;
             }
-            default -> NetLog.error(new IllegalStateException());
         }
-        return true;
     }
 
     public CommandPackage getCommandPackage() throws NetException {
@@ -194,13 +349,31 @@ public class NetServer {
     public boolean isOnline(String UID) {
         return linkTable.getCommandKeyByUID(UID) != null;
     }
-    public Set<String> getOnlineUID() {
+    /**
+     * 在线UID的只读实时视图,不复制
+     */
+    public NavigableSet<String> getOnlineUID() {
         return linkTable.getAllUID();
     }
+    /**
+     * 分页查询在线UID,见LinkTable.getOnlineUID
+     */
+    public List<String> getOnlineUID(String prefix, String afterUID, int limit) {
+        return linkTable.getOnlineUID(prefix, afterUID, limit);
+    }
+    public int onlineCount() {
+        return linkTable.onlineCount();
+    }
 
     public void setFlow(long capacity, long rate) {
         accept.setTokenBucket(capacity, rate);
     }
+    /**
+     * 单个来源IP的新建连接速率,默认容量200,每秒100个,最多记录10000个来源;capacity为0时不限制
+     */
+    public void setSourceFlow(long capacity, long rate, int maxSourceCount) {
+        accept.setSourceTokenBucket(capacity, rate, maxSourceCount);
+    }
     public void setCommandMaxLinkCount(int maxLinkCount) {
         commandLink.setMaxLinkCount(maxLinkCount);
     }
@@ -210,6 +383,162 @@ public class NetServer {
     public void setFileMaxLinkCount(int maxLinkCount) {
         fileLink.setMaxLinkCount(maxLinkCount);
     }
+    public void setMuxMaxLinkCount(int maxLinkCount) {
+        muxLink.setMaxLinkCount(maxLinkCount);
+    }
+    /**
+     * 多路复用连接上文件内容每个分块的字节数,默认64K减去帧头与taskId,使分块帧可使用缓冲池
+     */
+    public void setMuxFileChunkSize(int fileChunkSize) {
+        muxLink.setFileChunkSize(fileChunkSize);
+    }
+    /**
+     * 多路复用连接上单个帧的最大长度,默认只容纳一个文件分块,需收发更大的指令与消息时调高,需在accept()前调用
+     */
+    public void setMuxMaxFrameSize(int maxFrameSize) {
+        muxLink.setMaxFrameSize(maxFrameSize);
+    }
+    /**
+     * 文件连接上文件内容每个分块的字节数,默认1M,连接断开后从对方已接收的分块处续传
+     */
+    public void setFileChunkSize(int fileChunkSize) {
+        fileLink.setFileChunkSize(fileChunkSize);
+    }
+    /**
+     * 未接收完整的文件保留供续传的时间与数量上限,默认30分钟,10000个
+     */
+    public void setPartialFileLimit(long ttl, int maxCount) {
+        fileLink.setPartialFileLimit(ttl, maxCount);
+    }
+    /**
+     * 客户端开启了分段连接时,大文件至多分为maxStripeCount个区间并行发送,默认4
+     * @param stripeMinSize 每个区间的最小字节数,默认8M
+     */
+    public void setFileStripe(int maxStripeCount, long stripeMinSize) {
+        fileLink.setFileStripe(maxStripeCount, stripeMinSize);
+    }
+    /**
+     * 文件连接上接收的文件按内容哈希存入storePath,相同内容只存一份,客户端开启去重后已有的文件不再上传
+     * 此时交付的文件位于存储目录中,不应修改或删除,用完后调用releaseFile()
+     * @param ttl 未被引用的文件保留的时间,超时后删除,单位(ms)
+     */
+    public void setFileStore(String storePath, long ttl) throws FileNotFoundException {
+        fileLink.setFileStore(storePath, ttl);
+    }
+    /**
+     * 释放接收的文件在存储中的引用,未设置存储目录或文件不在存储中时忽略
+     */
+    public void releaseFile(File file) {
+        FileStore fileStore = fileLink.getFileStore();
+        if (fileStore != null) {
+            fileStore.release(file);
+        }
+    }
+
+    /**
+     * 所有客户端连接合计的上传、下载速率,单位(字节/秒),不大于0时不限制(默认);运行中可修改
+     * 超出速率时连接暂停读取或发送,共用限速的各传输轮流进行;集群节点之间的转发不计入
+     */
+    public void setBandwidth(long uploadRate, long downloadRate) {
+        bandwidthTable.setRate(uploadRate, downloadRate);
+    }
+    public void setCommandBandwidth(long uploadRate, long downloadRate) {
+        commandLink.setRate(uploadRate, downloadRate);
+    }
+    public void setMessageBandwidth(long uploadRate, long downloadRate) {
+        messageLink.setRate(uploadRate, downloadRate);
+    }
+    public void setFileBandwidth(long uploadRate, long downloadRate) {
+        fileLink.setRate(uploadRate, downloadRate);
+    }
+    public void setMuxBandwidth(long uploadRate, long downloadRate) {
+        muxLink.setRate(uploadRate, downloadRate);
+    }
+    /**
+     * 每个UID的所有连接合计的上传、下载速率,不大于0时不限制(默认)
+     */
+    public void setUIDBandwidth(long uploadRate, long downloadRate) {
+        bandwidthTable.setUIDRate(uploadRate, downloadRate);
+    }
+    /**
+     * 单独设置某个UID的速率,覆盖setUIDBandwidth(long, long)的默认值
+     */
+    public void setUIDBandwidth(String UID, long uploadRate, long downloadRate) {
+        bandwidthTable.setUIDRate(UID, uploadRate, downloadRate);
+    }
+    public void removeUIDBandwidth(String UID) {
+        bandwidthTable.removeUIDRate(UID);
+    }
+
+    /**
+     * 控制连接与消息连接合并发送的参数,maxCount为1时不合并(默认)
+     */
+    public void setWriteBatch(int maxCount, int maxBytes, long lingerMillis) {
+        commandLink.setWriteBatch(maxCount, maxBytes, lingerMillis);
+        messageLink.setWriteBatch(maxCount, maxBytes, lingerMillis);
+        muxLink.setWriteBatch(maxCount, maxBytes, lingerMillis);
+        clusterLink.setWriteBatch(maxCount, maxBytes, lingerMillis);
+    }
+    /**
+     * 工作线程模式,Link.WORKER_POOL(默认)或Link.WORKER_VIRTUAL,需在accept()前调用
+     */
+    public void setWorkerMode(byte workerMode) {
+        commandLink.setWorkerMode(workerMode);
+        messageLink.setWorkerMode(workerMode);
+        fileLink.setWorkerMode(workerMode);
+        muxLink.setWorkerMode(workerMode);
+        clusterLink.setWorkerMode(workerMode);
+    }
+    /**
+     * 每个连接发送队列的高低水位,默认字节数高水位64M,低水位32M,数量不限
+     */
+    public void setSendWaterMark(int lowCount, int highCount, long lowBytes, long highBytes) {
+        for (Link link : new Link[]{commandLink, messageLink, fileLink, muxLink, clusterLink}) {
+            link.setSendWaterMark(lowCount, highCount, lowBytes, highBytes);
+        }
+    }
+    /**
+     * 发送队列中最早的数据包等待超过maxQueueAge毫秒时断开该连接,为0(默认)时不限制
+     */
+    public void setMaxQueueAge(long maxQueueAge) {
+        for (Link link : new Link[]{commandLink, messageLink, fileLink, muxLink, clusterLink}) {
+            link.setMaxQueueAge(maxQueueAge);
+        }
+    }
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        for (Link link : new Link[]{commandLink, messageLink, fileLink, muxLink, clusterLink}) {
+            link.setWritabilityListener(writabilityListener);
+        }
+    }
+    /**
+     * 每次可读事件最多解码的帧数,默认为16
+     */
+    public void setReadFrameBudget(int readFrameBudget) {
+        commandLink.setReadFrameBudget(readFrameBudget);
+        messageLink.setReadFrameBudget(readFrameBudget);
+        fileLink.setReadFrameBudget(readFrameBudget);
+        muxLink.setReadFrameBudget(readFrameBudget);
+        clusterLink.setReadFrameBudget(readFrameBudget);
+    }
+
+    /**
+     * 每种连接使用的Reactor(Selector线程)数,默认为1,需在accept()前调用
+     */
+    public void setReactorCount(int reactorCount) {
+        this.reactorCount = reactorCount;
+    }
+    /**
+     * 新连接分配Reactor的策略 ReactorGroup.ROUND_ROBIN / ReactorGroup.LEAST_LOADED
+     */
+    public void setReactorStrategy(byte reactorStrategy) {
+        this.reactorStrategy = reactorStrategy;
+    }
+    /**
+     * 开启后三种连接共用一组Reactor,同一UID的消息及文件连接会被迁移到其控制连接所在的Reactor
+     */
+    public void setReactorPinned(boolean reactorPinned) {
+        this.reactorPinned = reactorPinned;
+    }
 
     public void setLogLevel(int level) {
         NetLog.setLevel(level);
@@ -221,11 +550,86 @@ public class NetServer {
         NetLog.setLogHandler(netLogHandler);
     }
 
+    /**
+     * 开启后记录缓冲池中每个缓冲的申请位置,可通过BufferPool.reportLeak()输出未归还的缓冲
+     */
+    public void setBufferPoolDebug(boolean debug) {
+        BufferPool.setDebug(debug);
+    }
+    public String getBufferPoolStatistics() {
+        return BufferPool.getStatistics();
+    }
+    /**
+     * 附加数据包配对表的限制,先到的一半等待ttl毫秒,超过maxCount个或maxBytes字节时丢弃最早到达的
+     */
+    public void setReassemblyLimit(long ttl, int maxCount, long maxBytes) {
+        linkTable.getReassemblyTable().setLimit(ttl, maxCount, maxBytes);
+    }
+    public String getReassemblyStatistics() {
+        return linkTable.getReassemblyTable().getStatistics();
+    }
+    public String getHeartBeatStatistics() {
+        return "HeartBeat [commandTimeout=" + commandLink.getHeartBeatTimeoutCount()
+                + ", messageTimeout=" + messageLink.getHeartBeatTimeoutCount()
+                + ", fileTimeout=" + fileLink.getHeartBeatTimeoutCount()
+                + ", muxTimeout=" + muxLink.getHeartBeatTimeoutCount()
+                + ", clusterTimeout=" + clusterLink.getHeartBeatTimeoutCount() + "] " + TimingWheel.shared().getStatistics();
+    }
+
     /**
      * 单位(s)
      */
     public void setHeartBeatInterval(int interval) {
         commandLink.setHeartBeatInterval(interval);
+        muxLink.setHeartBeatInterval(interval);
+    }
+
+    /**
+     * 设置离线消息存储,未设置时在启动时使用MappedOfflineStore,目录见setOfflineStorePath()
+     * 不需要持久化时可传入MemoryOfflineStore,重启后丢失
+     */
+    public void setOfflineStore(OfflineStore offlineStore) {
+        this.offlineStore = offlineStore;
+        linkTable.setOfflineStore(offlineStore);
+    }
+    /**
+     * 默认MappedOfflineStore的目录,须由本实例独占,需在accept()前调用
+     * 未设置时为临时目录下的NetOffline-指令端口,指令端口未固定时重启后无法找回之前的离线消息
+     */
+    public void setOfflineStorePath(String offlineStorePath) {
+        this.offlineStorePath = offlineStorePath;
+    }
+    public void setOfflineReplayBatchSize(int batchSize) {
+        messageLink.setReplayBatchSize(batchSize);
+    }
+
+    /**
+     * 开启集群模式,nodeId为本节点在集群中唯一的名称,各节点需共用同一sessionDirectory,需在accept()前调用
+     * 向UID发送指令与消息时优先投递本节点的会话,否则按目录转发到UID所在节点;文件不转发
+     * UID不在任何节点在线时消息存入本节点的离线存储,多节点部署时应使用各节点共用的OfflineStore
+     */
+    public void setCluster(String nodeId, SessionDirectory sessionDirectory) {
+        this.sessionDirectory = sessionDirectory;
+        clusterLink.setNodeId(nodeId);
+        linkTable.setSessionDirectory(sessionDirectory, nodeId);
+    }
+    /**
+     * 添加集群中的其他节点,host与port为该节点的集群端口
+     */
+    public void addClusterNode(String nodeId, String host, int port) {
+        clusterLink.addNode(nodeId, new InetSocketAddress(host, port));
+    }
+    public void removeClusterNode(String nodeId) {
+        clusterLink.removeNode(nodeId);
+    }
+    /**
+     * 集群内各节点需使用相同的密钥,默认为空
+     */
+    public void setClusterSecret(byte[] secret) {
+        clusterLink.setSecret(secret);
+    }
+    public void setClusterMaxLinkCount(int maxLinkCount) {
+        clusterLink.setMaxLinkCount(maxLinkCount);
     }
 
     public void setTempFilePath(String tempFilePath) throws FileNotFoundException {
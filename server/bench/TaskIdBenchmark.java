@@ -0,0 +1,83 @@
+package net.bench;
+
+import net.util.NetTool;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * NetTool.produceTaskId()与原先以MD5生成十六进制字符串的方式对比吞吐,分别以1个与全部处理器个线程运行
+ * 参数: [每轮毫秒数(2000)] [轮数(3)]
+ */
+
+public class TaskIdBenchmark {
+    private static long legacyTaskId;
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int processors = Runtime.getRuntime().availableProcessors();
+        // 预热
+        measure(TaskIdBenchmark::legacyProduceTaskId, processors, millis / 2);
+        measure(NetTool::produceTaskId, processors, millis / 2);
+        for (int threads : new int[]{1, processors}) {
+            for (int round = 1; round <= rounds; round++) {
+                double legacy = measure(TaskIdBenchmark::legacyProduceTaskId, threads, millis);
+                double current = measure(NetTool::produceTaskId, threads, millis);
+                System.out.printf("线程:%d 第%d轮 MD5: %.0f ops/s, TaskId: %.0f ops/s, %.1f倍%n"
+                        , threads, round, legacy, current, current / legacy);
+            }
+        }
+    }
+
+    /**
+     * 原先的NetTool.produceTaskId()
+     */
+    private static synchronized String legacyProduceTaskId() {
+        legacyTaskId++;
+        try {
+            return NetTool.getHashValue((String.valueOf(System.currentTimeMillis() + legacyTaskId)).getBytes(), "MD5");
+        } catch (NoSuchAlgorithmException ignored) {
+            return String.valueOf(System.currentTimeMillis() + legacyTaskId);
+        }
+    }
+
+    /**
+     * threads个线程在millis毫秒内反复调用supplier,返回每秒调用次数;取hashCode以模拟用作map的键
+     */
+    private static double measure(Supplier<?> supplier, int threads, long millis) throws InterruptedException {
+        LongAdder count = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+                long local = 0;
+                int hash = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int j = 0; j < 256; j++) {
+                        hash ^= supplier.get().hashCode();
+                    }
+                    local += 256;
+                }
+                count.add(local);
+                sink ^= hash;
+                done.countDown();
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        return count.sum() * 1e9 / (System.nanoTime() - startTime);
+    }
+}
\ No newline at end of file
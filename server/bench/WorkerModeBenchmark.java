@@ -0,0 +1,131 @@
+package net.bench;
+
+import net.link.Link;
+import net.util.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 两种工作线程模式在消息与文件混合负载下的对比,线程池与Link.start()创建的相同
+ * 消息任务申请、填充并归还一个1K的缓冲;文件任务写入256K并等待10ms,模拟阻塞的文件传输
+ * 参数: [持续秒数(5)] [每秒消息数(50000)] [每秒文件数(200)]
+ */
+
+public class WorkerModeBenchmark {
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final long FILE_WAIT = 10;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int messageRate = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int fileRate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        System.out.printf("持续 %ds, 每秒 %d 条消息, %d 个文件, %d 个处理器%n"
+                , seconds, messageRate, fileRate, Runtime.getRuntime().availableProcessors());
+        // 预热一轮,不计结果
+        run(Link.WORKER_POOL, 1, messageRate, fileRate, false);
+        run(Link.WORKER_VIRTUAL, 1, messageRate, fileRate, false);
+        run(Link.WORKER_POOL, seconds, messageRate, fileRate, true);
+        run(Link.WORKER_VIRTUAL, seconds, messageRate, fileRate, true);
+    }
+
+    private static void run(byte workerMode, int seconds, int messageRate, int fileRate, boolean print) throws Exception {
+        ExecutorService workPool = Link.newWorkPool(workerMode, "Benchmark");
+        File file = File.createTempFile("WorkerModeBenchmark", ".tmp");
+        long[] latencies = new long[seconds * messageRate];
+        AtomicInteger latencyCount = new AtomicInteger();
+        LongAdder messageRejected = new LongAdder(), fileDone = new LongAdder(), fileRejected = new LongAdder();
+        String before = BufferPool.getStatistics();
+
+        long startTime = System.nanoTime();
+        double fileCredit = 0;
+        for (int millis = 0; millis < seconds * 1000; millis++) {
+            long due = startTime + TimeUnit.MILLISECONDS.toNanos(millis);
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            for (int i = 0; i < messageRate / 1000; i++) {
+                long submitTime = System.nanoTime();
+                try {
+                    workPool.submit(() -> {
+                        message();
+                        int index = latencyCount.getAndIncrement();
+                        if (index < latencies.length) {
+                            latencies[index] = System.nanoTime() - submitTime;
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    messageRejected.increment();
+                }
+            }
+            for (fileCredit += fileRate / 1000.0; fileCredit >= 1; fileCredit--) {
+                try {
+                    workPool.submit(() -> {
+                        file(file);
+                        fileDone.increment();
+                    });
+                } catch (RejectedExecutionException e) {
+                    fileRejected.increment();
+                }
+            }
+        }
+        workPool.shutdown();
+        workPool.awaitTermination(1, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - startTime;
+        file.delete();
+        if (!print) {
+            return;
+        }
+
+        int count = Math.min(latencyCount.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.println(workerMode == Link.WORKER_VIRTUAL ? "== WORKER_VIRTUAL" : "== WORKER_POOL");
+        System.out.printf("消息 完成:%d 拒绝:%d 延迟(us) p50:%d p99:%d max:%d%n", count, messageRejected.sum()
+                , percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        System.out.printf("文件 完成:%d 拒绝:%d 总耗时:%dms%n", fileDone.sum(), fileRejected.sum(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+        System.out.println("运行前 " + before);
+        System.out.println("运行后 " + BufferPool.getStatistics());
+    }
+
+    private static void message() {
+        ByteBuffer buffer = BufferPool.acquire(1024);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) buffer.position());
+        }
+        BufferPool.release(buffer);
+    }
+    private static void file(File file) {
+        ByteBuffer buffer = BufferPool.acquire(BufferPool.MAX_POOLED_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (long position = 0; position < FILE_SIZE; ) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+            }
+            Thread.sleep(FILE_WAIT);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+    private static long percentile(long[] sorted, double ratio) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * ratio) - 1)]);
+    }
+}
\ No newline at end of file
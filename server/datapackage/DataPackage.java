@@ -1,5 +1,7 @@
 package net.datapackage;
 
+import net.util.TaskId;
+
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -7,15 +9,14 @@ import java.text.SimpleDateFormat;
 
 public abstract class DataPackage {
     protected static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    public static final int HEADER_SIZE = 17;
+    public static final int HEADER_SIZE = 31;
 
     protected byte way;
     protected byte type;
     protected byte appendState;
     protected long time;
     protected int dataSize;
-    protected short taskIdLength;
-    protected byte[] taskId;
+    protected TaskId taskId;
     protected byte[] data;
 
     protected DataPackage appendDataPackage;
@@ -111,24 +112,13 @@ public abstract class DataPackage {
         this.data = data;
         return this;
     }
-    public short getTaskIdLength() {
-        return taskIdLength;
-    }
-    public String getTaskId() {
-        if (taskId != null) {
-            return new String(taskId);
-        } else {
-            return null;
-        }
+    public TaskId getTaskId() {
+        return taskId;
     }
-    public DataPackage setTaskId(String taskId) {
-        this.taskId = taskId.getBytes();
-        taskIdLength = (short) taskId.length();
+    public DataPackage setTaskId(TaskId taskId) {
+        this.taskId = taskId;
         return this;
     }
-    public byte[] getTaskIdBytes() {
-        return taskId;
-    }
 
     public DataPackage setSelectionKey(SelectionKey key) {
         this.key = key;
@@ -210,6 +200,8 @@ public abstract class DataPackage {
     public static final byte WAY_TOKEN_VERIFY = 111;
     // 建立连接
     public static final byte WAY_BUILD_LINK = 112;
+    // 文件续传协商
+    public static final byte WAY_FILE_RESUME = 113;
     // 检查更新
     public static final byte WAY_CHECK_UPDATE = 120;
 
@@ -257,6 +249,8 @@ public abstract class DataPackage {
     public static final byte TYPE_MESSAGE_ADDRESS = 100;
     // 文件地址
     public static final byte TYPE_FILE_ADDRESS = 101;
+    // 文件分段连接,Token验证帧使用此类型时作为文件连接之外并行发送大文件的连接
+    public static final byte TYPE_FILE_STRIPE = 102;
     // 更新文件
     public static final byte TYPE_UPDATE_FILE = 120;
 
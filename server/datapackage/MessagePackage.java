@@ -4,7 +4,7 @@ import java.io.IOException;
 import java.nio.channels.SocketChannel;
 
 public class MessagePackage extends DataPackage {
-    public static final int HEADER_SIZE = 21;
+    public static final int HEADER_SIZE = 35;
     private short senderLenght;
     private short receiverLenght;
     private byte[] sender;
@@ -0,0 +1,78 @@
+package net.link;
+
+import net.NetServer;
+import net.datapackage.DataPackage;
+import net.log.NetLog;
+import net.util.BandwidthTable;
+import net.util.BufferPool;
+import net.util.LinkTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * 可合并发送的连接,数据包编码为帧后以一次聚集写发出
+ */
+
+public abstract class BatchLink extends Link {
+
+    public BatchLink(NetServer netServer, LinkTable linkTable) throws IOException {
+        super(netServer, linkTable);
+    }
+
+    @Override
+    protected void sendReceive(SelectionKey key, DataPackage dataPackage) {
+        sendBatch(key, List.of(dataPackage));
+    }
+
+    /**
+     * 合并发送一批数据包,所有帧以一次聚集写发出
+     */
+    protected void sendBatch(SelectionKey key, List<DataPackage> batch) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+        long delay = 0;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuffer[] frame = batch.get(i) instanceof SharedPackage sharedPackage
+                        ? wrapShared(sharedPackage) : encode(batch.get(i));
+                buffers[i * 2] = frame[0];
+                buffers[i * 2 + 1] = frame[1];
+            }
+            long bytes = writeFully(channel, buffers);
+            for (DataPackage dataPackage : batch) {
+                NetLog.debug("发送 {$} 成功", dataPackage);
+            }
+            delay = consume(key, BandwidthTable.DOWNLOAD, bytes);
+        } catch (IOException e) {
+            NetLog.error("发送 {$} 失败", batch.size() == 1 ? batch.get(0) : batch.size() + "个数据包");
+            NetLog.error(e);
+            cancelLink(key);
+        } finally {
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i) instanceof SharedPackage sharedPackage) {
+                    sharedPackage.release();
+                }
+                if (buffers[i * 2] != EMPTY_BUFFER) {
+                    BufferPool.release(buffers[i * 2]);
+                }
+            }
+            sendFinish(key, delay);
+        }
+    }
+
+    /**
+     * 共享帧写出时使用的[头部, 帧]两个缓冲,头部取自BufferPool或为EMPTY_BUFFER
+     */
+    protected ByteBuffer[] wrapShared(SharedPackage sharedPackage) {
+        return new ByteBuffer[]{EMPTY_BUFFER, sharedPackage.getFrame().duplicate()};
+    }
+
+    /**
+     * 编码为[头部, 数据]两个缓冲,头部缓冲取自BufferPool,写出后由调用方归还
+     */
+    protected abstract ByteBuffer[] encode(DataPackage dataPackage) throws IOException;
+}
\ No newline at end of file
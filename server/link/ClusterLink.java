@@ -0,0 +1,359 @@
+package net.link;
+
+import net.NetServer;
+import net.datapackage.CommandPackage;
+import net.datapackage.DataPackage;
+import net.datapackage.MessagePackage;
+import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.LinkTable;
+import net.util.NetTool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 集群节点之间的连接,将发往其他节点上UID的指令与消息转发到该节点,由该节点按本地会话投递
+ * 帧结构: 类型(1) + 长度(4) + UID长度(2) + UID + 控制连接或消息连接上的原有帧
+ * 发送使用本节点主动建立的连接,首次转发时建立,首帧为携带节点名与集群密钥的HELLO;对方建立的连接只用于接收
+ * 空闲超过心跳间隔的连接被断开,下次转发时重新建立
+ */
+
+public class ClusterLink extends BatchLink {
+    public static final int HEADER_SIZE = 5;
+    // 节点验证,UID字段为节点名,帧数据为集群密钥
+    public static final byte KIND_HELLO = 1;
+    public static final byte KIND_COMMAND = 2;
+    public static final byte KIND_MESSAGE = 3;
+    // 连接建立前每个节点最多暂存的数据包数
+    private static final int MAX_PENDING_COUNT = 4096;
+
+    private final ConcurrentHashMap<String, Node> nodeHashMap;
+    // 已通过验证的接收连接及其节点名
+    private final ConcurrentHashMap<SelectionKey, String> verifiedHashMap;
+    private String nodeId;
+    private byte[] secret;
+    private int connectTimeout, maxFrameSize;
+
+    public ClusterLink(NetServer netServer, LinkTable linkTable) throws IOException {
+        super(netServer, linkTable);
+        nodeHashMap = new ConcurrentHashMap<>();
+        verifiedHashMap = new ConcurrentHashMap<>();
+        secret = new byte[0];
+        connectTimeout = 3000;
+        maxFrameSize = 64 * 1024 * 1024;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+    public String getNodeId() {
+        return nodeId;
+    }
+    /**
+     * 集群内各节点需使用相同的密钥,HELLO中的密钥不一致时断开
+     */
+    public void setSecret(byte[] secret) {
+        this.secret = secret.clone();
+    }
+    /**
+     * 单位(ms)
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+    /**
+     * 单个帧的最大长度,超过时断开连接,需在start()前调用
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public void addNode(String nodeId, InetSocketAddress address) {
+        Node oldNode = nodeHashMap.put(nodeId, new Node(nodeId, address));
+        if (oldNode != null) {
+            oldNode.close();
+        }
+    }
+    public void removeNode(String nodeId) {
+        Node node = nodeHashMap.remove(nodeId);
+        if (node != null) {
+            node.close();
+        }
+    }
+
+    /**
+     * 将dataPackage转发给nodeId上的UID,连接尚未建立时暂存,附加数据包随后一并转发
+     * @return Link.PUT_ACCEPTED 已放入发送队列, Link.PUT_QUEUED 连接建立中已暂存, Link.PUT_REJECTED 节点未知或无法转发
+     */
+    public byte forward(String nodeId, String UID, DataPackage dataPackage) {
+        byte kind;
+        switch (dataPackage) {
+            case CommandPackage commandPackage -> kind = KIND_COMMAND;
+            case MessagePackage messagePackage -> kind = KIND_MESSAGE;
+            default -> {
+                NetLog.warn("集群模式不转发 {$} ,目标UID [$] 位于节点 [$]", dataPackage, UID, nodeId);
+                return PUT_REJECTED;
+            }
+        }
+        Node node = nodeHashMap.get(nodeId);
+        if (node == null) {
+            NetLog.warn("转发 {$} 时,目标UID [$] 所在节点 [$] 未知", dataPackage, UID, nodeId);
+            return PUT_REJECTED;
+        }
+        if (dataPackage.getTaskId() == null) {
+            dataPackage.setTaskId(NetTool.produceTaskId());
+        }
+        byte result = node.put(new ForwardPackage(kind, UID, dataPackage));
+        if (result != PUT_REJECTED && dataPackage.getAppendState() == DataPackage.APPEND_1) {
+            DataPackage DP = dataPackage.getAppendDataPackage();
+            if (!dataPackage.getTaskId().equals(DP.getTaskId())) {
+                DP.setTaskId(dataPackage.getTaskId());
+            }
+            forward(nodeId, UID, DP);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException {
+        // 帧内容尚未解码,只能按类型校验;未验证的连接只接受HELLO
+        ClusterDecoder decoder = (ClusterDecoder) Connection.of(key).getDecoder();
+        if (verifiedHashMap.containsKey(key) == (decoder.kind == KIND_HELLO)) {
+            NetLog.warn("连接 [$] (ClusterLink) 未验证节点或重复验证,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException {
+        ForwardPackage forwardPackage = (ForwardPackage) dataPackage;
+        DataPackage DP = forwardPackage.getOrigin();
+        if (forwardPackage.getKind() == KIND_HELLO) {
+            String peerId = forwardPackage.getTarget();
+            byte[] peerSecret = DP.getData() != null ? DP.getData() : new byte[0];
+            if (nodeHashMap.containsKey(peerId) && MessageDigest.isEqual(secret, peerSecret)) {
+                verifiedHashMap.put(key, peerId);
+                NetLog.info("连接 [$] (ClusterLink) 已验证为节点 [$]", ((SocketChannel) key.channel()).getRemoteAddress(), peerId);
+            } else {
+                NetLog.warn("连接 [$] (ClusterLink) 节点 [$] 验证失败,已断开", ((SocketChannel) key.channel()).getRemoteAddress(), peerId);
+                cancelLink(key);
+            }
+            return;
+        }
+        String UID = forwardPackage.getTarget();
+        DP.setSelectionKey(key).setUID(UID);
+        NetLog.debug("接收节点 [$] 转发的 {$}", verifiedHashMap.get(key), DP);
+        if (DP.getAppendState() == DataPackage.APPEND_1 || DP.getAppendState() == DataPackage.APPEND_2) {
+            DataPackage tempDataPackage = linkTable.pairAppendDataPackage(DP);
+            if (tempDataPackage == null) {
+                return;
+            }
+            DP = tempDataPackage.getAppendState() == DataPackage.APPEND_1
+                    ? tempDataPackage.addAppendDataPackage(DP) : DP.addAppendDataPackage(tempDataPackage);
+        }
+        // 来自集群连接的数据包只在本节点投递,不再转发
+        switch (DP) {
+            case CommandPackage commandPackage -> netServer.putCommandPackage(UID, commandPackage);
+            case MessagePackage messagePackage -> netServer.putMessagePackage(UID, messagePackage);
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    protected ByteBuffer[] encode(DataPackage dataPackage) throws IOException {
+        ForwardPackage forwardPackage = (ForwardPackage) dataPackage;
+        ByteBuffer[] frame = switch (forwardPackage.getOrigin()) {
+            case CommandPackage CDP -> linkTable.getCommandLink().encode(CDP);
+            case MessagePackage MDP -> linkTable.getMessageLink().encode(MDP);
+            default -> throw new IllegalStateException();
+        };
+        byte[] target = forwardPackage.getTarget().getBytes();
+        ByteBuffer header = BufferPool.acquire(HEADER_SIZE + 2 + target.length + frame[0].remaining());
+        header.put(forwardPackage.getKind()).putInt(2 + target.length + frame[0].remaining() + frame[1].remaining())
+                .putShort((short) target.length).put(target).put(frame[0]).flip();
+        BufferPool.release(frame[0]);
+        return new ByteBuffer[]{header, frame[1]};
+    }
+
+    @Override
+    protected FrameDecoder<?> newDecoder() {
+        return new ClusterDecoder(maxFrameSize);
+    }
+
+    @Override
+    protected void extraDisposeTimeOutLink(SelectionKey key) {
+        detach(key);
+    }
+
+    @Override
+    protected void cancelLink(SelectionKey key) {
+        detach(key);
+        cancel(key);
+    }
+    private void detach(SelectionKey key) {
+        if (verifiedHashMap.remove(key) != null) {
+            return;
+        }
+        for (Node node : nodeHashMap.values()) {
+            node.detach(key);
+        }
+    }
+
+    protected static class ClusterDecoder extends FrameDecoder<ForwardPackage> {
+        private final CommandLink.CommandDecoder commandDecoder;
+        private final MessageLink.MessageDecoder messageDecoder;
+        private final int maxFrameSize;
+        private byte kind;
+
+        protected ClusterDecoder(int maxFrameSize) {
+            super(HEADER_SIZE, true);
+            this.maxFrameSize = maxFrameSize;
+            commandDecoder = new CommandLink.CommandDecoder();
+            messageDecoder = new MessageLink.MessageDecoder();
+        }
+
+        @Override
+        protected ForwardPackage newDataPackage() {
+            // 由decodeField()按类型创建
+            return null;
+        }
+        @Override
+        protected int decodeHeader(ByteBuffer header) {
+            kind = header.get();
+            int length = header.getInt();
+            if (kind < KIND_HELLO || kind > KIND_MESSAGE || length < 2 || length > maxFrameSize) {
+                return -1;
+            }
+            return length;
+        }
+        @Override
+        protected void decodeField(ByteBuffer field) throws IOException {
+            short targetLength = field.getShort();
+            if (targetLength < 0 || targetLength > field.remaining()) {
+                throw new IOException("非法的UID长度");
+            }
+            byte[] target = new byte[targetLength];
+            field.get(target);
+            DataPackage origin = kind == KIND_MESSAGE ? messageDecoder.decodeFrame(field) : commandDecoder.decodeFrame(field);
+            dataPackage = new ForwardPackage(kind, new String(target), origin);
+        }
+        @Override
+        protected int bodySize() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void release() {
+            super.release();
+            commandDecoder.release();
+            messageDecoder.release();
+        }
+    }
+
+    /**
+     * 集群中的其他节点,持有本节点主动建立的发送连接
+     */
+    private class Node {
+        private final String nodeId;
+        private final InetSocketAddress address;
+        private final ArrayDeque<ForwardPackage> pendingQueue;
+        private SelectionKey key;
+        private boolean connecting, closed;
+
+        private Node(String nodeId, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+            pendingQueue = new ArrayDeque<>();
+        }
+
+        private synchronized byte put(ForwardPackage forwardPackage) {
+            if (key != null && key.isValid()) {
+                return putDataPackage(key, forwardPackage.setSelectionKey(key));
+            }
+            if (closed || pendingQueue.size() >= MAX_PENDING_COUNT) {
+                NetLog.warn("节点 [$] 的待转发队列已满,已丢弃 {$}", nodeId, forwardPackage);
+                return PUT_REJECTED;
+            }
+            pendingQueue.add(forwardPackage);
+            if (!connecting) {
+                connecting = true;
+                connect();
+            }
+            return PUT_QUEUED;
+        }
+
+        private void connect() {
+            try {
+                workPool.submit(() -> {
+                    SocketChannel socketChannel = null;
+                    try {
+                        socketChannel = SocketChannel.open();
+                        socketChannel.socket().connect(address, connectTimeout);
+                        register(socketChannel, this::connected);
+                    } catch (IOException e) {
+                        NetLog.warn("连接节点 [$] ($) 失败", nodeId, address);
+                        NetLog.error(e);
+                        if (socketChannel != null) {
+                            try {
+                                socketChannel.close();
+                            } catch (IOException ex) {
+                                NetLog.error(ex);
+                            }
+                        }
+                        connected(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                NetLog.error(e);
+                connected(null);
+            }
+        }
+        /**
+         * 连接注册完成后先发出HELLO,再按顺序发出暂存的数据包;key为null时丢弃暂存的数据包
+         */
+        private synchronized void connected(SelectionKey newKey) {
+            connecting = false;
+            if (newKey == null || closed) {
+                if (!pendingQueue.isEmpty()) {
+                    NetLog.warn("节点 [$] 不可达,已丢弃 [$] 个待转发的数据包", nodeId, pendingQueue.size());
+                    pendingQueue.clear();
+                }
+                if (newKey != null) {
+                    cancel(newKey);
+                }
+                return;
+            }
+            key = newKey;
+            NetLog.info("已连接节点 [$] ($)", nodeId, address);
+            putDataPackage(key, new ForwardPackage(KIND_HELLO, ClusterLink.this.nodeId
+                    , new CommandPackage(DataPackage.WAY_TOKEN_VERIFY, secret)).setSelectionKey(key));
+            ForwardPackage forwardPackage;
+            while ((forwardPackage = pendingQueue.poll()) != null) {
+                putDataPackage(key, forwardPackage.setSelectionKey(key));
+            }
+        }
+
+        private synchronized void detach(SelectionKey oldKey) {
+            if (key == oldKey) {
+                key = null;
+            }
+        }
+        private synchronized void close() {
+            closed = true;
+            pendingQueue.clear();
+            if (key != null) {
+                cancel(key);
+                key = null;
+            }
+        }
+    }
+}
\ No newline at end of file
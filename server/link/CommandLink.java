@@ -5,14 +5,15 @@ import net.util.LinkTable;
 import net.datapackage.CommandPackage;
 import net.datapackage.DataPackage;
 import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.TaskId;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
-public class CommandLink extends Link {
-    private static final int BUFFER_MAX_SIZE = 8*1024;
+public class CommandLink extends BatchLink {
     private String messageAddress, fileAddress;
 
     public CommandLink(NetServer netServer, LinkTable linkTable) throws IOException {
@@ -27,133 +28,74 @@ public class CommandLink extends Link {
     }
 
     @Override
-    protected void receiveReceive(SelectionKey key) {
+    protected boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException {
+        // 验证Token
+        if (dataPackage.getWay() != DataPackage.WAY_LOGIN && dataPackage.getWay() != DataPackage.WAY_TOKEN_VERIFY
+                && dataPackage.getWay() != DataPackage.WAY_HEART_BEAT && linkTable.getToken(key) == null) {
+            NetLog.warn("连接 [$] 无Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
-        CommandPackage CDP = new CommandPackage();
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(CommandPackage.HEADER_SIZE);
-            while (buffer.hasRemaining()) {
-                if (channel.read(buffer) == -1) {
-                    cancelCommandLink(key);
-                    return;
-                }
-            }
-            buffer.flip();
-            CDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
-                    .setTime(buffer.getLong()).setDataSize(buffer.getInt());
-            // 验证Token
-            if (CDP.getWay() != DataPackage.WAY_LOGIN && CDP.getWay() != DataPackage.WAY_TOKEN_VERIFY
-                    && CDP.getWay() != DataPackage.WAY_HEART_BEAT && linkTable.getToken(key) == null) {
-                NetLog.warn("连接 [$] 无Token,已断开", channel.getRemoteAddress());
-                cancelCommandLink(key);
-                return;
-            }
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.wrap(taskIdBytes);
-            while (buffer.hasRemaining()) {
-                channel.read(buffer);
-            }
-            buffer.flip();
-            buffer.get(taskIdBytes);
-            CDP.setTaskId(new String(taskIdBytes));
-            int dataSize = CDP.getDataSize();
-            if (dataSize > 0) {
-                byte[] data = new byte[dataSize];
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                for (int residue = dataSize, readCount = 0; residue > 0;residue -= readCount, readCount = 0) {
-                    if (residue < buffer.remaining()) {
-                        buffer.limit(residue);
+        CommandPackage CDP = (CommandPackage) dataPackage;
+        CDP.setSelectionKey(key).setUID(linkTable.getUID(key));
+        if (CDP.getWay() != DataPackage.WAY_HEART_BEAT) {
+            NetLog.debug("接收 {$}", CDP);
+        }
+
+        switch (CDP.getWay()) {
+            case DataPackage.WAY_BUILD_LINK -> {
+                String UID = linkTable.getUID(key);
+                switch (CDP.getType()) {
+                    case DataPackage.TYPE_MESSAGE_ADDRESS -> {
+                        putDataPackage(key, new CommandPackage(DataPackage.WAY_BUILD_LINK
+                                , DataPackage.TYPE_MESSAGE_ADDRESS, messageAddress.getBytes())
+                                .setSelectionKey(key).setUID(UID));
+                        linkTable.setMessageLinkStata(UID, LinkTable.LINK_2);
                     }
-                    while (buffer.hasRemaining()) {
-                        readCount += channel.read(buffer);
+                    case DataPackage.TYPE_FILE_ADDRESS -> {
+                        putDataPackage(key, new CommandPackage(DataPackage.WAY_BUILD_LINK
+                                , DataPackage.TYPE_FILE_ADDRESS, fileAddress.getBytes())
+                                .setSelectionKey(key).setUID(UID));
+                        linkTable.setFileLinkStata(UID, LinkTable.LINK_2);
                     }
-                    buffer.flip();
-                    buffer.get(data, dataSize - residue,
-                            (Math.min(residue, buffer.remaining())));
-                    buffer.clear();
                 }
-                CDP.setData(data);
             }
-            CDP.setSelectionKey(key).setUID(linkTable.getUID(key));
-            if (CDP.getWay() != DataPackage.WAY_HEART_BEAT) {
-                NetLog.debug("接收 {$}", CDP);
-            }
-
-            switch (CDP.getWay()) {
-                case DataPackage.WAY_BUILD_LINK -> {
-                    String UID = linkTable.getUID(key);
-                    switch (CDP.getType()) {
-                        case DataPackage.TYPE_MESSAGE_ADDRESS -> {
-                            putDataPackage(key, new CommandPackage(DataPackage.WAY_BUILD_LINK
-                                    , DataPackage.TYPE_MESSAGE_ADDRESS, messageAddress.getBytes())
-                                    .setSelectionKey(key).setUID(UID));
-                            linkTable.setMessageLinkStata(UID, LinkTable.LINK_2);
-                        }
-                        case DataPackage.TYPE_FILE_ADDRESS -> {
-                            putDataPackage(key, new CommandPackage(DataPackage.WAY_BUILD_LINK
-                                    , DataPackage.TYPE_FILE_ADDRESS, fileAddress.getBytes())
-                                    .setSelectionKey(key).setUID(UID));
-                            linkTable.setFileLinkStata(UID, LinkTable.LINK_2);
-                        }
-                    }
-                }
 
-                case DataPackage.WAY_TOKEN_VERIFY -> {
-                    String clientToken = CDP.getContent();
-                    SelectionKey commandKey = linkTable.getCommandKeyByToken(clientToken);
-                    if (commandKey != null) {
-                        NetLog.info("重新建立的连接 [$] Token验证成功", channel.getRemoteAddress());
-                        linkTable.updateLink(commandKey, key);
-                    } else {
-                        NetLog.warn("重新建立的连接 [$] Token验证失败,已断开", channel.getRemoteAddress());
-                        cancelCommandLink(key);
-                    }
+            case DataPackage.WAY_TOKEN_VERIFY -> {
+                byte[] clientToken = CDP.getData();
+                SelectionKey commandKey = linkTable.getCommandKeyByToken(clientToken);
+                if (commandKey != null) {
+                    NetLog.info("重新建立的连接 [$] Token验证成功", channel.getRemoteAddress());
+                    linkTable.updateLink(commandKey, key);
+                } else {
+                    NetLog.warn("重新建立的连接 [$] Token验证失败,已断开", channel.getRemoteAddress());
+                    cancelLink(key);
                 }
+            }
 
-                default -> {
-                    addDataPackage(CDP);
-                }
+            default -> {
+                addDataPackage(CDP);
             }
-        } catch (IOException e) {
-            cancelCommandLink(key);
-        } finally {
-            receiveFinish(key);
         }
     }
 
     @Override
-    protected void sendReceive(SelectionKey key, DataPackage dataPackage) {
-        SocketChannel channel = (SocketChannel) key.channel();
+    protected ByteBuffer[] encode(DataPackage dataPackage) {
         CommandPackage CDP = (CommandPackage) dataPackage;
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(CommandPackage.HEADER_SIZE + CDP.getTaskIdLength());
-            buffer.put(CDP.getWay()).put(CDP.getType()).put(CDP.getAppendState()).putLong(CDP.getTime())
-                    .putInt(CDP.getDataSize()).putShort(CDP.getTaskIdLength()).put(CDP.getTaskIdBytes());
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
-            }
-            int dataSize = CDP.getDataSize();
-            if (dataSize > 0) {
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                byte[] data = CDP.getData();
-                for (int residue = dataSize, writeCount = 0; residue > 0;residue -= writeCount, writeCount = 0) {
-                    buffer.put(data, dataSize - residue, Math.min(residue, buffer.remaining()));
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        writeCount += channel.write(buffer);
-                    }
-                    buffer.clear();
-                }
-            }
-            NetLog.debug("发送 {$} 成功", CDP);
-        } catch (IOException e) {
-            NetLog.error("发送 {$} 失败", CDP);
-            NetLog.error(e);
-            cancelCommandLink(key);
-        } finally {
-            sendFinish(key);
-        }
+        ByteBuffer header = BufferPool.acquire(CommandPackage.HEADER_SIZE);
+        header.put(CDP.getWay()).put(CDP.getType()).put(CDP.getAppendState()).putLong(CDP.getTime()).putInt(CDP.getDataSize());
+        TaskId.write(header, CDP.getTaskId()).flip();
+        return new ByteBuffer[]{header, wrapData(CDP)};
+    }
+
+    @Override
+    protected FrameDecoder<?> newDecoder() {
+        return new CommandDecoder();
     }
 
     @Override
@@ -161,8 +103,28 @@ public class CommandLink extends Link {
         linkTable.cancel(key);
     }
 
-    private void cancelCommandLink(SelectionKey key) {
+    @Override
+    protected void cancelLink(SelectionKey key) {
         linkTable.cancel(key);
         cancel(key);
     }
+
+    protected static class CommandDecoder extends FrameDecoder<CommandPackage> {
+        protected CommandDecoder() {
+            super(CommandPackage.HEADER_SIZE, true);
+        }
+
+        @Override
+        protected CommandPackage newDataPackage() {
+            return new CommandPackage();
+        }
+        @Override
+        protected int decodeHeader(ByteBuffer header) {
+            dataPackage.setWay(header.get()).setType(header.get()).setAppendState(header.get())
+                    .setTime(header.getLong()).setDataSize(header.getInt()).setTaskId(TaskId.read(header));
+            return 0;
+        }
+        @Override
+        protected void decodeField(ByteBuffer field) {}
+    }
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+package net.link;
+
+import net.util.Session;
+import net.util.TimingWheel;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * 连接的附加信息,作为SelectionKey的attachment保存
+ */
+
+public class Connection {
+    private final Link link;
+    private final FrameDecoder<?> decoder;
+    private volatile Reactor reactor;
+    private volatile Session session;
+    private volatile long lastActivityTime;
+    private volatile TimingWheel.Timeout heartBeatTimeout;
+
+    public Connection(Link link, Reactor reactor) {
+        this.link = link;
+        this.reactor = reactor;
+        decoder = link.newDecoder();
+    }
+
+    public static Connection of(SelectionKey key) {
+        return (Connection) key.attachment();
+    }
+
+    public Link getLink() {
+        return link;
+    }
+    public FrameDecoder<?> getDecoder() {
+        return decoder;
+    }
+    public Reactor getReactor() {
+        return reactor;
+    }
+    protected void setReactor(Reactor reactor) {
+        this.reactor = reactor;
+    }
+    public Session getSession() {
+        return session;
+    }
+    public void setSession(Session session) {
+        this.session = session;
+    }
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+    protected void setLastActivityTime(long lastActivityTime) {
+        this.lastActivityTime = lastActivityTime;
+    }
+    protected TimingWheel.Timeout getHeartBeatTimeout() {
+        return heartBeatTimeout;
+    }
+    protected void setHeartBeatTimeout(TimingWheel.Timeout heartBeatTimeout) {
+        this.heartBeatTimeout = heartBeatTimeout;
+    }
+}
\ No newline at end of file
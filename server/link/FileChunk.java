@@ -0,0 +1,181 @@
+package net.link;
+
+import net.datapackage.DataPackage;
+import net.datapackage.FilePackage;
+import net.log.NetLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 多路复用连接或文件连接上文件内容的一个分块
+ * 发送时由同一文件的各分块共用打开的FileChannel;文件可分为多个区间在不同连接上并行发送,
+ * 各区间的最后一块读出或被丢弃后释放,全部释放后关闭;接收时数据随帧读入
+ */
+
+class FileChunk extends DataPackage {
+    private final Source source;
+    private final long offset, end;
+
+    /**
+     * 发送origin中从offset开始的至多size字节
+     */
+    FileChunk(Source source, long offset, int size) {
+        this(source, offset, source.origin.getFileSize(), size);
+    }
+    /**
+     * 发送区间[offset, end)的首个分块,区间内后续分块由next()取得
+     */
+    FileChunk(Source source, long offset, long end, int chunkSize) {
+        this.source = source;
+        this.offset = offset;
+        this.end = end;
+        taskId = source.origin.getTaskId();
+        way = source.origin.getWay();
+        type = source.origin.getType();
+        time = source.origin.getTime();
+        dataSize = (int) Math.min(end - offset, chunkSize);
+    }
+    /**
+     * 接收到的分块
+     */
+    FileChunk() {
+        source = null;
+        offset = -1;
+        end = -1;
+    }
+
+    static Source open(FilePackage origin) throws IOException {
+        return new Source(origin, new RandomAccessFile(origin.getFile(), "r"));
+    }
+
+    /**
+     * 区间内的下一个分块,已是最后一块时返回null
+     */
+    FileChunk next(int chunkSize) {
+        long nextOffset = offset + dataSize;
+        return nextOffset < end ? new FileChunk(source, nextOffset, end, chunkSize) : null;
+    }
+    /**
+     * 将分块内容读入buffer,区间最后一块读出后释放文件
+     */
+    void read(ByteBuffer buffer) throws IOException {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + dataSize);
+        for (long position = offset; buffer.hasRemaining(); ) {
+            int readCount = source.fileChannel.read(buffer, position);
+            if (readCount < 0) {
+                throw new IOException("文件长度已改变 " + source.origin.getFile());
+            }
+            position += readCount;
+        }
+        buffer.limit(limit);
+        if (offset + dataSize >= end) {
+            close();
+        }
+    }
+    /**
+     * 将分块内容由文件直接写入channel,用于文件连接
+     */
+    void transferTo(WritableByteChannel channel) throws IOException {
+        long chunkEnd = offset + dataSize;
+        if (source.fileChannel.size() < chunkEnd) {
+            throw new IOException("文件长度已改变 " + source.origin.getFile());
+        }
+        for (long position = offset; position < chunkEnd; ) {
+            position += source.fileChannel.transferTo(position, chunkEnd - position, channel);
+        }
+    }
+    /**
+     * 区间结束或被丢弃,释放该区间对文件的引用
+     */
+    void close() {
+        if (source != null) {
+            source.release();
+        }
+    }
+
+    FilePackage getOrigin() {
+        return source.origin;
+    }
+    Source getSource() {
+        return source;
+    }
+    long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "FileChunk [taskId=" + taskId + ", offset=" + offset + ", size=" + formatBytes(dataSize) + "]";
+    }
+
+    static class Source {
+        private final FilePackage origin;
+        private final RandomAccessFile raf;
+        private final FileChannel fileChannel;
+        private boolean closed, begun, interrupted;
+        // 尚未发送完的区间数,打开时即有首个区间
+        private int rangeCount = 1;
+
+        private Source(FilePackage origin, RandomAccessFile raf) {
+            this.origin = origin;
+            this.raf = raf;
+            fileChannel = raf.getChannel();
+        }
+
+        FilePackage getOrigin() {
+            return origin;
+        }
+        /**
+         * 发出首个分块前调用,已开始发送时返回false
+         */
+        synchronized boolean begin() {
+            boolean first = !begun;
+            begun = true;
+            return first;
+        }
+        /**
+         * 在另一条连接上并行发送一个区间
+         */
+        synchronized void acquire() {
+            rangeCount++;
+        }
+        /**
+         * 释放一个区间,全部释放后关闭文件并返回true
+         */
+        synchronized boolean release() {
+            if (--rangeCount > 0) {
+                return false;
+            }
+            close();
+            return true;
+        }
+        /**
+         * 任一区间所在的连接断开时调用,其余区间在下个分块前停止;首次调用返回true,由调用方安排续传
+         */
+        synchronized boolean interrupt() {
+            boolean first = !interrupted;
+            interrupted = true;
+            return first;
+        }
+        synchronized boolean isInterrupted() {
+            return interrupted;
+        }
+
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                NetLog.error(e);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -5,26 +5,50 @@ import net.util.LinkTable;
 import net.datapackage.DataPackage;
 import net.datapackage.FilePackage;
 import net.log.NetLog;
+import net.util.BandwidthTable;
+import net.util.BufferPool;
+import net.util.FileStore;
+import net.util.TaskId;
 import net.util.NetTool;
+import net.util.PartialFileTable;
+import net.util.Session;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileLink extends Link {
-    private static final int BUFFER_MAX_SIZE = 8*1024;
+    // 接收分块内容时每读入该字节数计入一次限速
+    private static final int RECEIVE_QUANTUM = 256 * 1024;
+
+    private final PartialFileTable partialFileTable;
+    // 未设置存储目录时为null,接收的文件不去重
+    private volatile FileStore fileStore;
+    private final ConcurrentHashMap<SelectionKey, Map<TaskId, FileChunk.Source>> sendingHashMap;
     private String tempFilePath;
+    private int fileChunkSize, maxStripeCount;
+    private long stripeMinSize;
+    // 单连接实测吞吐,字节/秒
+    private volatile double throughput;
 
     public FileLink(NetServer netServer, LinkTable linkTable) throws IOException {
         super(netServer, linkTable);
+        partialFileTable = new PartialFileTable();
+        sendingHashMap = new ConcurrentHashMap<>();
         tempFilePath = ".\\";
+        fileChunkSize = 1024 * 1024;
+        maxStripeCount = 4;
+        stripeMinSize = 8 * 1024 * 1024;
     }
 
     public void setTempFilePath(String tempFilePath) throws FileNotFoundException {
@@ -37,146 +61,453 @@ public class FileLink extends Link {
         }
     }
 
+    /**
+     * 文件按分块发送,每个分块的字节数;连接断开后从对方已连续接收的位置续传
+     */
+    public void setFileChunkSize(int fileChunkSize) {
+        this.fileChunkSize = Math.max(1024, fileChunkSize);
+    }
+    /**
+     * 客户端开启了分段连接时,大文件分为至多maxStripeCount个区间在文件连接与各分段连接上并行发送
+     * @param stripeMinSize 每个区间的最小字节数,文件不足两个区间时不分段
+     */
+    public void setFileStripe(int maxStripeCount, long stripeMinSize) {
+        this.maxStripeCount = maxStripeCount;
+        this.stripeMinSize = Math.max(fileChunkSize, stripeMinSize);
+    }
+    /**
+     * 接收的文件按内容哈希存入storePath,相同内容只存一份;客户端询问的哈希值已存在时跳过上传
+     * @param ttl 未被引用的文件保留的时间,超时后由回收删除,单位(ms)
+     */
+    public void setFileStore(String storePath, long ttl) throws FileNotFoundException {
+        if (fileStore == null) {
+            fileStore = new FileStore(storePath, ttl);
+        } else {
+            fileStore.setTtl(ttl);
+        }
+    }
+    public FileStore getFileStore() {
+        return fileStore;
+    }
+    /**
+     * @param ttl 未接收完整的文件等待续传的最长时间,超时后删除临时文件,单位(ms)
+     */
+    public void setPartialFileLimit(long ttl, int maxCount) {
+        partialFileTable.setLimit(ttl, maxCount);
+    }
+
     @Override
-    protected void receiveReceive(SelectionKey key) {
+    protected boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException {
+        if (dataPackage.getWay() != DataPackage.WAY_TOKEN_VERIFY && linkTable.getToken(key) == null) {
+            NetLog.warn("连接 [$] (FileLink) 无Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        FilePackage FDP = new FilePackage();
-        File tempFile = new File(getTempFileName(key));
-        RandomAccessFile raf = null;
-        FileChannel fileChannel = null;
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(FilePackage.HEADER_SIZE);
-            while (buffer.hasRemaining()) {
-                if (socketChannel.read(buffer) == -1) {
-                    canelFileLink(key);
-                    return;
+        FilePackage FDP = (FilePackage) dataPackage;
+        FDP.setSelectionKey(key).setUID(linkTable.getUID(key));
+        NetLog.debug("接收 {$}", FDP);
+
+        if (FDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
+            Session session = linkTable.getSessionByToken(FDP.getData());
+            SelectionKey commandKey = session != null ? session.getCommandKey() : null;
+            if (commandKey != null && FDP.getType() == DataPackage.TYPE_FILE_STRIPE) {
+                pinReactor(key, commandKey, stripeKey -> linkTable.addFileStripeKey(commandKey, stripeKey));
+            } else if (commandKey != null) {
+                SelectionKey fileKey = session.getFileKey();
+                if (fileKey != null) {
+                    NetLog.warn("连接 [$] (FileLink) 已替换为 [$] ,原连接已断开"
+                            , ((SocketChannel)fileKey.channel()).getRemoteAddress(), socketChannel.getRemoteAddress());
+                    cancelLink(fileKey);
                 }
+                String UID = session.getUID();
+                pinReactor(key, commandKey, newFileKey -> {
+                    linkTable.addFileKey(commandKey, newFileKey);
+                    linkTable.setFileLinkStata(UID, LinkTable.VERIFY);
+                    FilePackage filePackage;
+                    while ((filePackage = linkTable.pollFilePackage(UID)) != null) {
+                        putDataPackage(newFileKey, filePackage.setSelectionKey(newFileKey).setUID(UID));
+                    }
+                });
+            } else {
+                NetLog.warn("连接 [$] (FileLink) 已断开,Token验证失败", socketChannel.getRemoteAddress());
+                cancelLink(key);
             }
-            buffer.flip();
-            FDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get()).setTime(buffer.getLong());
-            if (FDP.getWay() != DataPackage.WAY_TOKEN_VERIFY && linkTable.getToken(key) == null) {
-                NetLog.warn("连接 [$] (FileLink) 无Token,已断开", socketChannel.getRemoteAddress());
-                canelFileLink(key);
+        } else if (FDP.getWay() == DataPackage.WAY_FILE_RESUME) {
+            receiveResume(key, FDP);
+        } else {
+            receiveChunk(key, FDP);
+        }
+    }
+    /**
+     * 偏移为-1时为对方询问本端已接收的长度,否则为对方对本端询问的应答
+     * 询问带有原数据包的way与文件哈希值时,存储中已有该UID上传过的该文件则直接交付,并应答文件长度使对方跳过上传
+     */
+    private void receiveResume(SelectionKey key, FilePackage FDP) {
+        if (FDP.getOffset() < 0 && FDP.getDataSize() > 1 && fileStore != null && FDP.getFileSize() > 0) {
+            byte[] data = FDP.getData();
+            String hash = new String(data, 1, FDP.getDataSize() - 1, StandardCharsets.US_ASCII);
+            File file = fileStore.acquire(hash, FDP.getFileSize(), FDP.getUID());
+            if (file != null) {
+                NetLog.debug("{$} 已存在相同内容的文件,跳过上传", FDP);
+                putDataPackage(key, resumePackage(FDP, FDP.getFileSize()));
+                FDP.setWay(data[0]);
+                FDP.setFile(file).setOffset(0).setDataSize(0);
+                addDataPackage(FDP);
                 return;
             }
-            int dataSize = (int) buffer.getLong();
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.wrap(taskIdBytes);
-            while (buffer.hasRemaining()) {
-                socketChannel.read(buffer);
+        }
+        if (FDP.getOffset() < 0) {
+            long received = partialFileTable.getReceived(FDP.getTaskId(), FDP.getUID(), FDP.getFileSize());
+            putDataPackage(key, resumePackage(FDP, received));
+            return;
+        }
+        Map<TaskId, FileChunk.Source> sources = sendingHashMap.get(key);
+        FileChunk.Source source = sources != null ? sources.get(FDP.getTaskId()) : null;
+        if (source == null || !source.begin()) {
+            NetLog.debug("续传应答 {$} 无对应的待续传文件,已忽略", FDP);
+            return;
+        }
+        NetLog.debug("{$} 从 [$] 处续传", source.getOrigin(), FDP.getOffset());
+        if (putDataPackage(key, startRanges(key, source, FDP.getOffset())) == PUT_REJECTED) {
+            cancelLink(key);
+        }
+    }
+    /**
+     * 分块按偏移写入未完成的文件,分段并行发送的各区间可能来自不同连接,全部收齐后交付
+     */
+    private void receiveChunk(SelectionKey key, FilePackage FDP) throws IOException {
+        PartialFileTable.PartialFile partialFile = partialFileTable.open(FDP.getTaskId(), FDP.getUID(), FDP.getFileSize()
+                , () -> new File(getTempFileName(key)));
+        if (partialFile == null) {
+            NetLog.warn("{$} 与未完成的文件不符,已丢弃", FDP);
+        }
+        FileDecoder decoder = (FileDecoder) Connection.of(key).getDecoder();
+        decoder.chunkPackage = FDP;
+        decoder.chunkReceiver = new PartialFileTable.ChunkReceiver(partialFile, FDP.getOffset(), FDP.getDataSize());
+    }
+    /**
+     * 分块内容保存在连接的解码器上,每次可读时只读取已到达的部分,慢速上传不占用工作线程
+     */
+    @Override
+    protected long receiveBody(SelectionKey key) throws IOException {
+        FileDecoder decoder = (FileDecoder) Connection.of(key).getDecoder();
+        PartialFileTable.ChunkReceiver chunkReceiver = decoder.chunkReceiver;
+        if (chunkReceiver == null) {
+            return 0;
+        }
+        long wait = 0;
+        while (!chunkReceiver.isFinished()) {
+            long readCount = chunkReceiver.receive((SocketChannel) key.channel(), RECEIVE_QUANTUM);
+            wait = consume(key, BandwidthTable.UPLOAD, readCount);
+            if (readCount < RECEIVE_QUANTUM && !chunkReceiver.isFinished()) {
+                return wait > 0 ? wait : -1;
+            } else if (wait > 0) {
+                break;
             }
-            buffer.flip();
-            buffer.get(taskIdBytes);
-            FDP.setTaskId(new String(taskIdBytes));
-            FDP.setSelectionKey(key).setUID(linkTable.getUID(key));
-            NetLog.debug("接收 {$}", FDP);
-
-            if (FDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
-                if (dataSize > 0) {
-                    byte[] data = new byte[dataSize];
-                    buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                    for (int residue = dataSize, readCount = 0; residue > 0; residue -= readCount, readCount = 0) {
-                        if (residue < buffer.remaining()) {
-                            buffer.limit(residue);
-                        }
-                        while (buffer.hasRemaining()) {
-                            readCount += socketChannel.read(buffer);
-                        }
-                        buffer.flip();
-                        buffer.get(data, dataSize - residue, (Math.min(residue, buffer.remaining())));
-                        buffer.clear();
-                    }
-                    FDP.setDataSize(dataSize).setData(data);
+        }
+        if (!chunkReceiver.isFinished()) {
+            return wait;
+        }
+        FilePackage FDP = decoder.chunkPackage;
+        decoder.chunkReceiver = null;
+        decoder.chunkPackage = null;
+        PartialFileTable.PartialFile partialFile = chunkReceiver.getPartialFile();
+        if (partialFile != null && partialFile.complete()) {
+            partialFileTable.finish(partialFile);
+            FDP.setFile(store(partialFile.getFile(), FDP.getUID())).setOffset(0).setDataSize(0);
+            addDataPackage(FDP);
+        }
+        return wait;
+    }
+    /**
+     * 分块内容在receiveBody()中按实际读入计入限速
+     */
+    @Override
+    protected long frameBytes(DataPackage dataPackage) {
+        return 0;
+    }
+    /**
+     * 设置了存储目录时将接收完整的文件移入存储并记为UID上传,失败时仍交付临时文件
+     */
+    private File store(File file, String UID) {
+        FileStore fileStore = this.fileStore;
+        if (fileStore == null || file.length() == 0) {
+            return file;
+        }
+        try {
+            return fileStore.put(file, UID);
+        } catch (IOException e) {
+            NetLog.error(e);
+            return file;
+        }
+    }
+    private static FilePackage resumePackage(FilePackage FDP, long offset) {
+        FilePackage resumePackage = new FilePackage();
+        resumePackage.setWay(DataPackage.WAY_FILE_RESUME).setType(FDP.getType()).setTime(FDP.getTime()).setTaskId(FDP.getTaskId());
+        resumePackage.setFileSize(FDP.getFileSize());
+        return resumePackage.setOffset(offset);
+    }
+
+    /**
+     * 文件按分块发送,写出一块后再将区间内的下一块排到队尾;标记为续传的文件先询问对方已接收的长度
+     */
+    @Override
+    protected void sendReceive(SelectionKey key, DataPackage dataPackage) {
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        FileChunk fileChunk = null;
+        long delay = 0;
+        try {
+            switch (dataPackage) {
+                case FilePackage FDP when FDP.getWay() == DataPackage.WAY_FILE_RESUME -> {
+                    writeHeader(socketChannel, FDP.getWay(), FDP, FDP.getOffset(), 0);
                 }
-                String token = FDP.getContent();
-                SelectionKey commandKey = linkTable.getCommandKeyByToken(token);
-                SelectionKey fileKey = linkTable.getFileKeyByToken(token);
-                if (commandKey != null) {
-                    if (fileKey != null) {
-                        NetLog.warn("连接 [$] (FileLink) 已替换为 [$] ,原连接已断开"
-                                , ((SocketChannel)fileKey.channel()).getRemoteAddress(), socketChannel.getRemoteAddress());
-                        canelFileLink(fileKey);
-                    }
-                    String UID = linkTable.getUID(commandKey);
-                    linkTable.addFileKey(commandKey, key);
-                    linkTable.setFileLinkStata(UID, LinkTable.VERIFY);
-                    while (true) {
-                        FilePackage filePackage = linkTable.getFilePackage(UID);
-                        if (filePackage != null) {
-                            putDataPackage(key, filePackage.setSelectionKey(key).setUID(UID));
-                        } else {
-                            linkTable.setFileLinkStata(UID, LinkTable.READY);
-                            break;
-                        }
+                case FilePackage FDP -> {
+                    FileChunk.Source source = FileChunk.open(FDP);
+                    sendingHashMap.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(FDP.getTaskId(), source);
+                    if (FDP.isResume()) {
+                        writeHeader(socketChannel, DataPackage.WAY_FILE_RESUME, FDP, -1, 0);
+                    } else {
+                        source.begin();
+                        fileChunk = startRanges(key, source, 0);
                     }
-                } else {
-                    NetLog.warn("连接 [$] (FileLink) 已断开,Token验证失败", socketChannel.getRemoteAddress());
-                    canelFileLink(key);
                 }
-            } else {
-                raf = new RandomAccessFile(tempFile, "rw");
-                fileChannel = raf.getChannel();
-                long fileSize = dataSize;
-                for (long residue = fileSize, readCount = 0; residue > 0; residue -= readCount) {
-                    readCount = fileChannel.transferFrom(socketChannel, fileSize - residue, residue);
+                case FileChunk chunk -> fileChunk = chunk;
+                default -> throw new IllegalStateException();
+            }
+            if (fileChunk != null) {
+                FilePackage FDP = fileChunk.getOrigin();
+                if (fileChunk.getSource().isInterrupted()) {
+                    // 其他区间所在的连接已断开,整个文件待续传,本区间停止
+                    finishRange(key, fileChunk);
+                    return;
+                }
+                long startTime = System.nanoTime();
+                writeHeader(socketChannel, FDP.getWay(), FDP, fileChunk.getOffset(), fileChunk.getDataSize());
+                fileChunk.transferTo(socketChannel);
+                measure(fileChunk.getDataSize(), System.nanoTime() - startTime);
+                delay = consume(key, BandwidthTable.DOWNLOAD, fileChunk.getDataSize());
+                FileChunk next = fileChunk.next(fileChunkSize);
+                if (next != null) {
+                    requeue(key, next);
+                } else if (finishRange(key, fileChunk)) {
+                    NetLog.debug("发送 {$} 成功", FDP);
                 }
-                FDP.setFile(tempFile).setFileSize(fileSize);
-                addDataPackage(FDP);
             }
         } catch (IOException e) {
-            canelFileLink(key);
+            NetLog.error("发送 {$} 失败", dataPackage);
+            NetLog.error(e);
+            if (fileChunk != null) {
+                fileChunk.close();
+            }
+            cancelLink(key);
         } finally {
-            receiveFinish(key);
-            try {
-                if (raf != null) {
-                    raf.close();
-                }
-                if (fileChannel != null) {
-                    fileChannel.close();
-                }
-            } catch (IOException e) {
-                NetLog.error(e);
+            sendFinish(key, delay);
+        }
+    }
+    /**
+     * 将[from, 文件末尾)分为若干区间,其余区间交给会话的分段连接并行发送,返回在key上发送的首个区间的首个分块
+     */
+    private FileChunk startRanges(SelectionKey key, FileChunk.Source source, long from) {
+        FilePackage FDP = source.getOrigin();
+        long fileSize = FDP.getFileSize();
+        Session session = linkTable.getSession(key);
+        List<SelectionKey> stripeKeys = session != null ? new ArrayList<>(session.getStripeKeys()) : List.of();
+        int stripeCount = stripeCount(fileSize - from, stripeKeys.size());
+        long rangeSize = (fileSize - from + stripeCount - 1) / stripeCount;
+        if (stripeCount > 1) {
+            NetLog.debug("{$} 分为 [$] 段并行发送", FDP, stripeCount);
+        }
+        for (int i = 1; i < stripeCount; i++) {
+            SelectionKey stripeKey = stripeKeys.get(i - 1);
+            long start = from + rangeSize * i;
+            source.acquire();
+            FileChunk fileChunk = new FileChunk(source, start, Math.min(start + rangeSize, fileSize), fileChunkSize);
+            sendingHashMap.computeIfAbsent(stripeKey, k -> new ConcurrentHashMap<>()).put(FDP.getTaskId(), source);
+            if (putDataPackage(stripeKey, fileChunk) == PUT_REJECTED) {
+                // 分段连接不可用,该区间改在文件连接上发送
+                sendingHashMap.getOrDefault(stripeKey, Map.of()).remove(FDP.getTaskId(), source);
+                requeue(key, fileChunk);
             }
         }
+        return new FileChunk(source, from, Math.min(from + rangeSize, fileSize), fileChunkSize);
     }
-
-    @Override
-    protected void sendReceive(SelectionKey key, DataPackage dataPackage) {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        FilePackage FDP = (FilePackage) dataPackage;
-        try (RandomAccessFile raf = new RandomAccessFile(FDP.getFile(), "r"); FileChannel fileChannel = raf.getChannel()) {
-            ByteBuffer buffer = ByteBuffer.allocate(FilePackage.HEADER_SIZE + FDP.getTaskIdLength());
-            buffer.put(FDP.getWay()).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime())
-                    .putLong(FDP.getFileSize()).putShort(FDP.getTaskIdLength()).put(FDP.getTaskIdBytes());
-            buffer.flip();
+    /**
+     * 分段数: 单连接按实测吞吐1秒内可发完时不分段,否则每段不小于stripeMinSize,且不超过分段连接数+1与maxStripeCount
+     */
+    private int stripeCount(long size, int stripeKeyCount) {
+        if (maxStripeCount <= 1 || stripeKeyCount == 0 || size < 2 * stripeMinSize || size < throughput) {
+            return 1;
+        }
+        return (int) Math.min(Math.min(maxStripeCount, stripeKeyCount + 1), size / stripeMinSize);
+    }
+    /**
+     * 以分块的写出耗时估计单连接吞吐,指数加权平均;过小的分块多在发送缓冲内完成,不计入
+     */
+    private void measure(int bytes, long nanos) {
+        if (bytes < 64 * 1024 || nanos <= 0) {
+            return;
+        }
+        double rate = bytes * 1e9 / nanos;
+        double oldThroughput = throughput;
+        throughput = oldThroughput == 0 ? rate : oldThroughput * 0.8 + rate * 0.2;
+    }
+    /**
+     * 区间发送完或停止,全部区间结束时返回true
+     */
+    private boolean finishRange(SelectionKey key, FileChunk fileChunk) {
+        Map<TaskId, FileChunk.Source> sources = sendingHashMap.get(key);
+        if (sources != null) {
+            sources.remove(fileChunk.getTaskId(), fileChunk.getSource());
+        }
+        return fileChunk.getSource().release() && !fileChunk.getSource().isInterrupted();
+    }
+    private static void writeHeader(SocketChannel socketChannel, byte way, FilePackage FDP, long offset, int length) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire(FilePackage.CHUNK_HEADER_SIZE);
+        try {
+            buffer.put(way).put(FDP.getType()).put(FDP.getAppendState()).putLong(FDP.getTime()).putLong(FDP.getFileSize());
+            TaskId.write(buffer, FDP.getTaskId()).putLong(offset).putInt(length).flip();
             while (buffer.hasRemaining()) {
                 socketChannel.write(buffer);
             }
-            long fileSize = FDP.getFileSize();
-            for (long residue = fileSize, writeCount = 0; residue > 0; residue -= writeCount) {
-                writeCount = fileChannel.transferTo(fileSize - residue, residue, socketChannel);
-            }
-            NetLog.debug("发送 {$} 成功", FDP);
-        } catch (IOException e) {
-            NetLog.error("发送 {$} 失败", FDP);
-            NetLog.error(e);
-            canelFileLink(key);
         } finally {
-            sendFinish(key);
+            BufferPool.release(buffer);
         }
     }
+    private void requeue(SelectionKey key, FileChunk fileChunk) {
+        synchronized (this) {
+            SendQueue sendQueue = sendHashMap.get(key);
+            if (sendQueue != null) {
+                sendQueue.requeue(fileChunk);
+                return;
+            }
+        }
+        fileChunk.close();
+    }
+
+    @Override
+    protected FrameDecoder<?> newDecoder() {
+        return new FileDecoder();
+    }
 
     @Override
     protected void extraDisposeTimeOutLink(SelectionKey key) {
-        linkTable.removeFileKey(key);
+        String UID = linkTable.getUID(key);
+        if (!linkTable.removeFileStripeKey(key)) {
+            linkTable.removeFileKey(key);
+        }
+        resumeLater(key, UID);
     }
 
-    private void canelFileLink(SelectionKey key) {
-        linkTable.removeFileKey(key);
+    @Override
+    protected void cancelLink(SelectionKey key) {
+        String UID = linkTable.getUID(key);
+        if (!linkTable.removeFileStripeKey(key)) {
+            linkTable.removeFileKey(key);
+        }
         cancel(key);
+        resumeLater(key, UID);
+    }
+    /**
+     * 连接断开时未发送完的文件标记为续传重新交给会话,文件连接重建后只发送对方缺少的部分;
+     * 文件的任一区间中断时其余区间随之停止,整个文件只安排一次续传
+     */
+    private void resumeLater(SelectionKey key, String UID) {
+        Map<TaskId, FileChunk.Source> sources = sendingHashMap.remove(key);
+        if (sources == null) {
+            return;
+        }
+        for (FileChunk.Source source : sources.values()) {
+            if (source.begin()) {
+                // 续传询问尚未应答,没有发送中的区间
+                source.release();
+            }
+            if (!source.interrupt()) {
+                continue;
+            }
+            FilePackage FDP = source.getOrigin();
+            if (UID == null) {
+                NetLog.warn("{$} 发送中断,UID未知,无法续传", FDP);
+                continue;
+            }
+            if (FDP.getAppendState() == DataPackage.APPEND_1) {
+                // 附加的数据包已随首次发送发出,续传时不再重复发送
+                FDP.removeAppendDataPackage().setAppendState(DataPackage.APPEND_1);
+            }
+            NetLog.info("{$} 发送中断,待文件连接重建后续传", FDP);
+            netServer.putFilePackage(UID, FDP.setResume(true));
+        }
+    }
+
+    /**
+     * 各帧头部长度相同,Token验证帧的数据随帧读入内存;文件分块帧只解码头部,分块内容由receiveFrame写入临时文件,
+     * 续传协商帧没有数据;不预读,以免将文件内容读入预读缓冲
+     */
+    protected static class FileDecoder extends FrameDecoder<FilePackage> {
+        private static final int MAX_HASH_SIZE = 256;
+
+        // 正在接收的分块,其内容在帧之后直接从通道读取
+        private FilePackage chunkPackage;
+        private PartialFileTable.ChunkReceiver chunkReceiver;
+
+        protected FileDecoder() {
+            super(FilePackage.CHUNK_HEADER_SIZE, false);
+        }
+
+        @Override
+        protected FilePackage newDataPackage() {
+            return new FilePackage();
+        }
+        @Override
+        protected int decodeHeader(ByteBuffer header) {
+            dataPackage.setWay(header.get()).setType(header.get()).setAppendState(header.get()).setTime(header.getLong());
+            long size = header.getLong();
+            dataPackage.setTaskId(TaskId.read(header));
+            long offset = header.getLong();
+            int length = header.getInt();
+            switch (dataPackage.getWay()) {
+                case DataPackage.WAY_TOKEN_VERIFY -> {
+                    if (size < 0 || size > Integer.MAX_VALUE) {
+                        return -1;
+                    }
+                    dataPackage.setDataSize((int) size);
+                }
+                case DataPackage.WAY_FILE_RESUME -> {
+                    // 询问可带有原数据包的way与文件哈希值
+                    if (size < 0 || offset < -1 || offset > size || length < 0 || length > MAX_HASH_SIZE
+                            || (length > 0 && offset != -1)) {
+                        return -1;
+                    }
+                    dataPackage.setFileSize(size);
+                    dataPackage.setOffset(offset).setDataSize(length);
+                }
+                default -> {
+                    if (size < 0 || offset < 0 || length < 0 || offset + length > size) {
+                        return -1;
+                    }
+                    dataPackage.setFileSize(size);
+                    dataPackage.setOffset(offset).setDataSize(length);
+                }
+            }
+            return 0;
+        }
+        @Override
+        protected void decodeField(ByteBuffer field) {}
+        /**
+         * 分块帧的dataSize为分块长度,内容不读入内存
+         */
+        @Override
+        protected int bodySize() {
+            return dataPackage.getWay() == DataPackage.WAY_TOKEN_VERIFY || dataPackage.getWay() == DataPackage.WAY_FILE_RESUME
+                    ? dataPackage.getDataSize() : 0;
+        }
     }
 
-    private synchronized String getTempFileName(SelectionKey key) {
+    synchronized String getTempFileName(SelectionKey key) {
         try {
             return tempFilePath + NetTool.getHashValue((String.valueOf(System.currentTimeMillis()) + UUID.randomUUID() + key).getBytes(), "MD5");
         } catch (NoSuchAlgorithmException e) {
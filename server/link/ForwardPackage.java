@@ -0,0 +1,39 @@
+package net.link;
+
+import net.datapackage.DataPackage;
+
+/**
+ * 集群连接上转发给目标UID的数据包,原数据包不被修改,可由多个目标UID共用
+ */
+
+class ForwardPackage extends DataPackage {
+    private final byte kind;
+    private final String target;
+    private final DataPackage origin;
+
+    ForwardPackage(byte kind, String target, DataPackage origin) {
+        this.kind = kind;
+        this.target = target;
+        this.origin = origin;
+        way = origin.getWay();
+        type = origin.getType();
+        time = origin.getTime();
+        taskId = origin.getTaskId();
+        dataSize = origin.getDataSize();
+    }
+
+    byte getKind() {
+        return kind;
+    }
+    String getTarget() {
+        return target;
+    }
+    DataPackage getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public String toString() {
+        return "Forward" + origin + " [target=" + target + "]";
+    }
+}
\ No newline at end of file
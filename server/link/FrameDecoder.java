@@ -0,0 +1,208 @@
+package net.link;
+
+import net.datapackage.DataPackage;
+import net.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 保存在连接上的增量解码器,每次可读事件只读取当前已到达的字节,未读完的帧在下次可读时继续
+ * 帧结构: 固定头部 -> 可变字段(taskId等) -> 数据
+ * 开启预读时一次读入尽可能多的字节,可从中连续解码出多个帧,未消费的字节保留到下次decode()
+ */
+
+public abstract class FrameDecoder<T extends DataPackage> {
+    // 数据未到达,等待下次可读
+    public static final byte NEED_MORE = 0;
+    // 头部已解码,可在读取后续内容前进行校验,此时尚未为可变字段分配缓冲
+    public static final byte HEADER = 1;
+    // 已解码出一个完整的帧
+    public static final byte FRAME = 2;
+    // 连接已被对方关闭
+    public static final byte EOF = -1;
+
+    public static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final byte STATE_HEADER = 1, STATE_FIELD = 2, STATE_BODY = 3;
+
+    private final ByteBuffer headerBuffer;
+    private final int headerSize;
+    private final boolean readAhead;
+    private ByteBuffer fieldBuffer, bodyBuffer, readBuffer;
+    private byte state;
+    private int fieldSize;
+    private boolean released;
+    protected T dataPackage;
+
+    /**
+     * @param readAhead 为false时只读取当前帧所需的字节,帧之后的数据留在通道中由调用方自行读取
+     */
+    protected FrameDecoder(int headerSize, boolean readAhead) {
+        this.readAhead = readAhead;
+        this.headerSize = headerSize;
+        headerBuffer = BufferPool.acquire(headerSize);
+        state = STATE_HEADER;
+    }
+
+    public synchronized byte decode(ReadableByteChannel channel) throws IOException {
+        if (released) {
+            return EOF;
+        }
+        while (true) {
+            switch (state) {
+                case STATE_HEADER -> {
+                    byte result = transfer(channel, headerBuffer);
+                    if (result != FRAME) {
+                        return result;
+                    }
+                    headerBuffer.flip();
+                    dataPackage = newDataPackage();
+                    fieldSize = decodeHeader(headerBuffer);
+                    // 缓冲池按规格分配,容量可能大于头部长度
+                    headerBuffer.clear().limit(headerSize);
+                    if (fieldSize < 0) {
+                        throw new IOException("非法的帧头部");
+                    }
+                    state = STATE_FIELD;
+                    return HEADER;
+                }
+                case STATE_FIELD -> {
+                    // 头部校验通过后才分配,未通过校验的连接不占用字段缓冲
+                    if (fieldBuffer == null) {
+                        fieldBuffer = BufferPool.acquire(fieldSize);
+                    }
+                    byte result = transfer(channel, fieldBuffer);
+                    if (result != FRAME) {
+                        return result;
+                    }
+                    fieldBuffer.flip();
+                    decodeField(fieldBuffer);
+                    BufferPool.release(fieldBuffer);
+                    fieldBuffer = null;
+                    int bodySize = bodySize();
+                    if (bodySize < 0) {
+                        throw new IOException("非法的数据长度");
+                    } else if (bodySize > 0) {
+                        bodyBuffer = ByteBuffer.wrap(new byte[bodySize]);
+                        state = STATE_BODY;
+                    } else {
+                        state = STATE_HEADER;
+                        return FRAME;
+                    }
+                }
+                case STATE_BODY -> {
+                    byte result = transfer(channel, bodyBuffer);
+                    if (result != FRAME) {
+                        return result;
+                    }
+                    dataPackage.setData(bodyBuffer.array());
+                    bodyBuffer = null;
+                    state = STATE_HEADER;
+                    return FRAME;
+                }
+                default -> throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * 预读缓冲中是否还有未消费的字节,这些字节不会再触发可读事件
+     */
+    public synchronized boolean hasBuffered() {
+        return readBuffer != null && readBuffer.hasRemaining();
+    }
+
+    /**
+     * 连接关闭时归还占用的缓冲,与decode()互斥,避免归还正在读取的缓冲
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        BufferPool.release(headerBuffer);
+        BufferPool.release(fieldBuffer);
+        BufferPool.release(readBuffer);
+        fieldBuffer = null;
+        bodyBuffer = null;
+        readBuffer = null;
+    }
+
+    /**
+     * decode()返回HEADER或FRAME后可取得当前帧
+     */
+    public T getDataPackage() {
+        return dataPackage;
+    }
+
+    /**
+     * 从已完整读入的frame中解码一帧,frame中不得有多余的字节,用于多路复用连接
+     */
+    protected T decodeFrame(ByteBuffer frame) throws IOException {
+        dataPackage = newDataPackage();
+        int fieldSize = decodeHeader(frame);
+        if (fieldSize < 0 || fieldSize > frame.remaining()) {
+            throw new IOException("非法的帧头部");
+        }
+        int limit = frame.limit();
+        frame.limit(frame.position() + fieldSize);
+        decodeField(frame);
+        frame.limit(limit);
+        if (bodySize() != frame.remaining()) {
+            throw new IOException("非法的数据长度");
+        }
+        if (frame.hasRemaining()) {
+            byte[] data = new byte[frame.remaining()];
+            frame.get(data);
+            dataPackage.setData(data);
+        }
+        return dataPackage;
+    }
+
+    /**
+     * 先消费预读缓冲中的字节,不足时从通道读取,填满target时返回FRAME
+     */
+    private byte transfer(ReadableByteChannel channel, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (readBuffer != null && readBuffer.hasRemaining()) {
+                int limit = readBuffer.limit();
+                readBuffer.limit(readBuffer.position() + Math.min(target.remaining(), readBuffer.remaining()));
+                target.put(readBuffer);
+                readBuffer.limit(limit);
+                continue;
+            }
+            if (readBuffer == null) {
+                readBuffer = BufferPool.acquire(READ_BUFFER_SIZE);
+            }
+            readBuffer.clear();
+            if (!readAhead) {
+                readBuffer.limit(Math.min(readBuffer.capacity(), target.remaining()));
+            }
+            int readCount = channel.read(readBuffer);
+            readBuffer.flip();
+            if (readCount == -1) {
+                return EOF;
+            } else if (readCount == 0) {
+                // 通道已读空,预读缓冲不必保留到下次可读
+                BufferPool.release(readBuffer);
+                readBuffer = null;
+                return NEED_MORE;
+            }
+        }
+        return FRAME;
+    }
+
+    protected abstract T newDataPackage();
+    /**
+     * 解码固定头部,返回可变字段的总长度
+     */
+    protected abstract int decodeHeader(ByteBuffer header);
+    protected abstract void decodeField(ByteBuffer field) throws IOException;
+    /**
+     * 需随帧读入内存的数据长度
+     */
+    protected int bodySize() {
+        return dataPackage.getDataSize();
+    }
+}
\ No newline at end of file
@@ -4,124 +4,153 @@ import net.NetServer;
 import net.datapackage.CommandPackage;
 import net.datapackage.FilePackage;
 import net.datapackage.MessagePackage;
+import net.util.BandwidthTable;
 import net.util.LinkTable;
 import net.datapackage.DataPackage;
 import net.exception.NetException;
 import net.log.NetLog;
+import net.util.BufferPool;
 import net.util.NetTool;
+import net.util.RateLimiter;
+import net.util.TaskId;
+import net.util.TimingWheel;
 import net.util.TokenBucket;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
- * 负责管理连接的线程
+ * 负责管理某一类连接,就绪事件由所属ReactorGroup中的Reactor线程分发
  */
 
-public abstract class Link extends Thread{
+public abstract class Link {
+    // 固定大小的平台线程池(默认)
+    public static final byte WORKER_POOL = 1;
+    // 每个任务一个虚拟线程,适合阻塞的文件与网络操作
+    public static final byte WORKER_VIRTUAL = 2;
+    // 已放入连接的发送队列
+    public static final byte PUT_ACCEPTED = 1;
+    // 连接尚未就绪,已暂存待连接建立后发送
+    public static final byte PUT_QUEUED = 2;
+    // 目标不存在或发送队列已超过高水位,数据包被丢弃
+    public static final byte PUT_REJECTED = 3;
+
     protected final NetServer netServer;
-    protected final Selector selector;
     protected final LinkTable linkTable;
-    protected final ExecutorService workPool;
-    protected final ConcurrentLinkedQueue<Runnable> eventQueue;
+    protected ExecutorService workPool;
     protected final ConcurrentLinkedQueue<NetException> exceptionQueue;
     protected final ConcurrentHashMap<SelectionKey, AtomicBoolean> sendingStateHashMap;
-    protected final ConcurrentHashMap<SelectionKey, Queue<DataPackage>> sendHashMap;
+    protected final ConcurrentHashMap<SelectionKey, SendQueue> sendHashMap;
     protected final ConcurrentLinkedQueue<DataPackage> receiveQueue;
     protected final Set<SelectionKey> cancelSet;
+    protected final Set<SelectionKey> lingerSet;
     protected final TokenBucket tokenBucket;
     protected final Object linkLock = new Object(), sendLock = new Object(), receiveLock = new Object();
-    protected int maxLinkCount, linkCount;
-    protected boolean running;
+    protected ReactorGroup reactorGroup;
+    protected int maxLinkCount, linkCount, reactorCount;
+    protected int writeBatchCount, writeBatchBytes, readFrameBudget;
+    protected int highWaterCount, lowWaterCount;
+    protected long highWaterBytes, lowWaterBytes, maxQueueAge;
+    protected long writeLinger;
+    protected WritabilityListener writabilityListener;
+    protected BandwidthTable bandwidthTable;
+    protected volatile RateLimiter uploadLimiter, downloadLimiter;
+    protected byte reactorStrategy, workerMode;
+    protected String name;
 
     protected final HeartBeat heartBeat;
+    protected static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
     public Link(NetServer netServer, LinkTable linkTable) throws IOException {
         this.netServer = netServer;
         this.linkTable = linkTable;
-        selector = Selector.open();
-        eventQueue = new ConcurrentLinkedQueue<>();
         exceptionQueue = new ConcurrentLinkedQueue<>();
         sendingStateHashMap = new ConcurrentHashMap<>();
         sendHashMap = new ConcurrentHashMap<>();
         receiveQueue = new ConcurrentLinkedQueue<>();
         cancelSet = ConcurrentHashMap.newKeySet();
+        lingerSet = ConcurrentHashMap.newKeySet();
         tokenBucket = new TokenBucket(2000, 1000);
         maxLinkCount = 1000;
-
-        int poolSize = Runtime.getRuntime().availableProcessors();
-        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(1024);
-        RejectedExecutionHandler policy = new ThreadPoolExecutor.AbortPolicy();
-        workPool = new ThreadPoolExecutor(poolSize, poolSize * 2, 180, TimeUnit.SECONDS, queue, policy);
+        reactorCount = 1;
+        reactorStrategy = ReactorGroup.ROUND_ROBIN;
+        writeBatchCount = 1;
+        writeBatchBytes = 64 * 1024;
+        readFrameBudget = 16;
+        highWaterCount = Integer.MAX_VALUE;
+        lowWaterCount = Integer.MAX_VALUE;
+        highWaterBytes = 64L * 1024 * 1024;
+        lowWaterBytes = 32L * 1024 * 1024;
+        workerMode = WORKER_POOL;
+        name = getClass().getSimpleName();
 
         heartBeat = new HeartBeat();
     }
 
-    @Override
-    public void start() {
-        running = true;
-        super.start();
+    public void start() throws IOException {
+        workPool = newWorkPool(workerMode, name);
+        if (reactorGroup == null) {
+            reactorGroup = new ReactorGroup(name, reactorCount, reactorStrategy);
+        }
+        reactorGroup.start();
         heartBeat.start();
+        scheduleQueueAgeSweep();
     }
 
-    @Override
-    public void run() {
-        while (running) {
+    /**
+     * 由Reactor调用,处理一个就绪的key,返回false表示本次未处理,留待下次
+     */
+    protected boolean dispose(SelectionKey key) throws RejectedExecutionException {
+        if (!tokenBucket.acquire()) {
+            return false;
+        }
+        if (key.isReadable()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // 清除 OP_READ 事件，但保留其他事件
+            heartBeat.updateLastActivityTime(key);
             try {
-                while (eventQueue.isEmpty() && selector.select() > 0) {
-                    extracted();
-                }
-                if (selector.selectNow() > 0) {
-                    extracted();
-                }
-
-                Iterator<Runnable> tasks = eventQueue.iterator();
-                while (tasks.hasNext()) {
-                    tasks.next().run();
-                    tasks.remove();
-                }
-            } catch (RejectedExecutionException | IOException e) {
-                NetLog.error(e);
+                workPool.submit(() -> {receiveReceive(key);});
+            } catch (RejectedExecutionException e) {
+                // 线程池已满,恢复 OP_READ 留待下次处理,避免连接不再可读
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                throw e;
             }
-        }
-    }
-
-    private void extracted() throws RejectedExecutionException, IOException {
-        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-        while (keys.hasNext()) {
-            SelectionKey key = keys.next();
-            if (tokenBucket.acquire()) {
-                if (key.isReadable()) {
-                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // 清除 OP_READ 事件，但保留其他事件
-                    heartBeat.updateLastActivityTime(key);
-                    workPool.submit(() -> {receiveReceive(key);});
-                } else if (key.isWritable()) {
-                    Queue<DataPackage> sendQueue = sendHashMap.get(key);
-                    if (sendQueue != null) {
-                        DataPackage dataPackage = sendQueue.poll();
-                        if (dataPackage != null) {
-                            if (sendingStateHashMap.get(key).compareAndSet(false, true)) { // 检查并设置状态
-                                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE); // 清除 OP_WRITE 事件，但保留其他事件
-                                heartBeat.updateLastActivityTime(key);
-                                workPool.submit(() -> {sendReceive(key, dataPackage);});
-                            }
+        } else if (key.isWritable()) {
+            SendQueue sendQueue = sendHashMap.get(key);
+            if (sendQueue != null) {
+                if (sendingStateHashMap.get(key).compareAndSet(false, true)) { // 检查并设置状态
+                    DataPackage dataPackage = sendQueue.poll();
+                    if (dataPackage != null) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE); // 清除 OP_WRITE 事件，但保留其他事件
+                        heartBeat.updateLastActivityTime(key);
+                        if (writeBatchCount > 1 && this instanceof BatchLink batchLink && !sendQueue.isEmpty()) {
+                            List<DataPackage> batch = pollBatch(dataPackage, sendQueue);
+                            workPool.submit(() -> {batchLink.sendBatch(key, batch);});
                         } else {
-                            sendHashMap.remove(key);
-                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            workPool.submit(() -> {sendReceive(key, dataPackage);});
                         }
                     } else {
                         key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        sendingStateHashMap.get(key).set(false);
+                        // 清除状态前可能有新的数据包入队,此时putDataPackage未能注册 OP_WRITE
+                        if (!sendQueue.isEmpty()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
                     }
                 }
-                keys.remove();
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             }
         }
+        return true;
     }
 
     public void setMaxLinkCount(int maxLinkCount) {
@@ -130,8 +159,102 @@ public abstract class Link extends Thread{
     public void setHeartBeatInterval(int heartBeatInterval) {
         heartBeat.setHeartBeatInterval(heartBeatInterval);
     }
+    /**
+     * 因心跳超时而断开的连接数
+     */
+    public long getHeartBeatTimeoutCount() {
+        return heartBeat.getTimeoutCount();
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+    public String getName() {
+        return name;
+    }
+    /**
+     * 合并发送,每次可写时最多取出maxCount个或maxBytes字节的数据包一并写出;
+     * lingerMillis大于0时,空闲连接上的第一个数据包最多等待该时长以便合并后续数据包
+     */
+    public void setWriteBatch(int maxCount, int maxBytes, long lingerMillis) {
+        writeBatchCount = Math.max(1, maxCount);
+        writeBatchBytes = maxBytes;
+        writeLinger = lingerMillis;
+    }
+    public void setBandwidthTable(BandwidthTable bandwidthTable) {
+        this.bandwidthTable = bandwidthTable;
+    }
+    /**
+     * 本类型所有连接合计的上传、下载速率,单位(字节/秒),不大于0时不限制
+     */
+    public void setRate(long uploadRate, long downloadRate) {
+        uploadLimiter = RateLimiter.of(uploadRate);
+        downloadLimiter = RateLimiter.of(downloadRate);
+    }
+    /**
+     * 每次可读事件最多解码的帧数,用尽后剩余数据稍后继续处理,避免单个连接占用工作线程
+     */
+    public void setReadFrameBudget(int readFrameBudget) {
+        this.readFrameBudget = Math.max(1, readFrameBudget);
+    }
+    /**
+     * 发送队列的高低水位,数量或字节数达到高水位后拒绝新的数据包,二者都回落到低水位后恢复
+     */
+    public void setSendWaterMark(int lowCount, int highCount, long lowBytes, long highBytes) {
+        lowWaterCount = lowCount;
+        highWaterCount = highCount;
+        lowWaterBytes = lowBytes;
+        highWaterBytes = highBytes;
+    }
+    /**
+     * 发送队列中最早的数据包等待超过maxQueueAge毫秒时断开该连接,为0时不限制
+     */
+    public void setMaxQueueAge(long maxQueueAge) {
+        this.maxQueueAge = maxQueueAge;
+    }
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        this.writabilityListener = writabilityListener;
+    }
+    /**
+     * 按workerMode创建执行接收与发送任务的线程池,线程以name命名
+     */
+    public static ExecutorService newWorkPool(byte workerMode, String name) {
+        if (workerMode == WORKER_VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-Worker-", 0).factory());
+        }
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(1024);
+        RejectedExecutionHandler policy = new ThreadPoolExecutor.AbortPolicy();
+        return new ThreadPoolExecutor(poolSize, poolSize * 2, 180, TimeUnit.SECONDS, queue, policy);
+    }
+    /**
+     * 接收与发送任务的执行方式,WORKER_POOL或WORKER_VIRTUAL,需在start()前调用
+     */
+    public void setWorkerMode(byte workerMode) {
+        this.workerMode = workerMode;
+    }
+    public void setReactorCount(int reactorCount) {
+        this.reactorCount = reactorCount;
+    }
+    public void setReactorStrategy(byte reactorStrategy) {
+        this.reactorStrategy = reactorStrategy;
+    }
+    /**
+     * 与其他Link共用同一组Reactor,需在start()前调用
+     */
+    public void setReactorGroup(ReactorGroup reactorGroup) {
+        this.reactorGroup = reactorGroup;
+    }
+    public ReactorGroup getReactorGroup() {
+        return reactorGroup;
+    }
 
-    public synchronized void register(SocketChannel socketChannel) throws IOException {
+    public void register(SocketChannel socketChannel) throws IOException {
+        register(socketChannel, null);
+    }
+    /**
+     * 注册完成后以新的key回调consumer,连接数已满或注册失败时以null回调
+     */
+    protected synchronized void register(SocketChannel socketChannel, Consumer<SelectionKey> consumer) throws IOException {
         SocketAddress socketAddress = socketChannel.getRemoteAddress();
         int tempLinkCount;
         synchronized (linkLock) {
@@ -139,28 +262,47 @@ public abstract class Link extends Thread{
             if (tempLinkCount > maxLinkCount) {
                 socketChannel.close();
                 NetLog.warn("连接数到达最大值 [$] ,已断开连接 [$]", maxLinkCount, socketAddress);
+                if (consumer != null) {
+                    consumer.accept(null);
+                }
                 return;
             } else {
                 linkCount++;
             }
         }
         socketChannel.configureBlocking(false);
-        eventQueue.add(() -> {
+        Reactor reactor = reactorGroup.next();
+        reactor.incrementKeyCount();
+        reactor.addEvent(() -> {
             try {
-                SelectionKey key = socketChannel.register(selector, SelectionKey.OP_READ);
+                SelectionKey key = socketChannel.register(reactor.getSelector(), SelectionKey.OP_READ, new Connection(this, reactor));
                 sendingStateHashMap.put(key, new AtomicBoolean(false));
                 heartBeat.updateLastActivityTime(key);
-                NetLog.info("连接 [$] 已注册至 [$] (当前注册数:$)", socketAddress, getName(), tempLinkCount);
+                NetLog.info("连接 [$] 已注册至 [$] (当前注册数:$)", socketAddress, reactor.getName(), tempLinkCount);
+                if (consumer != null) {
+                    consumer.accept(key);
+                }
             } catch (IOException e) {
+                reactor.decrementKeyCount();
                 NetLog.error(e);
+                if (consumer != null) {
+                    consumer.accept(null);
+                }
             }
         });
-        selector.wakeup();
     }
     public synchronized void cancel(SelectionKey key) {
+        Link owner = ownerOf(key);
+        if (owner != null && owner != this) {
+            owner.cancel(key);
+            return;
+        }
         if (sendingStateHashMap.remove(key) != null) {
             cancelSet.add(key);
-            sendHashMap.remove(key);
+            SendQueue sendQueue = sendHashMap.remove(key);
+            if (sendQueue != null) {
+                sendQueue.clear();
+            }
             heartBeat.removeLastActivityTime(key);
             int tempLinkCount;
             synchronized (linkLock) {
@@ -177,15 +319,63 @@ public abstract class Link extends Thread{
                 NetLog.error(e);
             }
             SocketAddress finalSocketAddress = socketAddress;
-            eventQueue.add(() -> {
+            Reactor reactor = Connection.of(key).getReactor();
+            reactor.decrementKeyCount();
+            reactor.addEvent(() -> {
                 key.cancel();
+                Connection.of(key).getDecoder().release();
                 cancelSet.remove(key);
-                NetLog.info("连接 [$] 已从 [$] 中注销 (当前注册数:$)", finalSocketAddress, getName(), tempLinkCount);
+                NetLog.info("连接 [$] 已从 [$] 中注销 (当前注册数:$)", finalSocketAddress, reactor.getName(), tempLinkCount);
             });
-            selector.wakeup();
         }
     }
 
+    /**
+     * Reactor固定模式下,将key迁移到commandKey所在的Reactor,迁移完成后以新的key回调consumer;
+     * 未开启固定模式或已在同一Reactor时直接回调
+     */
+    protected void pinReactor(SelectionKey key, SelectionKey commandKey, Consumer<SelectionKey> consumer) {
+        Connection connection = Connection.of(key);
+        Reactor reactor = connection.getReactor();
+        Reactor target = Connection.of(commandKey).getReactor();
+        if (!reactorGroup.isPinned() || reactor == target) {
+            consumer.accept(key);
+            return;
+        }
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        AtomicBoolean sendingState = sendingStateHashMap.remove(key);
+        heartBeat.removeLastActivityTime(key);
+        key.cancel();
+        reactor.decrementKeyCount();
+        target.incrementKeyCount();
+        target.addEvent(() -> {
+            try {
+                // 迁移前已预读的字节不会触发新Selector的可读事件,需直接交给工作线程处理
+                boolean buffered = connection.getDecoder().hasBuffered();
+                SelectionKey newKey = socketChannel.register(target.getSelector(), buffered ? 0 : SelectionKey.OP_READ, connection);
+                connection.setReactor(target);
+                sendingStateHashMap.put(newKey, sendingState != null ? sendingState : new AtomicBoolean(false));
+                heartBeat.updateLastActivityTime(newKey);
+                NetLog.debug("连接 [$] 已从 [$] 迁移至 [$]", socketChannel.getRemoteAddress(), reactor.getName(), target.getName());
+                consumer.accept(newKey);
+                if (buffered) {
+                    workPool.submit(() -> {receiveReceive(newKey);});
+                }
+            } catch (IOException e) {
+                target.decrementKeyCount();
+                NetLog.error(e);
+                try {
+                    socketChannel.close();
+                } catch (IOException ex) {
+                    NetLog.error(ex);
+                }
+                synchronized (linkLock) {
+                    linkCount--;
+                }
+            }
+        });
+    }
+
     public DataPackage getDataPackage() throws NetException {
         synchronized (receiveLock) {
             while (receiveQueue.isEmpty()) {
@@ -200,27 +390,48 @@ public abstract class Link extends Thread{
             return receiveQueue.poll();
         }
     }
-    public void putDataPackage(SelectionKey key, DataPackage dataPackage) {
+    public byte putDataPackage(SelectionKey key, DataPackage dataPackage) {
+        Link owner = ownerOf(key);
+        if (owner != null && owner != this) {
+            return owner.putDataPackage(key, dataPackage);
+        }
         if (dataPackage.getTaskId() == null) {
             dataPackage.setTaskId(NetTool.produceTaskId());
         }
+        byte result = PUT_REJECTED;
         synchronized (sendLock) {
             if (key != null && key.isValid() && sendingStateHashMap.containsKey(key)) {
-                Queue<DataPackage> sendQueue = sendHashMap.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>());
-                sendQueue.add(dataPackage);
+                SendQueue sendQueue = sendHashMap.computeIfAbsent(key, k -> new SendQueue(this, k));
+                if (expireQueue(key, sendQueue)) {
+                    return PUT_REJECTED;
+                }
+                if (!sendQueue.offer(dataPackage)) {
+                    NetLog.warn("连接 [$] 发送队列已满 (数量:$ 字节:$),已丢弃 {$}"
+                            , key.channel(), sendQueue.size(), sendQueue.getBytes(), dataPackage);
+                    return PUT_REJECTED;
+                }
+                result = PUT_ACCEPTED;
                 if (!sendingStateHashMap.get(key).get() && ((key.interestOps() & SelectionKey.OP_WRITE) == 0)) {
-                    eventQueue.add(() -> {
+                    Runnable task = () -> {
+                        lingerSet.remove(key);
                         if (key.isValid()) {
                             key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         }
-                    });
-                    selector.wakeup();
+                    };
+                    if (writeLinger > 0 && writeBatchCount > 1 && this instanceof BatchLink) {
+                        if (lingerSet.add(key)) {
+                            Connection.of(key).getReactor().schedule(task, writeLinger);
+                        }
+                    } else {
+                        Connection.of(key).getReactor().addEvent(task);
+                    }
                 }
             }
         }
-        if (dataPackage.getAppendState() == DataPackage.APPEND_1) {
+        // 续传的文件其附加数据包已随首次发送发出
+        if (dataPackage.getAppendState() == DataPackage.APPEND_1 && dataPackage.getAppendDataPackage() != null) {
             DataPackage DP = dataPackage.getAppendDataPackage();
-            String taskId = dataPackage.getTaskId();
+            TaskId taskId = dataPackage.getTaskId();
             if (!taskId.equals(DP.getTaskId())) {
                 DP.setTaskId(taskId);
             }
@@ -231,65 +442,149 @@ public abstract class Link extends Thread{
                 default -> throw new IllegalStateException();
             }
         }
+        return result;
+    }
+
+    /**
+     * 连续解码通道中已到达的帧,最多readFrameBudget个;预算用尽且仍有预读数据时重新提交,否则恢复可读
+     * 帧之后由子类直接从通道读取的内容未读完时,等待下次可读再继续
+     * 接收的字节超出限速时暂停读取,等待相应时长后再继续
+     */
+    protected void receiveReceive(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        FrameDecoder<?> decoder = Connection.of(key).getDecoder();
+        boolean resubmit = false;
+        long delay = 0;
+        try {
+            for (int frameCount = 0; frameCount < readFrameBudget; ) {
+                long wait = receiveBody(key);
+                if (wait != 0) {
+                    delay = Math.max(wait, 0);
+                    return;
+                }
+                byte result = decoder.decode(channel);
+                if (result == FrameDecoder.HEADER) {
+                    if (!verifyHeader(key, decoder.getDataPackage())) {
+                        cancelLink(key);
+                        return;
+                    }
+                } else if (result == FrameDecoder.FRAME) {
+                    frameCount++;
+                    DataPackage dataPackage = decoder.getDataPackage();
+                    receiveFrame(key, dataPackage);
+                    if (!key.isValid() || !channel.isOpen()) {
+                        return;
+                    }
+                    delay = consume(key, BandwidthTable.UPLOAD, frameBytes(dataPackage));
+                    if (delay > 0) {
+                        return;
+                    }
+                } else if (result == FrameDecoder.EOF) {
+                    cancelLink(key);
+                    return;
+                } else {
+                    return;
+                }
+            }
+            resubmit = decoder.hasBuffered();
+        } catch (IOException e) {
+            cancelLink(key);
+        } finally {
+            if (delay > 0) {
+                receiveLater(key, delay);
+            } else if (!resubmit || !resubmit(key)) {
+                receiveFinish(key);
+            }
+        }
+    }
+    /**
+     * 预读数据交由工作线程继续处理,线程池已拒绝时返回false,由调用方恢复可读
+     */
+    private boolean resubmit(SelectionKey key) {
+        try {
+            workPool.submit(() -> {receiveReceive(key);});
+            return true;
+        } catch (RejectedExecutionException e) {
+            NetLog.error(e);
+            return false;
+        }
+    }
+    /**
+     * delayMillis毫秒后继续接收,有预读数据时直接提交处理,否则恢复可读
+     */
+    private void receiveLater(SelectionKey key, long delayMillis) {
+        TimingWheel.shared().newTimeout(() -> {
+            if (!key.isValid() || cancelSet.contains(key)) {
+                return;
+            }
+            if (!Connection.of(key).getDecoder().hasBuffered() || !resubmit(key)) {
+                receiveFinish(key);
+            }
+        }, delayMillis);
     }
 
     protected void receiveFinish(SelectionKey key) {
         if (key != null && key.isValid() && !cancelSet.contains(key)) {
-            eventQueue.add(() -> {
+            Connection.of(key).getReactor().addEvent(() -> {
                 if (key.isValid()) {
                     key.interestOps(key.interestOps() | SelectionKey.OP_READ);
                 }
             });
-            selector.wakeup();
+        }
+    }
+    /**
+     * 发送的字节超出限速时,delayMillis毫秒后再结束本次发送,期间连接上不再发送
+     */
+    protected void sendFinish(SelectionKey key, long delayMillis) {
+        if (delayMillis > 0) {
+            TimingWheel.shared().newTimeout(() -> {sendFinish(key);}, delayMillis);
+        } else {
+            sendFinish(key);
         }
     }
     protected void sendFinish(SelectionKey key) {
         if (key != null && key.isValid() && !cancelSet.contains(key)) {
             sendingStateHashMap.get(key).set(false);
-            if ((sendHashMap.get(key) != null) && ((key.interestOps() & SelectionKey.OP_WRITE) == 0)) {
-                eventQueue.add(() -> {
+            SendQueue sendQueue = sendHashMap.get(key);
+            if (sendQueue != null && !sendQueue.isEmpty() && ((key.interestOps() & SelectionKey.OP_WRITE) == 0)) {
+                Connection.of(key).getReactor().addEvent(() -> {
                     if (key.isValid()) {
                         key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                     }
                 });
-                selector.wakeup();
             }
         }
     }
     protected void addDataPackage(DataPackage dataPackage) {
         if (dataPackage.getAppendState() == DataPackage.APPEND_1 || dataPackage.getAppendState() == DataPackage.APPEND_2) {
-            synchronized (dataPackage.getUID()) {
-                DataPackage tempDataPackage = linkTable.getAppendDataPackage(dataPackage.getTaskId());
-                if (tempDataPackage != null) {
-                    DataPackage DP;
-                    if (tempDataPackage.getAppendState() == DataPackage.APPEND_1) {
-                        DP = tempDataPackage.addAppendDataPackage(dataPackage);
-                    } else {
-                        DP = dataPackage.addAppendDataPackage(tempDataPackage);
-                    }
-                    switch (DP) {
-                        case CommandPackage commandPackage -> {
-                            linkTable.getCommandLink().receiveQueue.add(commandPackage);
-                            synchronized (linkTable.getCommandLink().receiveLock) {
-                                linkTable.getCommandLink().receiveLock.notify();
-                            }
+            DataPackage tempDataPackage = linkTable.pairAppendDataPackage(dataPackage);
+            if (tempDataPackage != null) {
+                DataPackage DP;
+                if (tempDataPackage.getAppendState() == DataPackage.APPEND_1) {
+                    DP = tempDataPackage.addAppendDataPackage(dataPackage);
+                } else {
+                    DP = dataPackage.addAppendDataPackage(tempDataPackage);
+                }
+                switch (DP) {
+                    case CommandPackage commandPackage -> {
+                        linkTable.getCommandLink().receiveQueue.add(commandPackage);
+                        synchronized (linkTable.getCommandLink().receiveLock) {
+                            linkTable.getCommandLink().receiveLock.notify();
                         }
-                        case MessagePackage messagePackage -> {
-                            linkTable.getMessageLink().receiveQueue.add(messagePackage);
-                            synchronized (linkTable.getMessageLink().receiveLock) {
-                                linkTable.getMessageLink().receiveLock.notify();
-                            }
+                    }
+                    case MessagePackage messagePackage -> {
+                        linkTable.getMessageLink().receiveQueue.add(messagePackage);
+                        synchronized (linkTable.getMessageLink().receiveLock) {
+                            linkTable.getMessageLink().receiveLock.notify();
                         }
-                        case FilePackage filePackage -> {
-                            linkTable.getFileLink().receiveQueue.add(filePackage);
-                            synchronized (linkTable.getFileLink().receiveLock) {
-                                linkTable.getFileLink().receiveLock.notify();
-                            }
+                    }
+                    case FilePackage filePackage -> {
+                        linkTable.getFileLink().receiveQueue.add(filePackage);
+                        synchronized (linkTable.getFileLink().receiveLock) {
+                            linkTable.getFileLink().receiveLock.notify();
                         }
-                        default -> throw new IllegalStateException();
                     }
-                } else {
-                    linkTable.putAppendDataPackage(dataPackage.getTaskId(), dataPackage);
+                    default -> throw new IllegalStateException();
                 }
             }
         } else {
@@ -313,19 +608,145 @@ public abstract class Link extends Thread{
         }
     }
 
-    protected abstract void receiveReceive(SelectionKey key);
+    private List<DataPackage> pollBatch(DataPackage first, SendQueue sendQueue) {
+        List<DataPackage> batch = new ArrayList<>();
+        batch.add(first);
+        long batchBytes = first.getDataSize();
+        while (batch.size() < writeBatchCount && batchBytes < writeBatchBytes) {
+            DataPackage dataPackage = sendQueue.poll();
+            if (dataPackage == null) {
+                break;
+            }
+            batch.add(dataPackage);
+            batchBytes += dataPackage.getDataSize();
+        }
+        return batch;
+    }
+
+    /**
+     * 发送队列中最早的数据包等待超过maxQueueAge毫秒时断开连接并返回true
+     */
+    private boolean expireQueue(SelectionKey key, SendQueue sendQueue) {
+        long oldestTime = sendQueue.getOldestTime();
+        if (maxQueueAge > 0 && oldestTime > 0 && System.currentTimeMillis() - oldestTime > maxQueueAge) {
+            NetLog.warn("连接 [$] 发送队列中的数据包等待超过 [$] 毫秒,已断开", key.channel(), maxQueueAge);
+            cancelLink(key);
+            return true;
+        }
+        return false;
+    }
+    /**
+     * 定时检查所有发送队列,对端停止读取且之后没有新数据包的连接也能按maxQueueAge断开
+     */
+    private void scheduleQueueAgeSweep() {
+        TimingWheel.shared().newTimeout(() -> {
+            if (maxQueueAge > 0) {
+                sendHashMap.forEach(this::expireQueue);
+            }
+            scheduleQueueAgeSweep();
+        }, Math.max(1000, Math.min(maxQueueAge / 2, 60 * 1000)));
+    }
+
+    protected void writabilityChanged(SelectionKey key, boolean writable) {
+        String UID = linkTable.getUID(key);
+        NetLog.debug("连接 [$] (UID:$) 发送队列已变为 [$]", key.channel(), UID, writable ? "可写" : "不可写");
+        if (writabilityListener != null) {
+            writabilityListener.writabilityChanged(UID, key, writable);
+        }
+    }
+
+    /**
+     * 连接有效且发送队列未超过高水位
+     */
+    protected boolean isWritable(SelectionKey key) {
+        Link owner = ownerOf(key);
+        if (owner != null && owner != this) {
+            return owner.isWritable(key);
+        }
+        SendQueue sendQueue = sendHashMap.get(key);
+        return key.isValid() && (sendQueue == null || sendQueue.isWritable());
+    }
+
+    /**
+     * key是否为注册在本Link上的连接
+     */
+    public boolean isOwner(SelectionKey key) {
+        return ownerOf(key) == this;
+    }
+    /**
+     * key所属的Link,多路复用连接上各种数据包的发送与关闭都交由MuxLink处理
+     */
+    private static Link ownerOf(SelectionKey key) {
+        return key != null && key.attachment() instanceof Connection connection ? connection.getLink() : null;
+    }
+
+    protected static ByteBuffer wrapData(DataPackage dataPackage) {
+        if (dataPackage.getDataSize() > 0) {
+            return ByteBuffer.wrap(dataPackage.getData(), 0, dataPackage.getDataSize());
+        } else {
+            return EMPTY_BUFFER;
+        }
+    }
+
+    /**
+     * 以聚集写一次发出所有缓冲,未写完时从中断处继续,返回写出的字节数
+     */
+    protected static long writeFully(GatheringByteChannel channel, ByteBuffer... buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        long residue = total;
+        while (residue > 0) {
+            residue -= channel.write(buffers);
+        }
+        return total;
+    }
+    /**
+     * 记入key上接收(UPLOAD)或发送(DOWNLOAD)的bytes字节,依次计入全局、本类型连接与会话UID的限速,返回需等待的毫秒数
+     */
+    protected long consume(SelectionKey key, byte direction, long bytes) {
+        BandwidthTable bandwidthTable = this.bandwidthTable;
+        if (bandwidthTable == null || bytes <= 0) {
+            return 0;
+        }
+        RateLimiter linkLimiter = direction == BandwidthTable.UPLOAD ? uploadLimiter : downloadLimiter;
+        return bandwidthTable.consume(direction, linkLimiter, Connection.of(key).getSession(), bytes);
+    }
+
+    protected abstract FrameDecoder<?> newDecoder();
+    protected abstract void cancelLink(SelectionKey key);
+    /**
+     * 帧头部解码后校验,返回false时断开连接
+     */
+    protected abstract boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException;
+    protected abstract void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException;
+    /**
+     * 继续读取上一帧之后不随帧读入内存的内容(如文件分块),只读取已到达的部分
+     * 已读完时返回0;未读完时返回-1,等待下次可读;超出限速时返回需等待的毫秒数
+     */
+    protected long receiveBody(SelectionKey key) throws IOException {
+        return 0;
+    }
+    /**
+     * 接收一帧后计入上传限速的字节数
+     */
+    protected long frameBytes(DataPackage dataPackage) {
+        return dataPackage.getDataSize();
+    }
     protected abstract void sendReceive(SelectionKey key, DataPackage dataPackage);
     protected void extraDisposeTimeOutLink(SelectionKey key) {}
 
+    /**
+     * 心跳检测,每个连接在共用时间轮上挂一个定时任务,到期时按最后活动时间决定断开或顺延
+     */
     protected class HeartBeat {
-        private final ConcurrentHashMap<SelectionKey, Long> lastActivityTime;
-        private final Timer timer;
-        private long HEARTBEAT_INTERVAL = 90000;
+        private final LongAdder timeoutCount;
+        private volatile long HEARTBEAT_INTERVAL = 90000;
         private String name;
 
         protected HeartBeat() {
-            lastActivityTime = new ConcurrentHashMap<>();
-            timer = new Timer(true);
+            timeoutCount = new LongAdder();
         }
 
         public void setHeartBeatInterval(int interval) {
@@ -334,26 +755,49 @@ public abstract class Link extends Thread{
 
         protected void start() {
             name = Link.this.getName();
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    long nowTime = System.currentTimeMillis();
-                    for (Map.Entry<SelectionKey, Long> entry : lastActivityTime.entrySet()) {
-                        if (nowTime - entry.getValue() > HEARTBEAT_INTERVAL) {
-                            breakLink(entry.getKey());
-                            lastActivityTime.remove(entry.getKey());
-                        }
-                    }
-                }
-            }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
             NetLog.info("已开启心跳检测 [$] ,间隔 [$] 秒",name, HEARTBEAT_INTERVAL / 1000);
         }
 
         protected void updateLastActivityTime(SelectionKey key) {
-            lastActivityTime.put(key, System.currentTimeMillis());
+            Connection connection = Connection.of(key);
+            connection.setLastActivityTime(System.currentTimeMillis());
+            if (connection.getHeartBeatTimeout() == null) {
+                synchronized (connection) {
+                    if (connection.getHeartBeatTimeout() == null) {
+                        connection.setHeartBeatTimeout(TimingWheel.shared().newTimeout(() -> check(key), HEARTBEAT_INTERVAL));
+                    }
+                }
+            }
         }
         protected void removeLastActivityTime(SelectionKey key) {
-            lastActivityTime.remove(key);
+            Connection connection = Connection.of(key);
+            synchronized (connection) {
+                TimingWheel.Timeout timeout = connection.getHeartBeatTimeout();
+                if (timeout != null) {
+                    timeout.cancel();
+                    connection.setHeartBeatTimeout(null);
+                }
+            }
+        }
+        protected long getTimeoutCount() {
+            return timeoutCount.sum();
+        }
+
+        private void check(SelectionKey key) {
+            Connection connection = Connection.of(key);
+            long idleTime = System.currentTimeMillis() - connection.getLastActivityTime();
+            synchronized (connection) {
+                if (connection.getHeartBeatTimeout() == null || !key.isValid()) {
+                    return;
+                }
+                if (idleTime < HEARTBEAT_INTERVAL) {
+                    connection.setHeartBeatTimeout(TimingWheel.shared().newTimeout(() -> check(key), HEARTBEAT_INTERVAL - idleTime));
+                    return;
+                }
+                connection.setHeartBeatTimeout(null);
+            }
+            timeoutCount.increment();
+            breakLink(key);
         }
 
         private void breakLink(SelectionKey key) {
@@ -365,8 +809,6 @@ public abstract class Link extends Thread{
                 }
                 cancel(key);
                 extraDisposeTimeOutLink(key);
-            } else {
-                lastActivityTime.remove(key);
             }
         }
     }
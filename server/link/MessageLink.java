@@ -5,149 +5,213 @@ import net.util.LinkTable;
 import net.datapackage.DataPackage;
 import net.datapackage.MessagePackage;
 import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.Session;
+import net.util.TaskId;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+public class MessageLink extends BatchLink {
+    private int replayBatchSize;
 
-public class MessageLink extends Link {
-    private static final int BUFFER_MAX_SIZE = 8*1024;
     public MessageLink(NetServer netServer, LinkTable linkTable) throws IOException {
         super(netServer, linkTable);
+        replayBatchSize = 256;
+    }
+
+    /**
+     * 回放离线消息时每次从离线存储取出的数量
+     */
+    public void setReplayBatchSize(int replayBatchSize) {
+        this.replayBatchSize = Math.max(1, replayBatchSize);
+    }
+
+    @Override
+    protected boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException {
+        if (dataPackage.getWay() != DataPackage.WAY_TOKEN_VERIFY && linkTable.getToken(key) == null) {
+            NetLog.warn("连接 [$] (MessageLink) 无Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+            return false;
+        }
+        return true;
     }
 
     @Override
-    protected void receiveReceive(SelectionKey key) {
+    protected void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException {
         SocketChannel channel = (SocketChannel) key.channel();
-        MessagePackage MDP = new MessagePackage();
-        try {
-            ByteBuffer buffer = ByteBuffer.allocate(MessagePackage.HEADER_SIZE);
-            while (buffer.hasRemaining()) {
-                if (channel.read(buffer) == -1) {
-                    canelMessageLink(key);
+        MessagePackage MDP = (MessagePackage) dataPackage;
+        MDP.setSelectionKey(key).setUID(linkTable.getUID(key));
+        NetLog.debug("接收 {$}", MDP);
+
+        if (MDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
+            Session session = linkTable.getSessionByToken(MDP.getData());
+            SelectionKey commandKey = session != null ? session.getCommandKey() : null;
+            if (commandKey != null) {
+                SelectionKey messageKey = session.getMessageKey();
+                if (messageKey != null) {
+                    NetLog.warn("连接 [$] (MessageLink) 已替换为 [$] ,原连接已断开"
+                            , ((SocketChannel)messageKey.channel()).getRemoteAddress(), channel.getRemoteAddress());
+                    cancelLink(messageKey);
+                }
+                String UID = session.getUID();
+                pinReactor(key, commandKey, newMessageKey -> {
+                    linkTable.addMessageKey(commandKey, newMessageKey);
+                    linkTable.setMessageLinkStata(UID, LinkTable.VERIFY);
+                    submitReplay(UID);
+                });
+            } else {
+                NetLog.warn("连接 [$] (MessageLink) 已断开,Token验证失败", channel.getRemoteAddress());
+                cancelLink(key);
+            }
+        } else {
+            addDataPackage(MDP);
+        }
+    }
+
+    /**
+     * 将离线存储中UID的消息分批放入发送队列,发送队列不可写时暂停,恢复可写后继续
+     * 取尽时将VERIFY置为READY
+     */
+    public void replay(String UID) {
+        Session session = linkTable.getSessionByUID(UID);
+        while (session != null && session.beginReplay()) {
+            SelectionKey key = session.getMessageKey();
+            boolean drained;
+            try {
+                if (key == null) {
                     return;
                 }
+                drained = replay(session, key);
+            } finally {
+                session.endReplay();
             }
-            buffer.flip();
-            MDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
-                    .setTime(buffer.getLong()).setDataSize(buffer.getInt());
-            if (MDP.getWay() != DataPackage.WAY_TOKEN_VERIFY && linkTable.getToken(key) == null) {
-                NetLog.warn("连接 [$] (MessageLink) 无Token,已断开", channel.getRemoteAddress());
-                canelMessageLink(key);
+            // 结束回放前后可能有新写入的离线消息或发送队列恢复可写,此时由本线程继续
+            if (drained ? !linkTable.hasOfflineMessage(UID) : !isWritable(key)) {
                 return;
             }
-            byte[] senderBytes = new byte[buffer.getShort()];
-            byte[] receiverBytes = new byte[buffer.getShort()];
-            byte[] taskIdBytes = new byte[buffer.getShort()];
-            buffer = ByteBuffer.allocate(senderBytes.length + receiverBytes.length + taskIdBytes.length);
-            while (buffer.hasRemaining()) {
-                channel.read(buffer);
-            }
-            buffer.flip();
-            buffer.get(senderBytes).get(receiverBytes).get(taskIdBytes);
-            MDP.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes)).setTaskId(new String(taskIdBytes));
-            int dataSize = MDP.getDataSize();
-            if (dataSize > 0) {
-                byte[] data = new byte[dataSize];
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                for (int residue = dataSize, readCount = 0; residue > 0; residue -= readCount, readCount = 0) {
-                    if (residue < buffer.remaining()) {
-                        buffer.limit(residue);
-                    }
-                    while (buffer.hasRemaining()) {
-                        readCount += channel.read(buffer);
-                    }
-                    buffer.flip();
-                    buffer.get(data, dataSize - residue,
-                            (Math.min(residue, buffer.remaining())));
-                    buffer.clear();
+        }
+    }
+    private boolean replay(Session session, SelectionKey key) {
+        String UID = session.getUID();
+        while (true) {
+            List<MessagePackage> batch = linkTable.peekMessagePackage(UID, replayBatchSize);
+            int count = 0;
+            for (MessagePackage MDP : batch) {
+                if (!isWritable(key) || putDataPackage(key, MDP.setSelectionKey(key).setUID(UID)) != PUT_ACCEPTED) {
+                    break;
                 }
-                MDP.setData(data);
+                count++;
             }
-            MDP.setSelectionKey(key).setUID(linkTable.getUID(key));
-            NetLog.debug("接收 {$}", MDP);
-
-            if (MDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
-                String token = MDP.getContent();
-                SelectionKey commandKey = linkTable.getCommandKeyByToken(token);
-                if (commandKey != null) {
-                    SelectionKey messageKey = linkTable.getMessageKeyByToken(token);
-                    if (messageKey != null) {
-                        NetLog.warn("连接 [$] (MessageLink) 已替换为 [$] ,原连接已断开"
-                                , ((SocketChannel)messageKey.channel()).getRemoteAddress(), channel.getRemoteAddress());
-                        canelMessageLink(messageKey);
-                    }
-                    String UID = linkTable.getUID(commandKey);
-                    linkTable.addMessageKey(commandKey, key);
-                    linkTable.setMessageLinkStata(UID, LinkTable.VERIFY);
-                    while (true) {
-                        MessagePackage messagePackage = linkTable.getMessagePackage(UID);
-                        if (messagePackage != null) {
-                            putDataPackage(key, messagePackage.setSelectionKey(key).setUID(UID));
-                        } else {
-                            linkTable.setMessageLinkStata(UID, LinkTable.READY);
-                            break;
-                        }
-                    }
-                } else {
-                    NetLog.warn("连接 [$] (MessageLink) 已断开,Token验证失败", channel.getRemoteAddress());
-                    canelMessageLink(key);
+            if (linkTable.removeMessagePackage(UID, count)) {
+                if (count > 0) {
+                    NetLog.debug("UID [$] 的离线消息已全部放入发送队列", UID);
                 }
-            } else {
-                addDataPackage(MDP);
+                return true;
+            }
+            if (count < batch.size()) {
+                return false;
             }
-        } catch (IOException e) {
-            canelMessageLink(key);
-        } finally {
-            receiveFinish(key);
         }
     }
-
-    @Override
-    protected void sendReceive(SelectionKey key, DataPackage dataPackage) {
-        SocketChannel channel = (SocketChannel) key.channel();
-        MessagePackage MDP = (MessagePackage) dataPackage;
+    private void submitReplay(String UID) {
         try {
-            ByteBuffer buffer = ByteBuffer.allocate(MessagePackage.HEADER_SIZE
-                    + MDP.getTaskIdLength() + MDP.getSenderLenght() + MDP.getReceiverLenght());
-            buffer.put(MDP.getWay()).put(MDP.getType()).put(MDP.getAppendState()).putLong(MDP.getTime()).putInt(MDP.getDataSize())
-                    .putShort(MDP.getSenderLenght()).putShort(MDP.getReceiverLenght()).putShort(MDP.getTaskIdLength())
-                    .put(MDP.getSenderBytes()).put(MDP.getReceiverBytes()).put(MDP.getTaskIdBytes());
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
-            }
-            int dataSize = MDP.getDataSize();
-            if (dataSize > 0) {
-                buffer = ByteBuffer.allocate(Math.min(dataSize, BUFFER_MAX_SIZE));
-                byte[] data = MDP.getData();
-                for (int residue = dataSize, writeCount = 0; residue > 0;residue -= writeCount, writeCount = 0) {
-                    buffer.put(data, dataSize - residue, Math.min(residue, buffer.remaining()));
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        writeCount += channel.write(buffer);
-                    }
-                    buffer.clear();
-                }
-            }
-            NetLog.debug("发送 {$} 成功", MDP);
-        } catch (IOException e) {
-            NetLog.error("发送 {$} 失败", MDP);
+            workPool.submit(() -> {replay(UID);});
+        } catch (RejectedExecutionException e) {
             NetLog.error(e);
-            canelMessageLink(key);
-        } finally {
-            sendFinish(key);
         }
     }
 
+    /**
+     * 将MDP的头部与数据一次编码为可由多个连接共享的只读帧,用完后须release()
+     */
+    public SharedFrame encodeShared(MessagePackage MDP) {
+        ByteBuffer[] frame = encode(MDP);
+        ByteBuffer buffer = BufferPool.acquire(frame[0].remaining() + frame[1].remaining());
+        buffer.put(frame[0]).put(frame[1]).flip();
+        BufferPool.release(frame[0]);
+        return new SharedFrame(buffer);
+    }
+    /**
+     * 将共享帧放入连接的发送队列,成功时持有一次引用,写出或连接关闭后释放
+     */
+    public byte putSharedFrame(SelectionKey key, SharedFrame frame, MessagePackage MDP, String UID) {
+        SharedPackage sharedPackage = new SharedPackage(frame.retain(), MDP);
+        sharedPackage.setSelectionKey(key).setUID(UID);
+        byte result = putDataPackage(key, sharedPackage);
+        if (result == PUT_REJECTED) {
+            frame.release();
+        }
+        return result;
+    }
+
+    @Override
+    protected void writabilityChanged(SelectionKey key, boolean writable) {
+        super.writabilityChanged(key, writable);
+        String UID = linkTable.getUID(key);
+        if (writable && UID != null && linkTable.hasOfflineMessage(UID)) {
+            submitReplay(UID);
+        }
+    }
+
+    @Override
+    protected ByteBuffer[] encode(DataPackage dataPackage) {
+        MessagePackage MDP = (MessagePackage) dataPackage;
+        ByteBuffer header = BufferPool.acquire(MessagePackage.HEADER_SIZE + MDP.getSenderLenght() + MDP.getReceiverLenght());
+        header.put(MDP.getWay()).put(MDP.getType()).put(MDP.getAppendState()).putLong(MDP.getTime()).putInt(MDP.getDataSize())
+                .putShort(MDP.getSenderLenght()).putShort(MDP.getReceiverLenght());
+        TaskId.write(header, MDP.getTaskId()).put(MDP.getSenderBytes()).put(MDP.getReceiverBytes()).flip();
+        return new ByteBuffer[]{header, wrapData(MDP)};
+    }
+
+    @Override
+    protected FrameDecoder<?> newDecoder() {
+        return new MessageDecoder();
+    }
+
     @Override
     protected void extraDisposeTimeOutLink(SelectionKey key) {
         linkTable.removeMessageKey(key);
     }
 
-    private void canelMessageLink(SelectionKey key) {
+    @Override
+    protected void cancelLink(SelectionKey key) {
         linkTable.removeMessageKey(key);
         cancel(key);
     }
+
+    protected static class MessageDecoder extends FrameDecoder<MessagePackage> {
+        private short senderLength, receiverLength;
+
+        protected MessageDecoder() {
+            super(MessagePackage.HEADER_SIZE, true);
+        }
+
+        @Override
+        protected MessagePackage newDataPackage() {
+            return new MessagePackage();
+        }
+        @Override
+        protected int decodeHeader(ByteBuffer header) {
+            dataPackage.setWay(header.get()).setType(header.get()).setAppendState(header.get())
+                    .setTime(header.getLong()).setDataSize(header.getInt());
+            senderLength = header.getShort();
+            receiverLength = header.getShort();
+            dataPackage.setTaskId(TaskId.read(header));
+            if (senderLength < 0 || receiverLength < 0) {
+                return -1;
+            }
+            return senderLength + receiverLength;
+        }
+        @Override
+        protected void decodeField(ByteBuffer field) {
+            byte[] senderBytes = new byte[senderLength];
+            byte[] receiverBytes = new byte[receiverLength];
+            field.get(senderBytes).get(receiverBytes);
+            dataPackage.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes));
+        }
+    }
 }
\ No newline at end of file
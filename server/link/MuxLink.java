@@ -0,0 +1,411 @@
+package net.link;
+
+import net.NetServer;
+import net.datapackage.CommandPackage;
+import net.datapackage.DataPackage;
+import net.datapackage.FilePackage;
+import net.datapackage.MessagePackage;
+import net.log.NetLog;
+import net.util.BufferPool;
+import net.util.LinkTable;
+import net.util.TaskId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 多路复用连接,控制、消息与文件三种流共用一条连接,登录后消息流与文件流即就绪,无需另建连接
+ * 帧结构: 流(1) + 长度(4) + 对应连接上的原有帧;文件内容按分块发送,分块之间可穿插其他流的帧
+ * 每个文件同时只有一个分块在发送队列中,文件流占用的队列空间不超过一个分块,不会挤占控制流与消息流
+ */
+
+public class MuxLink extends BatchLink {
+    public static final int HEADER_SIZE = 5;
+    // 控制流
+    public static final byte STREAM_COMMAND = 1;
+    // 消息流
+    public static final byte STREAM_MESSAGE = 2;
+    // 文件流,文件头部
+    public static final byte STREAM_FILE = 3;
+    // 文件流,文件内容分块: taskId(16) + 数据
+    public static final byte STREAM_FILE_DATA = 4;
+    // 未获得Token的连接只能发送登录等指令,帧长度不超过此值
+    private static final int MAX_UNVERIFIED_FRAME_SIZE = 16 * 1024;
+
+    private final ConcurrentHashMap<SelectionKey, Map<TaskId, IncomingFile>> incomingHashMap;
+    private int fileChunkSize, maxFrameSize;
+
+    public MuxLink(NetServer netServer, LinkTable linkTable) throws IOException {
+        super(netServer, linkTable);
+        incomingHashMap = new ConcurrentHashMap<>();
+        // 分块帧连同帧头恰好放入缓冲池最大一级的缓冲
+        fileChunkSize = BufferPool.MAX_POOLED_SIZE - HEADER_SIZE - TaskId.SIZE;
+        // 足以容纳一个文件分块帧,更大的指令与消息需调用setMaxFrameSize()
+        maxFrameSize = BufferPool.MAX_POOLED_SIZE - HEADER_SIZE;
+    }
+
+    /**
+     * 文件内容每个分块的字节数,越小其他流等待的时间越短,超过默认值时分块帧不经过缓冲池
+     */
+    public void setFileChunkSize(int fileChunkSize) {
+        this.fileChunkSize = Math.max(1024, fileChunkSize);
+    }
+    /**
+     * 单个帧(不含流与长度)的最大长度,超过时断开连接,需在start()前调用
+     * 对端的文件分块加上taskId不能超过此值
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 将会话的消息流与文件流绑定到多路复用连接,随后发出暂存的文件与离线消息
+     */
+    public void bind(SelectionKey key) {
+        String UID = linkTable.bindMultiplex(key);
+        if (UID == null) {
+            return;
+        }
+        FilePackage filePackage;
+        while ((filePackage = linkTable.pollFilePackage(UID)) != null) {
+            putDataPackage(key, filePackage.setSelectionKey(key).setUID(UID));
+        }
+        submitReplay(UID);
+    }
+
+    @Override
+    protected boolean verifyHeader(SelectionKey key, DataPackage dataPackage) throws IOException {
+        // 帧内容尚未解码,只能按流与长度校验,此时尚未为帧分配缓冲
+        MuxDecoder decoder = (MuxDecoder) Connection.of(key).getDecoder();
+        if (linkTable.getToken(key) != null) {
+            return true;
+        }
+        if (decoder.stream != STREAM_COMMAND) {
+            NetLog.warn("连接 [$] (MuxLink) 无Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+            return false;
+        }
+        if (decoder.length > MAX_UNVERIFIED_FRAME_SIZE) {
+            NetLog.warn("连接 [$] (MuxLink) 无Token,帧长度 [$] 超过上限,已断开", ((SocketChannel) key.channel()).getRemoteAddress(), decoder.length);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void receiveFrame(SelectionKey key, DataPackage dataPackage) throws IOException {
+        switch (dataPackage) {
+            case CommandPackage CDP -> {
+                CommandLink commandLink = linkTable.getCommandLink();
+                if (!commandLink.verifyHeader(key, CDP)) {
+                    cancelLink(key);
+                    return;
+                }
+                commandLink.receiveFrame(key, CDP);
+                // 重新连接时Token验证成功,会话已转到新连接
+                if (CDP.getWay() == DataPackage.WAY_TOKEN_VERIFY && linkTable.getSession(key) != null) {
+                    bind(key);
+                }
+            }
+            case MessagePackage MDP -> {
+                if (MDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
+                    NetLog.warn("连接 [$] (MuxLink) 在消息流上验证Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+                    cancelLink(key);
+                    return;
+                }
+                linkTable.getMessageLink().receiveFrame(key, MDP);
+            }
+            case FilePackage FDP -> {
+                if (FDP.getWay() == DataPackage.WAY_TOKEN_VERIFY) {
+                    NetLog.warn("连接 [$] (MuxLink) 在文件流上验证Token,已断开", ((SocketChannel) key.channel()).getRemoteAddress());
+                    cancelLink(key);
+                    return;
+                }
+                beginFile(key, FDP);
+            }
+            case FileChunk fileChunk -> appendFile(key, fileChunk);
+            default -> throw new IllegalStateException();
+        }
+    }
+
+    private void beginFile(SelectionKey key, FilePackage FDP) throws IOException {
+        FDP.setSelectionKey(key).setUID(linkTable.getUID(key));
+        IncomingFile incomingFile = new IncomingFile(FDP, new File(linkTable.getFileLink().getTempFileName(key)));
+        if (FDP.getFileSize() == 0) {
+            finishFile(incomingFile);
+        } else {
+            incomingHashMap.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(FDP.getTaskId(), incomingFile);
+        }
+    }
+    private void appendFile(SelectionKey key, FileChunk fileChunk) throws IOException {
+        Map<TaskId, IncomingFile> incomingFiles = incomingHashMap.get(key);
+        IncomingFile incomingFile = incomingFiles != null ? incomingFiles.get(fileChunk.getTaskId()) : null;
+        if (incomingFile == null) {
+            throw new IOException("未知文件的分块 " + fileChunk);
+        }
+        if (incomingFile.write(fileChunk.getData())) {
+            incomingFiles.remove(fileChunk.getTaskId());
+            finishFile(incomingFile);
+        }
+    }
+    private void finishFile(IncomingFile incomingFile) throws IOException {
+        incomingFile.close();
+        FilePackage FDP = incomingFile.filePackage;
+        FDP.setFile(incomingFile.file).setFileSize(incomingFile.size);
+        NetLog.debug("接收 {$}", FDP);
+        linkTable.getFileLink().addDataPackage(FDP);
+    }
+
+    /**
+     * 写出本批前将各文件的下一个分块排到队尾,写出后由sendFinish()继续注册可写
+     */
+    @Override
+    protected void sendBatch(SelectionKey key, List<DataPackage> batch) {
+        List<DataPackage> frames = new ArrayList<>(batch.size());
+        for (DataPackage dataPackage : batch) {
+            if (dataPackage instanceof FilePackage FDP && FDP.getFileSize() > 0) {
+                try {
+                    requeue(key, new FileChunk(FileChunk.open(FDP), 0, (int) Math.min(FDP.getFileSize(), fileChunkSize)));
+                } catch (IOException e) {
+                    NetLog.error("发送 {$} 失败", FDP);
+                    NetLog.error(e);
+                    continue;
+                }
+            } else if (dataPackage instanceof FileChunk fileChunk) {
+                FileChunk next = fileChunk.next(fileChunkSize);
+                if (next != null) {
+                    requeue(key, next);
+                }
+            }
+            frames.add(dataPackage);
+        }
+        super.sendBatch(key, frames);
+    }
+    private void requeue(SelectionKey key, FileChunk fileChunk) {
+        synchronized (this) {
+            SendQueue sendQueue = sendHashMap.get(key);
+            if (sendQueue != null) {
+                sendQueue.requeue(fileChunk);
+                return;
+            }
+        }
+        fileChunk.close();
+    }
+
+    @Override
+    protected ByteBuffer[] encode(DataPackage dataPackage) throws IOException {
+        return switch (dataPackage) {
+            case CommandPackage CDP -> wrap(STREAM_COMMAND, linkTable.getCommandLink().encode(CDP));
+            case MessagePackage MDP -> wrap(STREAM_MESSAGE, linkTable.getMessageLink().encode(MDP));
+            case FilePackage FDP -> {
+                ByteBuffer header = BufferPool.acquire(HEADER_SIZE + FilePackage.HEADER_SIZE);
+                header.put(STREAM_FILE).putInt(FilePackage.HEADER_SIZE).put(FDP.getWay()).put(FDP.getType())
+                        .put(FDP.getAppendState()).putLong(FDP.getTime()).putLong(FDP.getFileSize());
+                TaskId.write(header, FDP.getTaskId()).flip();
+                yield new ByteBuffer[]{header, EMPTY_BUFFER};
+            }
+            case FileChunk fileChunk -> {
+                ByteBuffer buffer = BufferPool.acquire(HEADER_SIZE + TaskId.SIZE + fileChunk.getDataSize());
+                buffer.put(STREAM_FILE_DATA).putInt(TaskId.SIZE + fileChunk.getDataSize());
+                TaskId.write(buffer, fileChunk.getTaskId());
+                try {
+                    fileChunk.read(buffer);
+                } catch (IOException e) {
+                    BufferPool.release(buffer);
+                    fileChunk.close();
+                    throw e;
+                }
+                yield new ByteBuffer[]{buffer.flip(), EMPTY_BUFFER};
+            }
+            default -> throw new IllegalStateException();
+        };
+    }
+    @Override
+    protected ByteBuffer[] wrapShared(SharedPackage sharedPackage) {
+        ByteBuffer header = BufferPool.acquire(HEADER_SIZE);
+        header.put(STREAM_MESSAGE).putInt(sharedPackage.getFrame().size()).flip();
+        return new ByteBuffer[]{header, sharedPackage.getFrame().duplicate()};
+    }
+    private static ByteBuffer[] wrap(byte stream, ByteBuffer[] frame) {
+        ByteBuffer header = BufferPool.acquire(HEADER_SIZE + frame[0].remaining());
+        header.put(stream).putInt(frame[0].remaining() + frame[1].remaining()).put(frame[0]).flip();
+        BufferPool.release(frame[0]);
+        return new ByteBuffer[]{header, frame[1]};
+    }
+
+    @Override
+    protected void writabilityChanged(SelectionKey key, boolean writable) {
+        super.writabilityChanged(key, writable);
+        String UID = linkTable.getUID(key);
+        if (writable && UID != null && linkTable.hasOfflineMessage(UID)) {
+            submitReplay(UID);
+        }
+    }
+    private void submitReplay(String UID) {
+        try {
+            workPool.submit(() -> {linkTable.getMessageLink().replay(UID);});
+        } catch (RejectedExecutionException e) {
+            NetLog.error(e);
+        }
+    }
+
+    @Override
+    protected FrameDecoder<?> newDecoder() {
+        return new MuxDecoder(maxFrameSize);
+    }
+
+    @Override
+    protected void extraDisposeTimeOutLink(SelectionKey key) {
+        linkTable.cancel(key);
+    }
+
+    @Override
+    protected void cancelLink(SelectionKey key) {
+        linkTable.cancel(key);
+        cancel(key);
+    }
+    @Override
+    public synchronized void cancel(SelectionKey key) {
+        super.cancel(key);
+        // 删除未接收完的文件
+        Map<TaskId, IncomingFile> incomingFiles = incomingHashMap.remove(key);
+        if (incomingFiles != null) {
+            for (IncomingFile incomingFile : incomingFiles.values()) {
+                incomingFile.abort();
+            }
+        }
+    }
+
+    protected static class MuxDecoder extends FrameDecoder<DataPackage> {
+        private final CommandLink.CommandDecoder commandDecoder;
+        private final MessageLink.MessageDecoder messageDecoder;
+        private final int maxFrameSize;
+        private byte stream;
+        private int length;
+
+        protected MuxDecoder(int maxFrameSize) {
+            super(HEADER_SIZE, true);
+            this.maxFrameSize = maxFrameSize;
+            commandDecoder = new CommandLink.CommandDecoder();
+            messageDecoder = new MessageLink.MessageDecoder();
+        }
+
+        @Override
+        protected DataPackage newDataPackage() {
+            // 由decodeField()按流创建
+            return null;
+        }
+        @Override
+        protected int decodeHeader(ByteBuffer header) {
+            stream = header.get();
+            length = header.getInt();
+            if (stream < STREAM_COMMAND || stream > STREAM_FILE_DATA || length < 0 || length > maxFrameSize) {
+                return -1;
+            }
+            return length;
+        }
+        @Override
+        protected void decodeField(ByteBuffer field) throws IOException {
+            dataPackage = switch (stream) {
+                case STREAM_COMMAND -> commandDecoder.decodeFrame(field);
+                case STREAM_MESSAGE -> messageDecoder.decodeFrame(field);
+                case STREAM_FILE -> decodeFileHeader(field);
+                default -> {
+                    if (field.remaining() < TaskId.SIZE) {
+                        throw new IOException("非法的文件分块");
+                    }
+                    FileChunk fileChunk = new FileChunk();
+                    fileChunk.setTaskId(TaskId.read(field));
+                    byte[] data = new byte[field.remaining()];
+                    field.get(data);
+                    fileChunk.setData(data).setDataSize(data.length);
+                    yield fileChunk;
+                }
+            };
+        }
+        /**
+         * 文件流的头部不含文件连接上的分块偏移与长度,不能使用FileDecoder
+         */
+        private static FilePackage decodeFileHeader(ByteBuffer field) throws IOException {
+            if (field.remaining() != FilePackage.HEADER_SIZE) {
+                throw new IOException("非法的文件头部");
+            }
+            FilePackage FDP = new FilePackage();
+            FDP.setWay(field.get()).setType(field.get()).setAppendState(field.get()).setTime(field.getLong());
+            long fileSize = field.getLong();
+            if (fileSize < 0) {
+                throw new IOException("非法的文件长度");
+            }
+            FDP.setFileSize(fileSize);
+            FDP.setTaskId(TaskId.read(field));
+            return FDP;
+        }
+        @Override
+        protected int bodySize() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void release() {
+            super.release();
+            commandDecoder.release();
+            messageDecoder.release();
+        }
+    }
+
+    /**
+     * 正在接收的文件,按分块到达顺序追加写入临时文件
+     */
+    private static class IncomingFile {
+        private final FilePackage filePackage;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel fileChannel;
+        private final long size;
+        private long position;
+
+        private IncomingFile(FilePackage filePackage, File file) throws IOException {
+            this.filePackage = filePackage;
+            this.file = file;
+            size = filePackage.getFileSize();
+            raf = new RandomAccessFile(file, "rw");
+            fileChannel = raf.getChannel();
+        }
+
+        /**
+         * 写入一个分块,文件已接收完整时返回true
+         */
+        private boolean write(byte[] data) throws IOException {
+            if (position + data.length > size) {
+                throw new IOException("文件分块超出文件长度 " + filePackage);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            return position == size;
+        }
+        private void close() throws IOException {
+            raf.close();
+        }
+        private void abort() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                NetLog.error(e);
+            }
+            if (!file.delete()) {
+                NetLog.warn("删除未接收完的文件 [$] 失败", file);
+            }
+        }
+    }
+}
\ No newline at end of file
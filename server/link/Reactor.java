@@ -0,0 +1,99 @@
+package net.link;
+
+import net.log.NetLog;
+import net.util.TimingWheel;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 持有一个Selector的事件循环线程,就绪事件交由连接所属的Link处理
+ */
+
+public class Reactor extends Thread {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> eventQueue;
+    private final AtomicInteger keyCount;
+    private boolean running;
+
+    public Reactor() throws IOException {
+        selector = Selector.open();
+        eventQueue = new ConcurrentLinkedQueue<>();
+        keyCount = new AtomicInteger();
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        super.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                while (eventQueue.isEmpty() && selector.select() > 0) {
+                    extracted();
+                }
+                if (selector.selectNow() > 0) {
+                    extracted();
+                }
+
+                Iterator<Runnable> tasks = eventQueue.iterator();
+                while (tasks.hasNext()) {
+                    tasks.next().run();
+                    tasks.remove();
+                }
+            } catch (RejectedExecutionException | IOException e) {
+                NetLog.error(e);
+            }
+        }
+    }
+
+    private void extracted() throws RejectedExecutionException, IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            if (key.isValid() && key.attachment() instanceof Connection connection) {
+                if (connection.getLink().dispose(key)) {
+                    keys.remove();
+                }
+            } else {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * 在事件循环线程中执行task
+     */
+    public void addEvent(Runnable task) {
+        eventQueue.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 延迟delayMillis毫秒后在事件循环线程中执行task
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        TimingWheel.shared().newTimeout(() -> addEvent(task), delayMillis);
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+    public int getKeyCount() {
+        return keyCount.get();
+    }
+    protected void incrementKeyCount() {
+        keyCount.incrementAndGet();
+    }
+    protected void decrementKeyCount() {
+        keyCount.decrementAndGet();
+    }
+}
\ No newline at end of file
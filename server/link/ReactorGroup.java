@@ -0,0 +1,78 @@
+package net.link;
+
+import net.log.NetLog;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组Reactor,新连接按策略分配到其中一个
+ */
+
+public class ReactorGroup {
+    // 轮询
+    public static final byte ROUND_ROBIN = 1;
+    // 最少连接
+    public static final byte LEAST_LOADED = 2;
+
+    private final Reactor[] reactors;
+    private final AtomicInteger index;
+    private final byte strategy;
+    private final boolean pinned;
+    private boolean started;
+
+    public ReactorGroup(String name, int reactorCount, byte strategy) throws IOException {
+        this(name, reactorCount, strategy, false);
+    }
+
+    /**
+     * @param pinned 为true时,同一UID的三条连接会被迁移到同一个Reactor上
+     */
+    public ReactorGroup(String name, int reactorCount, byte strategy, boolean pinned) throws IOException {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("reactorCount < 1");
+        }
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor();
+            reactors[i].setName(reactorCount == 1 ? name : name + "-" + i);
+        }
+        index = new AtomicInteger();
+        this.strategy = strategy;
+        this.pinned = pinned;
+    }
+
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            for (Reactor reactor : reactors) {
+                reactor.start();
+            }
+            NetLog.info("已启动 [$] 个Reactor [$]", reactors.length, reactors[0].getName());
+        }
+    }
+
+    public Reactor next() {
+        if (reactors.length == 1) {
+            return reactors[0];
+        }
+        if (strategy == LEAST_LOADED) {
+            Reactor leastReactor = reactors[0];
+            for (Reactor reactor : reactors) {
+                if (reactor.getKeyCount() < leastReactor.getKeyCount()) {
+                    leastReactor = reactor;
+                }
+            }
+            return leastReactor;
+        } else {
+            return reactors[Math.floorMod(index.getAndIncrement(), reactors.length)];
+        }
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+    public int getReactorCount() {
+        return reactors.length;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+package net.link;
+
+import net.datapackage.DataPackage;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个连接的发送队列,按数量与字节数设置高低水位
+ * 超过高水位后变为不可写,拒绝新的数据包,直到降至低水位以下
+ */
+
+public class SendQueue {
+    private final ConcurrentLinkedQueue<Entry> queue;
+    private final AtomicInteger count;
+    private final AtomicLong bytes;
+    private final AtomicBoolean writable;
+    private final Link link;
+    private final SelectionKey key;
+
+    protected SendQueue(Link link, SelectionKey key) {
+        this.link = link;
+        this.key = key;
+        queue = new ConcurrentLinkedQueue<>();
+        count = new AtomicInteger();
+        bytes = new AtomicLong();
+        writable = new AtomicBoolean(true);
+    }
+
+    /**
+     * 不可写时返回false,数据包不入队
+     */
+    protected boolean offer(DataPackage dataPackage) {
+        if (!writable.get()) {
+            return false;
+        }
+        add(dataPackage);
+        return true;
+    }
+    /**
+     * 不检查是否可写,用于已开始发送的数据包的后续部分,如文件的下一个分块
+     */
+    protected void requeue(DataPackage dataPackage) {
+        add(dataPackage);
+    }
+    private void add(DataPackage dataPackage) {
+        queue.add(new Entry(dataPackage, System.currentTimeMillis()));
+        int tempCount = count.incrementAndGet();
+        long tempBytes = bytes.addAndGet(dataPackage.getDataSize());
+        if ((tempCount >= link.highWaterCount || tempBytes >= link.highWaterBytes) && writable.compareAndSet(true, false)) {
+            link.writabilityChanged(key, false);
+        }
+    }
+
+    protected DataPackage poll() {
+        Entry entry = queue.poll();
+        if (entry == null) {
+            return null;
+        }
+        int tempCount = count.decrementAndGet();
+        long tempBytes = bytes.addAndGet(-entry.dataPackage.getDataSize());
+        if (tempCount <= link.lowWaterCount && tempBytes <= link.lowWaterBytes && writable.compareAndSet(false, true)) {
+            link.writabilityChanged(key, true);
+        }
+        return entry.dataPackage;
+    }
+
+    /**
+     * 连接关闭时丢弃队列中的数据包,并释放其中共享帧的引用及文件分块打开的文件
+     */
+    protected void clear() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (entry.dataPackage instanceof SharedPackage sharedPackage) {
+                sharedPackage.release();
+            } else if (entry.dataPackage instanceof FileChunk fileChunk) {
+                fileChunk.close();
+            }
+        }
+    }
+
+    /**
+     * 队首数据包入队的时间,队列为空时返回-1
+     */
+    public long getOldestTime() {
+        Entry entry = queue.peek();
+        return entry == null ? -1 : entry.time;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+    public boolean isWritable() {
+        return writable.get();
+    }
+    public int size() {
+        return count.get();
+    }
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private static class Entry {
+        private final DataPackage dataPackage;
+        private final long time;
+
+        private Entry(DataPackage dataPackage, long time) {
+            this.dataPackage = dataPackage;
+            this.time = time;
+        }
+    }
+}
\ No newline at end of file
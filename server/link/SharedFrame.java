@@ -0,0 +1,48 @@
+package net.link;
+
+import net.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 只编码一次、由多个连接的发送队列共享的只读帧
+ * 每个持有者写出或丢弃后release()一次,引用归零时缓冲归还BufferPool
+ */
+
+public class SharedFrame {
+    private final ByteBuffer buffer;
+    private final ByteBuffer frame;
+    private final AtomicInteger refCount;
+
+    protected SharedFrame(ByteBuffer buffer) {
+        this.buffer = buffer;
+        frame = buffer.asReadOnlyBuffer();
+        refCount = new AtomicInteger(1);
+    }
+
+    protected SharedFrame retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("SharedFrame已释放");
+        }
+        return this;
+    }
+    public void release() {
+        if (refCount.decrementAndGet() == 0) {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * 独立position与limit的只读视图,供单个连接写出
+     */
+    protected ByteBuffer duplicate() {
+        return frame.duplicate();
+    }
+    public int size() {
+        return frame.remaining();
+    }
+    public int refCount() {
+        return refCount.get();
+    }
+}
\ No newline at end of file
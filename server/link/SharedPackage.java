@@ -0,0 +1,36 @@
+package net.link;
+
+import net.datapackage.DataPackage;
+import net.datapackage.MessagePackage;
+
+/**
+ * 发送队列中指向SharedFrame的数据包,写出或丢弃后释放一次引用
+ */
+
+class SharedPackage extends DataPackage {
+    private final SharedFrame frame;
+    private final MessagePackage origin;
+
+    SharedPackage(SharedFrame frame, MessagePackage origin) {
+        this.frame = frame;
+        this.origin = origin;
+        way = origin.getWay();
+        type = origin.getType();
+        time = origin.getTime();
+        taskId = origin.getTaskId();
+        // 按整帧计入发送队列的字节数
+        dataSize = frame.size();
+    }
+
+    SharedFrame getFrame() {
+        return frame;
+    }
+    void release() {
+        frame.release();
+    }
+
+    @Override
+    public String toString() {
+        return "Shared" + super.toString() + " [sender=" + origin.getSender() + ", receiver=" + origin.getReceiver() + "]";
+    }
+}
\ No newline at end of file
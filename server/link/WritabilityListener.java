@@ -0,0 +1,11 @@
+package net.link;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * 发送队列越过高水位或回落到低水位时回调,在调用putDataPackage的线程或Reactor线程中执行,不应阻塞
+ */
+
+public interface WritabilityListener {
+    void writabilityChanged(String UID, SelectionKey key, boolean writable);
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package net.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 全局与按UID的上传、下载速率设置,运行中可修改
+ * 按UID的限速器挂在会话上,由该UID的所有连接共用;设置变更后在下次传输时按新速率重建
+ */
+
+public class BandwidthTable {
+    public static final byte UPLOAD = 0;
+    public static final byte DOWNLOAD = 1;
+
+    // UID -> [上传速率, 下载速率],未登记的UID使用defaultUIDRate
+    private final ConcurrentHashMap<String, long[]> uidRateHashMap;
+    private volatile RateLimiter[] globalLimiters;
+    private volatile long[] defaultUIDRate;
+    private volatile int version;
+
+    public BandwidthTable() {
+        uidRateHashMap = new ConcurrentHashMap<>();
+        globalLimiters = new RateLimiter[2];
+        defaultUIDRate = new long[2];
+    }
+
+    /**
+     * 所有连接合计的上传、下载速率,单位(字节/秒),不大于0时不限制
+     */
+    public void setRate(long uploadRate, long downloadRate) {
+        globalLimiters = new RateLimiter[]{RateLimiter.of(uploadRate), RateLimiter.of(downloadRate)};
+    }
+    /**
+     * 每个UID默认的上传、下载速率,单位(字节/秒),不大于0时不限制
+     */
+    public synchronized void setUIDRate(long uploadRate, long downloadRate) {
+        defaultUIDRate = new long[]{uploadRate, downloadRate};
+        version++;
+    }
+    /**
+     * 单独设置某个UID的上传、下载速率,覆盖默认值
+     */
+    public synchronized void setUIDRate(String UID, long uploadRate, long downloadRate) {
+        uidRateHashMap.put(UID, new long[]{uploadRate, downloadRate});
+        version++;
+    }
+    /**
+     * 移除UID的单独设置,恢复使用默认值
+     */
+    public synchronized void removeUIDRate(String UID) {
+        if (uidRateHashMap.remove(UID) != null) {
+            version++;
+        }
+    }
+
+    /**
+     * 记入连接上传输的bytes字节,分别计入全局、连接类型(linkLimiter)与会话UID的限速器,返回其中最长的等待毫秒数
+     */
+    public long consume(byte direction, RateLimiter linkLimiter, Session session, long bytes) {
+        long wait = consume(globalLimiters[direction], bytes);
+        wait = Math.max(wait, consume(linkLimiter, bytes));
+        if (session != null) {
+            wait = Math.max(wait, consume(limiterOf(session, direction), bytes));
+        }
+        return wait;
+    }
+    private static long consume(RateLimiter rateLimiter, long bytes) {
+        return rateLimiter != null ? rateLimiter.consume(bytes) : 0;
+    }
+    private RateLimiter limiterOf(Session session, byte direction) {
+        UIDLimit uidLimit = session.getUIDLimit();
+        int version = this.version;
+        if (uidLimit == null || uidLimit.version != version) {
+            long[] rate = uidRateHashMap.getOrDefault(session.getUID(), defaultUIDRate);
+            uidLimit = new UIDLimit(version, RateLimiter.of(rate[UPLOAD]), RateLimiter.of(rate[DOWNLOAD]));
+            session.setUIDLimit(uidLimit);
+        }
+        return uidLimit.limiters[direction];
+    }
+
+    /**
+     * 一个会话按UID的限速器及其对应的设置版本
+     */
+    static class UIDLimit {
+        private final int version;
+        private final RateLimiter[] limiters;
+
+        private UIDLimit(int version, RateLimiter uploadLimiter, RateLimiter downloadLimiter) {
+            this.version = version;
+            limiters = new RateLimiter[]{uploadLimiter, downloadLimiter};
+        }
+    }
+}
\ No newline at end of file
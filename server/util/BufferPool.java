@@ -0,0 +1,182 @@
+package net.util;
+
+import net.log.NetLog;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接内存缓冲池,每个线程缓存少量缓冲,其余放回全局队列
+ * 虚拟线程每个任务新建一个,线程缓存随之丢弃,因此虚拟线程直接使用全局队列
+ * acquire()得到的缓冲用完后须release(),调试模式下会记录未归还的缓冲及其申请位置
+ */
+
+public class BufferPool {
+    private static final int[] SIZE_CLASSES = {256, 1024, 4 * 1024, 16 * 1024, 64 * 1024};
+    public static final int MAX_POOLED_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int GLOBAL_CACHE_SIZE = 1024;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] globalQueues = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+    private static final AtomicInteger[] globalCounts = new AtomicInteger[SIZE_CLASSES.length];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = ThreadLocal.withInitial(() -> {
+        ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+        }
+        return caches;
+    });
+
+    private static final LongAdder acquireCount = new LongAdder();
+    private static final LongAdder threadHitCount = new LongAdder();
+    private static final LongAdder globalHitCount = new LongAdder();
+    private static final LongAdder allocateCount = new LongAdder();
+    private static final LongAdder unpooledCount = new LongAdder();
+    private static final LongAdder releaseCount = new LongAdder();
+
+    private static volatile boolean debug;
+    private static final Map<ByteBuffer, Exception> leakMap = new IdentityHashMap<>();
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            globalQueues[i] = new ConcurrentLinkedQueue<>();
+            globalCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {}
+
+    /**
+     * 取得一个position为0,limit为size的缓冲,超过MAX_POOLED_SIZE的请求不经过缓冲池
+     */
+    public static ByteBuffer acquire(int size) {
+        acquireCount.increment();
+        int index = sizeClass(size);
+        ByteBuffer buffer;
+        if (index < 0) {
+            unpooledCount.increment();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            buffer = Thread.currentThread().isVirtual() ? null : threadCaches.get()[index].pollFirst();
+            if (buffer != null) {
+                threadHitCount.increment();
+            } else {
+                buffer = globalQueues[index].poll();
+                if (buffer != null) {
+                    globalCounts[index].decrementAndGet();
+                    globalHitCount.increment();
+                } else {
+                    allocateCount.increment();
+                    buffer = ByteBuffer.allocateDirect(SIZE_CLASSES[index]);
+                }
+            }
+            buffer.clear().limit(size);
+        }
+        if (debug) {
+            synchronized (leakMap) {
+                leakMap.put(buffer, new Exception("缓冲申请于 " + System.currentTimeMillis()));
+            }
+        }
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (debug) {
+            synchronized (leakMap) {
+                if (leakMap.remove(buffer) == null) {
+                    NetLog.warn("缓冲 [$] 重复归还或不属于缓冲池", buffer);
+                    return;
+                }
+            }
+        }
+        releaseCount.increment();
+        int index = exactSizeClass(buffer);
+        if (index < 0) {
+            return;
+        }
+        buffer.clear();
+        ArrayDeque<ByteBuffer> threadCache = Thread.currentThread().isVirtual() ? null : threadCaches.get()[index];
+        if (threadCache != null && threadCache.size() < THREAD_CACHE_SIZE) {
+            threadCache.addFirst(buffer);
+        } else if (globalCounts[index].incrementAndGet() <= GLOBAL_CACHE_SIZE) {
+            globalQueues[index].add(buffer);
+        } else {
+            globalCounts[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * 调试模式,开启后记录每个缓冲的申请位置,用于检查泄漏
+     */
+    public static void setDebug(boolean debug) {
+        BufferPool.debug = debug;
+        if (!debug) {
+            synchronized (leakMap) {
+                leakMap.clear();
+            }
+        }
+    }
+
+    /**
+     * 输出调试模式下尚未归还的缓冲及其申请位置,返回未归还的数量
+     */
+    public static int reportLeak() {
+        synchronized (leakMap) {
+            for (Exception trace : leakMap.values()) {
+                NetLog.warn("缓冲未归还");
+                NetLog.error(trace);
+            }
+            return leakMap.size();
+        }
+    }
+
+    public static long getAcquireCount() {
+        return acquireCount.sum();
+    }
+    public static long getAllocateCount() {
+        return allocateCount.sum();
+    }
+    public static long getReleaseCount() {
+        return releaseCount.sum();
+    }
+    public static String getStatistics() {
+        int pooled = 0;
+        for (AtomicInteger count : globalCounts) {
+            pooled += count.get();
+        }
+        return "BufferPool [acquire=" + acquireCount.sum() + ", threadHit=" + threadHitCount.sum()
+                + ", globalHit=" + globalHitCount.sum() + ", allocate=" + allocateCount.sum()
+                + ", unpooled=" + unpooledCount.sum() + ", release=" + releaseCount.sum()
+                + ", globalPooled=" + pooled + "]";
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    private static int exactSizeClass(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.isReadOnly()) {
+            return -1;
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (buffer.capacity() == SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
\ No newline at end of file
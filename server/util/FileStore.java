@@ -0,0 +1,153 @@
+package net.util;
+
+import net.log.NetLog;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * 按内容哈希存放接收的文件,相同内容只存一份,文件名即哈希值
+ * 每次交付给使用者时引用计数加一,使用者用完后释放;引用为0且超过ttl毫秒未被引用的文件由定时的回收删除
+ * 引用计数不持久化,启动时目录中已有的文件引用为0,在ttl内再次被引用方可保留
+ * 仅凭哈希值取得文件只限于曾上传过该内容的UID,否则知道哈希值即可冒领他人的文件;上传记录同样不持久化
+ */
+
+public final class FileStore {
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    private final File storeDir;
+    private final HashMap<String, Blob> blobHashMap;
+    private volatile long ttl;
+
+    public FileStore(String storePath, long ttl) throws FileNotFoundException {
+        storeDir = new File(storePath);
+        if (!storeDir.exists() && !storeDir.mkdirs()) {
+            throw new FileNotFoundException(storePath);
+        }
+        blobHashMap = new HashMap<>();
+        this.ttl = ttl;
+        File[] files = storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    blobHashMap.put(file.getName(), new Blob(file));
+                }
+            }
+        }
+        NetLog.info("文件存储目录 [$] 已有 [$] 个文件", storeDir, blobHashMap.size());
+        scheduleCollect();
+    }
+
+    /**
+     * 存有哈希值为hash且长度为fileSize的文件,且UID曾上传过该文件时引用加一并返回该文件,否则返回null
+     */
+    public synchronized File acquire(String hash, long fileSize, String UID) {
+        Blob blob = blobHashMap.get(hash);
+        if (blob == null || blob.file.length() != fileSize || UID == null || !blob.owners.contains(UID)) {
+            return null;
+        }
+        blob.refCount++;
+        return blob.file;
+    }
+    /**
+     * 计算file的哈希值并移入存储目录,已存有相同内容时删除file;返回存储的文件,其引用加一
+     * UID不为null时记为该文件的上传者,此后可由acquire()取得
+     */
+    public File put(File file, String UID) throws IOException {
+        String hash;
+        try {
+            hash = NetTool.getFileHashValue(file, HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        synchronized (this) {
+            Blob blob = blobHashMap.get(hash);
+            if (blob != null && blob.file.length() == file.length()) {
+                if (!file.delete()) {
+                    NetLog.warn("无法删除重复的文件 [$]", file);
+                }
+            } else {
+                File blobFile = new File(storeDir, hash);
+                if (!file.renameTo(blobFile)) {
+                    NetTool.moveFile(file, blobFile);
+                }
+                blob = new Blob(blobFile);
+                blobHashMap.put(hash, blob);
+            }
+            blob.refCount++;
+            if (UID != null) {
+                blob.owners.add(UID);
+            }
+            return blob.file;
+        }
+    }
+    /**
+     * 释放一次acquire()或put()得到的引用,file不在存储目录中时忽略
+     */
+    public synchronized void release(File file) {
+        Blob blob = blobHashMap.get(file.getName());
+        if (blob == null || !blob.file.getAbsoluteFile().equals(file.getAbsoluteFile()) || blob.refCount == 0) {
+            return;
+        }
+        if (--blob.refCount == 0) {
+            blob.lastTime = System.currentTimeMillis();
+        }
+    }
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * 删除引用为0且超过ttl毫秒的文件
+     */
+    public synchronized int collect() {
+        long deadline = System.currentTimeMillis() - ttl;
+        int count = 0;
+        Iterator<Blob> iterator = blobHashMap.values().iterator();
+        while (iterator.hasNext()) {
+            Blob blob = iterator.next();
+            if (blob.refCount == 0 && blob.lastTime < deadline) {
+                iterator.remove();
+                if (blob.file.delete() || !blob.file.exists()) {
+                    count++;
+                } else {
+                    NetLog.warn("无法删除未被引用的文件 [$]", blob.file);
+                }
+            }
+        }
+        if (count > 0) {
+            NetLog.info("已回收 [$] 个未被引用的文件 (剩余:$)", count, blobHashMap.size());
+        }
+        return count;
+    }
+    private void scheduleCollect() {
+        TimingWheel.shared().newTimeout(() -> {
+            collect();
+            scheduleCollect();
+        }, Math.max(1000, Math.min(ttl / 4, 60 * 1000)));
+    }
+
+    public synchronized int size() {
+        return blobHashMap.size();
+    }
+
+    private static class Blob {
+        private final File file;
+        // 上传过该内容的UID
+        private final Set<String> owners;
+        private int refCount;
+        private long lastTime;
+
+        private Blob(File file) {
+            this.file = file;
+            owners = new HashSet<>();
+            lastTime = System.currentTimeMillis();
+        }
+    }
+}
\ No newline at end of file
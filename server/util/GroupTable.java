@@ -0,0 +1,78 @@
+package net.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 群组成员表,按群组与UID双向索引,与UID是否在线无关
+ */
+
+public class GroupTable {
+    private final ConcurrentHashMap<String, Set<String>> groupHashMap;
+    private final ConcurrentHashMap<String, Set<String>> UIDHashMap;
+
+    public GroupTable() {
+        groupHashMap = new ConcurrentHashMap<>();
+        UIDHashMap = new ConcurrentHashMap<>();
+    }
+
+    public void join(String groupId, String UID) {
+        add(groupHashMap, groupId, UID);
+        add(UIDHashMap, UID, groupId);
+    }
+    public void leave(String groupId, String UID) {
+        remove(groupHashMap, groupId, UID);
+        remove(UIDHashMap, UID, groupId);
+    }
+    /**
+     * UID退出所有群组
+     */
+    public void leaveAll(String UID) {
+        Set<String> groups = UIDHashMap.remove(UID);
+        if (groups != null) {
+            for (String groupId : groups) {
+                remove(groupHashMap, groupId, UID);
+            }
+        }
+    }
+    public void removeGroup(String groupId) {
+        Set<String> members = groupHashMap.remove(groupId);
+        if (members != null) {
+            for (String UID : members) {
+                remove(UIDHashMap, UID, groupId);
+            }
+        }
+    }
+
+    /**
+     * 群组成员的只读视图,遍历时为弱一致性
+     */
+    public Set<String> getMembers(String groupId) {
+        Set<String> members = groupHashMap.get(groupId);
+        return members != null ? Collections.unmodifiableSet(members) : Set.of();
+    }
+    public Set<String> getGroups(String UID) {
+        Set<String> groups = UIDHashMap.get(UID);
+        return groups != null ? Collections.unmodifiableSet(groups) : Set.of();
+    }
+    public int groupCount() {
+        return groupHashMap.size();
+    }
+
+    private static void add(ConcurrentHashMap<String, Set<String>> hashMap, String key, String value) {
+        hashMap.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(value);
+            return set;
+        });
+    }
+    private static void remove(ConcurrentHashMap<String, Set<String>> hashMap, String key, String value) {
+        hashMap.computeIfPresent(key, (k, set) -> {
+            set.remove(value);
+            return set.isEmpty() ? null : set;
+        });
+    }
+}
\ No newline at end of file
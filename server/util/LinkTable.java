@@ -4,6 +4,7 @@ import net.datapackage.DataPackage;
 import net.datapackage.FilePackage;
 import net.datapackage.MessagePackage;
 import net.link.CommandLink;
+import net.link.Connection;
 import net.link.FileLink;
 import net.link.MessageLink;
 import net.log.NetLog;
@@ -12,24 +13,32 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话表,Session按UID与Token索引,并挂在所属连接的Connection上,由连接查找会话无需查表
+ */
 
 public class LinkTable {
-    private final ConcurrentHashMap<String, ConcurrentHashMap<String, SelectionKey>> keyHashMap;
-    private final ConcurrentHashMap<SelectionKey, ConcurrentHashMap<String, String>> tokenHashMap;
-    private final ConcurrentHashMap<String, Byte> messageLinkStateHashMap;
-    private final ConcurrentHashMap<String, Byte> fileLinkStateHashMap;
-    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<MessagePackage>> messageQueueMap;
-    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<FilePackage>> fileQueueMap;
-    private final ConcurrentHashMap<String, DataPackage> receiveHashMap;
+    private final ConcurrentHashMap<String, Session> UIDHashMap;
+    private final TokenTable tokenTable;
+    private final ReassemblyTable reassemblyTable;
+    private final ConcurrentSkipListSet<String> onlineSet;
+    private final AtomicInteger onlineCount;
+    private volatile OfflineStore offlineStore;
+    private volatile SessionDirectory sessionDirectory;
+    private String nodeId;
     private CommandLink commandLink;
     private MessageLink messageLink;
     private FileLink fileLink;
 
+    // 目标不在线,消息已存入离线存储
+    public static final byte OFFLINE = 0;
     // 未连接
     public static final byte LINK_1 = 1;
     // 连接中
@@ -40,13 +49,12 @@ public class LinkTable {
     public static final byte READY = 4;
 
     public LinkTable() {
-        keyHashMap = new ConcurrentHashMap<>();
-        tokenHashMap = new ConcurrentHashMap<>();
-        messageLinkStateHashMap = new ConcurrentHashMap<>();
-        fileLinkStateHashMap = new ConcurrentHashMap<>();
-        messageQueueMap = new ConcurrentHashMap<>();
-        fileQueueMap = new ConcurrentHashMap<>();
-        receiveHashMap = new ConcurrentHashMap<>();
+        UIDHashMap = new ConcurrentHashMap<>();
+        tokenTable = new TokenTable();
+        reassemblyTable = new ReassemblyTable();
+        onlineSet = new ConcurrentSkipListSet<>();
+        onlineCount = new AtomicInteger();
+        offlineStore = new MemoryOfflineStore();
     }
 
     public void setLink(CommandLink commandLink, MessageLink messageLink, FileLink fileLink) {
@@ -55,83 +63,89 @@ public class LinkTable {
         this.fileLink = fileLink;
     }
 
-    public boolean register(SelectionKey commandKey, String UID, String token) {
-        ConcurrentHashMap<String, SelectionKey> tempkeyMap = new ConcurrentHashMap<>(){{put("commandKey", commandKey);}};
-        ConcurrentHashMap<String, String> temptokenMap = new ConcurrentHashMap<>(){{put("UID", UID);put("Token", token);}};
-        if (keyHashMap.putIfAbsent(UID, tempkeyMap) != null) {
-            return false;
+    /**
+     * 替换离线存储,原存储中的消息随之关闭,请在启动前设置
+     */
+    public void setOfflineStore(OfflineStore offlineStore) {
+        OfflineStore oldStore = this.offlineStore;
+        this.offlineStore = offlineStore;
+        if (oldStore != offlineStore) {
+            oldStore.close();
+        }
+    }
+    public OfflineStore getOfflineStore() {
+        return offlineStore;
+    }
+
+    /**
+     * 集群模式下UID注册与注销时同步到会话目录,请在启动前设置
+     */
+    public void setSessionDirectory(SessionDirectory sessionDirectory, String nodeId) {
+        this.nodeId = nodeId;
+        this.sessionDirectory = sessionDirectory;
+    }
+    /**
+     * 集群模式下UID不在本节点而在其他节点在线时返回该节点,否则返回null
+     */
+    public String locateRemote(String UID) {
+        SessionDirectory directory = sessionDirectory;
+        if (directory == null || UIDHashMap.containsKey(UID)) {
+            return null;
+        }
+        String node = directory.lookup(UID);
+        return node == null || node.equals(nodeId) ? null : node;
+    }
+
+    /**
+     * 注册UID并生成Token,UID已注册时返回null
+     */
+    public Token register(SelectionKey commandKey, String UID) {
+        Session session;
+        do {
+            session = new Session(UID, Token.generate(), commandKey);
+        } while (!tokenTable.putIfAbsent(session.getToken(), session));
+        if (UIDHashMap.putIfAbsent(UID, session) != null) {
+            tokenTable.remove(session.getToken(), session);
+            return null;
+        }
+        Connection.of(commandKey).setSession(session);
+        onlineSet.add(UID);
+        onlineCount.incrementAndGet();
+        if (sessionDirectory != null) {
+            sessionDirectory.register(UID, nodeId);
         }
-        keyHashMap.put(token, tempkeyMap);
-        tokenHashMap.put(commandKey, temptokenMap);
-        messageLinkStateHashMap.put(UID, LinkTable.LINK_1);
-        fileLinkStateHashMap.put(UID, LinkTable.LINK_1);
         try {
             NetLog.info("UID [$] 已注册,并绑定连接 [$] (CommandLink) 及Token"
                     , UID, ((SocketChannel)commandKey.channel()).getRemoteAddress());
         } catch (IOException e) {
             NetLog.error(e);
         }
-        return true;
+        return session.getToken();
     }
     public void cancel(SelectionKey commandKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.remove(commandKey);
-        if (temptokenMap != null) {
-            String UID = temptokenMap.get("UID");
-            if (UID != null) {
-                cancel(UID);
-            }
+        Session session = getSession(commandKey);
+        if (session != null && session.getCommandKey() == commandKey) {
+            Connection.of(commandKey).setSession(null);
+            cancel(session.getUID());
         }
     }
     public void cancel(String UID) {
-        messageLinkStateHashMap.remove(UID);
-        fileLinkStateHashMap.remove(UID);
-        ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.remove(UID);
-        if (tempkeyMap != null) {
-            SelectionKey commandKey = tempkeyMap.get("commandKey");
-            if (commandKey != null) {
-                String token = getToken(commandKey);
-                if (token != null) {
-                    keyHashMap.remove(token);
-                }
-                try {
-                    NetLog.info("连接 [$] (CommandLink) 已解除关联UID [$]"
-                            , ((SocketChannel)commandKey.channel()).getRemoteAddress(), UID);
-                } catch (IOException e) {
-                    NetLog.info("连接 [未知,已被关闭] (CommandLink) 已解除关联UID [$]", UID);
-                }
-                commandLink.cancel(commandKey);
-                tokenHashMap.remove(commandKey);
-            }
-            SelectionKey messageKey = tempkeyMap.get("messageKey");
-            if (messageKey != null) {
-                try {
-                    NetLog.info("连接 [$] (MessageLink) 已解除关联UID [$]"
-                            , ((SocketChannel)messageKey.channel()).getRemoteAddress(), UID);
-                } catch (IOException e) {
-                    NetLog.info("连接 [未知,已被关闭] (MessageLink) 已解除关联UID [$]", UID);
-                }
-                messageLink.cancel(messageKey);
-                tokenHashMap.remove(messageKey);
-            }
-            SelectionKey fileKey = tempkeyMap.get("fileKey");
-            if (fileKey != null) {
-                try {
-                    NetLog.info("连接 [$] (FileLink) 已解除关联UID [$]"
-                            , ((SocketChannel)fileKey.channel()).getRemoteAddress(), UID);
-                } catch (IOException e) {
-                    NetLog.info("连接 [未知,已被关闭] (FileLink) 已解除关联UID [$]", UID);
-                }
-                fileLink.cancel(fileKey);
-                tokenHashMap.remove(fileKey);
+        Session session = UIDHashMap.remove(UID);
+        if (session != null) {
+            onlineSet.remove(UID);
+            onlineCount.decrementAndGet();
+            if (sessionDirectory != null) {
+                sessionDirectory.unregister(UID, nodeId);
             }
+            tokenTable.remove(session.getToken(), session);
+            unlink(session);
             NetLog.info("UID [$] 已注销", UID);
         }
     }
     public void updateLink(SelectionKey oldKey, SelectionKey newKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.remove(oldKey);
-        if (temptokenMap != null) {
-            String UID = temptokenMap.get("UID");
-            String token = temptokenMap.get("Token");
+        Session session = getSession(oldKey);
+        if (session != null) {
+            String UID = session.getUID();
             String oldAddress, newAddress;
             try {
                 oldAddress = ((SocketChannel)oldKey.channel()).getRemoteAddress().toString();
@@ -143,202 +157,330 @@ public class LinkTable {
             } catch (IOException e) {
                 newAddress = "未知,已被关闭";
             }
-            if (UID != null) {
-                messageLinkStateHashMap.put(UID, LinkTable.LINK_1);
-                fileLinkStateHashMap.put(UID, LinkTable.LINK_1);
-                ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.remove(UID);
-                if (tempkeyMap != null) {
-                    SelectionKey commandKey = tempkeyMap.get("commandKey");
-                    if (commandKey != null) {
-                        try {
-                            NetLog.info("连接 [$] (CommandLink) 已解除关联UID [$]"
-                                    , ((SocketChannel)commandKey.channel()).getRemoteAddress(), UID);
-                        } catch (IOException e) {
-                            NetLog.info("连接 [未知,已被关闭] (CommandLink) 已解除关联UID [$]", UID);
-                        }
-                        commandLink.cancel(commandKey);
-                        tokenHashMap.remove(commandKey);
-                    }
-                    SelectionKey messageKey = tempkeyMap.get("messageKey");
-                    if (messageKey != null) {
-                        try {
-                            NetLog.info("连接 [$] (MessageLink) 已解除关联UID [$]"
-                                    , ((SocketChannel)messageKey.channel()).getRemoteAddress(), UID);
-                        } catch (IOException e) {
-                            NetLog.info("连接 [未知,已被关闭] (MessageLink) 已解除关联UID [$]", UID);
-                        }
-                        messageLink.cancel(messageKey);
-                        tokenHashMap.remove(messageKey);
-                    }
-                    SelectionKey fileKey = tempkeyMap.get("fileKey");
-                    if (fileKey != null) {
-                        try {
-                            NetLog.info("连接 [$] (FileLink) 已解除关联UID [$]"
-                                    , ((SocketChannel)fileKey.channel()).getRemoteAddress(), UID);
-                        } catch (IOException e) {
-                            NetLog.info("连接 [未知,已被关闭] (FileLink) 已解除关联UID [$]", UID);
-                        }
-                        fileLink.cancel(fileKey);
-                        tokenHashMap.remove(fileKey);
-                    }
-                }
-                if (token != null) {
-                    ConcurrentHashMap<String, SelectionKey> newTempkeyMap = new ConcurrentHashMap<>(){{put("commandKey", newKey);}};
-                    ConcurrentHashMap<String, String> newTemptokenMap = new ConcurrentHashMap<>(){{put("UID", UID);put("Token", token);}};
-                    keyHashMap.put(UID, newTempkeyMap);
-                    keyHashMap.put(token, newTempkeyMap);
-                    tokenHashMap.put(newKey, newTemptokenMap);
-                    NetLog.info("[$] 已更新连接 [$] -> [$]", UID, oldAddress, newAddress);
-                }
-            }
+            // 沿用原会话,暂存的消息与文件在新连接建立后继续发送
+            unlink(session);
+            session.setMessageLinkState(LINK_1);
+            session.setFileLinkState(LINK_1);
+            session.setCommandKey(newKey);
+            Connection.of(newKey).setSession(session);
+            UIDHashMap.put(UID, session);
+            tokenTable.putIfAbsent(session.getToken(), session);
+            NetLog.info("[$] 已更新连接 [$] -> [$]", UID, oldAddress, newAddress);
         }
     }
 
     public void addMessageKey(SelectionKey commandKey, SelectionKey messageKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.get(commandKey);
-        if (temptokenMap != null) {
-            tokenHashMap.put(messageKey, temptokenMap);
-            String UID = temptokenMap.get("UID");
-            ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.get(UID);
-            if (tempkeyMap != null) {
-                tempkeyMap.put("messageKey", messageKey);
-            }
+        Session session = getSession(commandKey);
+        if (session != null) {
+            Connection.of(messageKey).setSession(session);
+            session.setMessageKey(messageKey);
             try {
                 NetLog.info("连接 [$] (MessageLink) 已关联UID [$]"
-                        , ((SocketChannel)messageKey.channel()).getRemoteAddress(), UID);
+                        , ((SocketChannel)messageKey.channel()).getRemoteAddress(), session.getUID());
             } catch (IOException e) {
                 NetLog.error(e);
             }
         }
     }
     public void addFileKey(SelectionKey commandKey, SelectionKey fileKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.get(commandKey);
-        if (temptokenMap != null) {
-            tokenHashMap.put(fileKey, temptokenMap);
-            String UID = temptokenMap.get("UID");
-            ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.get(UID);
-            if (tempkeyMap != null) {
-                tempkeyMap.put("fileKey", fileKey);
-            }
+        Session session = getSession(commandKey);
+        if (session != null) {
+            Connection.of(fileKey).setSession(session);
+            session.setFileKey(fileKey);
             try {
                 NetLog.info("连接 [$] (FileLink) 已关联UID [$]"
-                        , ((SocketChannel)fileKey.channel()).getRemoteAddress(), UID);
+                        , ((SocketChannel)fileKey.channel()).getRemoteAddress(), session.getUID());
             } catch (IOException e) {
                 NetLog.error(e);
             }
         }
     }
-    public void removeMessageKey(SelectionKey messageKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.remove(messageKey);
-        if (temptokenMap != null) {
-            String UID = temptokenMap.get("UID");
-            messageLinkStateHashMap.put(UID, LINK_1);
-            ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.get(UID);
-            if (tempkeyMap != null) {
-                tempkeyMap.remove("messageKey");
-            }
+    public void addFileStripeKey(SelectionKey commandKey, SelectionKey stripeKey) {
+        Session session = getSession(commandKey);
+        if (session != null) {
+            Connection.of(stripeKey).setSession(session);
+            session.getStripeKeys().add(stripeKey);
             try {
-                NetLog.info("连接 [$] (MessageLink) 已解除关联UID [$]"
-                        , ((SocketChannel)messageKey.channel()).getRemoteAddress(), UID);
+                NetLog.info("连接 [$] (FileLink) 已作为分段连接关联UID [$]"
+                        , ((SocketChannel)stripeKey.channel()).getRemoteAddress(), session.getUID());
             } catch (IOException e) {
-                NetLog.info("连接 [未知,已被关闭] (MessageLink) 已解除关联UID [$]", UID);
+                NetLog.error(e);
             }
         }
     }
-    public void removeFileKey(SelectionKey fileKey) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.remove(fileKey);
-        if (temptokenMap != null) {
-            String UID = temptokenMap.get("UID");
-            fileLinkStateHashMap.put(UID, LINK_1);
-            ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.get(UID);
-            if (tempkeyMap != null) {
-                tempkeyMap.remove("fileKey");
+    /**
+     * 多路复用连接上消息流与文件流即为该连接本身,登录或重新连接后直接置为VERIFY,由调用方发出暂存的内容
+     * @return 连接所属的UID,未注册时返回null
+     */
+    public String bindMultiplex(SelectionKey key) {
+        Session session = getSession(key);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session.getMessageLock()) {
+            session.setMessageKey(key);
+            session.setMessageLinkState(VERIFY);
+        }
+        synchronized (session.getFileQueue()) {
+            session.setFileKey(key);
+            session.setFileLinkState(VERIFY);
+        }
+        NetLog.info("UID [$] 的消息流与文件流已绑定到多路复用连接", session.getUID());
+        return session.getUID();
+    }
+    public void removeMessageKey(SelectionKey messageKey) {
+        Session session = getSession(messageKey);
+        // 迁移Reactor后旧key与新key共用Connection,只处理会话当前的连接
+        if (session != null && session.getMessageKey() == messageKey) {
+            Connection.of(messageKey).setSession(null);
+            synchronized (session.getMessageLock()) {
+                session.setMessageKey(null);
+                session.setMessageLinkState(LINK_1);
             }
-            try {
-                NetLog.info("连接 [$] (FileLink) 已解除关联UID [$]"
-                        , ((SocketChannel)fileKey.channel()).getRemoteAddress(), UID);
-            } catch (IOException e) {
-                NetLog.info("连接 [未知,已被关闭] (FileLink) 已解除关联UID [$]", UID);
+            logUnlink(messageKey, "MessageLink", session.getUID());
+        }
+    }
+    public void removeFileKey(SelectionKey fileKey) {
+        Session session = getSession(fileKey);
+        if (session != null && session.getFileKey() == fileKey) {
+            Connection.of(fileKey).setSession(null);
+            synchronized (session.getFileQueue()) {
+                session.setFileKey(null);
+                session.setFileLinkState(LINK_1);
             }
+            logUnlink(fileKey, "FileLink", session.getUID());
         }
     }
+    /**
+     * @return stripeKey为分段连接时返回true
+     */
+    public boolean removeFileStripeKey(SelectionKey stripeKey) {
+        Session session = getSession(stripeKey);
+        if (session != null && session.getStripeKeys().remove(stripeKey)) {
+            Connection.of(stripeKey).setSession(null);
+            logUnlink(stripeKey, "FileLink", session.getUID());
+            return true;
+        }
+        return false;
+    }
 
-    public String getUID(SelectionKey key) {
-        return getUIDOrToken(key, "UID");
+    public Session getSession(SelectionKey key) {
+        return key != null && key.attachment() instanceof Connection connection ? connection.getSession() : null;
     }
-    public String getToken(SelectionKey key) {
-        return getUIDOrToken(key, "Token");
+    public Session getSessionByUID(String UID) {
+        return UIDHashMap.get(UID);
     }
-    public Set<String> getAllUID() {
-        Set<String> UIDSet = new HashSet<>();
-        for (ConcurrentHashMap<String, String> temptokenMap : tokenHashMap.values()) {
-            UIDSet.add(temptokenMap.get("UID"));
+    /**
+     * 以常数时间验证客户端发来的Token,验证失败时返回null
+     */
+    public Session getSessionByToken(byte[] token) {
+        return tokenTable.get(token);
+    }
+
+    public String getUID(SelectionKey key) {
+        Session session = getSession(key);
+        return session != null ? session.getUID() : null;
+    }
+    public Token getToken(SelectionKey key) {
+        Session session = getSession(key);
+        return session != null ? session.getToken() : null;
+    }
+    /**
+     * 在线UID的只读视图,按UID排序,遍历时为弱一致性,不复制
+     */
+    public NavigableSet<String> getAllUID() {
+        return Collections.unmodifiableNavigableSet(onlineSet);
+    }
+    public int onlineCount() {
+        return onlineCount.get();
+    }
+    /**
+     * 分页取得以prefix开头的在线UID,从afterUID之后(不含)开始,最多limit个
+     * prefix与afterUID为null时不限制,下一页以本页最后一个UID作为afterUID
+     */
+    public List<String> getOnlineUID(String prefix, String afterUID, int limit) {
+        String lower = null, upper = null;
+        boolean lowerInclusive = true;
+        if (prefix != null && !prefix.isEmpty()) {
+            lower = prefix;
+            upper = prefix + Character.MAX_VALUE;
+        }
+        // afterUID在前缀范围之前时从范围起点开始,之后时已无下一页
+        if (afterUID != null) {
+            if (upper != null && afterUID.compareTo(upper) >= 0) {
+                return new ArrayList<>();
+            }
+            if (lower == null || afterUID.compareTo(lower) >= 0) {
+                lower = afterUID;
+                lowerInclusive = false;
+            }
+        }
+        NavigableSet<String> view = onlineSet;
+        if (upper != null) {
+            view = view.subSet(lower, lowerInclusive, upper, false);
+        } else if (lower != null) {
+            view = view.tailSet(lower, lowerInclusive);
         }
-        return UIDSet;
+        List<String> page = new ArrayList<>(Math.min(Math.max(limit, 0), 1024));
+        for (String UID : view) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(UID);
+        }
+        return page;
     }
 
     public SelectionKey getCommandKeyByUID(String UID) {
-        return getKey(UID, "commandKey");
+        Session session = UIDHashMap.get(UID);
+        return session != null ? session.getCommandKey() : null;
     }
     public SelectionKey getMessageKeyByUID(String UID) {
-        return getKey(UID, "messageKey");
+        Session session = UIDHashMap.get(UID);
+        return session != null ? session.getMessageKey() : null;
     }
     public SelectionKey getFileKeyByUID(String UID) {
-        return getKey(UID, "fileKey");
+        Session session = UIDHashMap.get(UID);
+        return session != null ? session.getFileKey() : null;
     }
 
-    public SelectionKey getCommandKeyByToken(String token) {
-        return getKey(token, "commandKey");
-    }
-    public SelectionKey getMessageKeyByToken(String token) {
-        return getKey(token, "messageKey");
-    }
-    public SelectionKey getFileKeyByToken(String token) {
-        return getKey(token, "fileKey");
+    public SelectionKey getCommandKeyByToken(byte[] token) {
+        Session session = tokenTable.get(token);
+        return session != null ? session.getCommandKey() : null;
     }
 
     public void setMessageLinkStata(String UID, byte state) {
-        messageLinkStateHashMap.put(UID, state);
+        Session session = UIDHashMap.get(UID);
+        if (session != null) {
+            session.setMessageLinkState(state);
+        }
     }
     public Byte getMessageLinkStata(String UID) {
-        return messageLinkStateHashMap.get(UID);
+        Session session = UIDHashMap.get(UID);
+        return session != null ? session.getMessageLinkState() : null;
     }
     public void setFileLinkStata(String UID, byte state) {
-        fileLinkStateHashMap.put(UID, state);
+        Session session = UIDHashMap.get(UID);
+        if (session != null) {
+            session.setFileLinkState(state);
+        }
     }
     public Byte getFileLinkStata(String UID) {
-        return fileLinkStateHashMap.get(UID);
+        Session session = UIDHashMap.get(UID);
+        return session != null ? session.getFileLinkState() : null;
     }
 
-    public void putMessagePackage(String UID, MessagePackage messagePackage) {
-        messageQueueMap.computeIfAbsent(UID, k -> new ConcurrentLinkedQueue<>()).add(messagePackage);
-    }
-    public MessagePackage getMessagePackage(String UID) {
-        ConcurrentLinkedQueue<MessagePackage> queue = messageQueueMap.get(UID);
-        if (queue != null) {
-            return queue.poll();
-        } else {
-            messageQueueMap.remove(UID);
-            return null;
+    /**
+     * 消息连接未就绪时将messagePackage存入离线存储,返回存入前的状态;返回READY时未存入,由调用方直接发送
+     * UID不在线时同样存入并返回OFFLINE,存储失败时返回null
+     * 状态为LINK_1时同时置为LINK_2,调用方负责请求建立连接
+     */
+    public Byte offerMessagePackage(String UID, MessagePackage messagePackage) {
+        Session session = UIDHashMap.get(UID);
+        if (session == null) {
+            return offlineStore.append(UID, messagePackage) ? OFFLINE : null;
+        }
+        byte state = session.getMessageLinkState();
+        if (state == READY) {
+            return state;
+        }
+        synchronized (session.getMessageLock()) {
+            state = session.getMessageLinkState();
+            if (state != READY) {
+                if (!offlineStore.append(UID, messagePackage)) {
+                    return null;
+                }
+                if (state == LINK_1) {
+                    session.setMessageLinkState(LINK_2);
+                }
+            }
+            return state;
         }
     }
-    public boolean messageQueueEmpty(String UID) {
-        return messageQueueMap.get(UID) == null;
+    /**
+     * 按写入顺序取得暂存的至多max个消息,不移除,发出后调用removeMessagePackage()
+     */
+    public List<MessagePackage> peekMessagePackage(String UID, int max) {
+        return offlineStore.peek(UID, max);
+    }
+    /**
+     * 移除已发出的count个消息;暂存已取尽时在同一把锁内将VERIFY置为READY,之后的消息由调用方直接发送,不会乱序
+     * @return 暂存已取尽或UID已不在线时返回true
+     */
+    public boolean removeMessagePackage(String UID, int count) {
+        Session session = UIDHashMap.get(UID);
+        if (session == null) {
+            offlineStore.remove(UID, count);
+            return true;
+        }
+        synchronized (session.getMessageLock()) {
+            offlineStore.remove(UID, count);
+            if (offlineStore.isEmpty(UID)) {
+                if (session.getMessageLinkState() == VERIFY) {
+                    session.setMessageLinkState(READY);
+                }
+                return true;
+            }
+            return false;
+        }
     }
-    public void putFilePackage(String UID, FilePackage filePackage) {
-        fileQueueMap.computeIfAbsent(UID, k -> new ConcurrentLinkedQueue<>()).add(filePackage);
+    public boolean hasOfflineMessage(String UID) {
+        return !offlineStore.isEmpty(UID);
     }
-    public boolean fileQueueEmpty(String UID) {
-        return fileQueueMap.get(UID) == null;
+    /**
+     * 有暂存的消息且消息连接未建立时置为LINK_2并返回true,调用方负责请求建立连接
+     */
+    public boolean requestMessageLink(String UID) {
+        Session session = UIDHashMap.get(UID);
+        if (session == null || offlineStore.isEmpty(UID)) {
+            return false;
+        }
+        synchronized (session.getMessageLock()) {
+            if (session.getMessageLinkState() == LINK_1) {
+                session.setMessageLinkState(LINK_2);
+                return true;
+            }
+            return false;
+        }
     }
-    public FilePackage getFilePackage(String UID) {
-        ConcurrentLinkedQueue<FilePackage> queue = fileQueueMap.get(UID);
-        if (queue != null) {
-            return queue.poll();
-        } else {
-            messageQueueMap.remove(UID);
+    /**
+     * 同offerMessagePackage()
+     */
+    public Byte offerFilePackage(String UID, FilePackage filePackage) {
+        Session session = UIDHashMap.get(UID);
+        if (session == null) {
             return null;
         }
+        byte state = session.getFileLinkState();
+        if (state == READY) {
+            return state;
+        }
+        synchronized (session.getFileQueue()) {
+            state = session.getFileLinkState();
+            if (state != READY) {
+                session.getFileQueue().add(filePackage);
+                if (state == LINK_1) {
+                    session.setFileLinkState(LINK_2);
+                }
+            }
+            return state;
+        }
+    }
+    /**
+     * 同pollMessagePackage()
+     */
+    public FilePackage pollFilePackage(String UID) {
+        Session session = UIDHashMap.get(UID);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session.getFileQueue()) {
+            FilePackage filePackage = session.getFileQueue().poll();
+            if (filePackage == null && session.getFileLinkState() == VERIFY) {
+                session.setFileLinkState(READY);
+            }
+            return filePackage;
+        }
     }
 
     public CommandLink getCommandLink() {
@@ -351,27 +493,52 @@ public class LinkTable {
         return fileLink;
     }
 
-    public void putAppendDataPackage(String taskId, DataPackage dataPackage) {
-        receiveHashMap.put(taskId, dataPackage);
+    /**
+     * 另一半已到达时将其取出并返回,否则暂存dataPackage并返回null
+     */
+    public DataPackage pairAppendDataPackage(DataPackage dataPackage) {
+        return reassemblyTable.pair(dataPackage);
     }
-    public DataPackage getAppendDataPackage(String taskId) {
-        return receiveHashMap.remove(taskId);
+    public ReassemblyTable getReassemblyTable() {
+        return reassemblyTable;
     }
 
-    private SelectionKey getKey(String UIDOrToken, String name) {
-        ConcurrentHashMap<String, SelectionKey> tempkeyMap = keyHashMap.get(UIDOrToken);
-        if (tempkeyMap != null) {
-            return tempkeyMap.get(name);
-        } else {
-            return null;
+    /**
+     * 解除会话与三条连接的关联并断开这些连接
+     */
+    private void unlink(Session session) {
+        SelectionKey commandKey = session.getCommandKey();
+        if (commandKey != null) {
+            Connection.of(commandKey).setSession(null);
+            logUnlink(commandKey, "CommandLink", session.getUID());
+            commandLink.cancel(commandKey);
+        }
+        SelectionKey messageKey = session.getMessageKey();
+        if (messageKey != null) {
+            session.setMessageKey(null);
+            Connection.of(messageKey).setSession(null);
+            logUnlink(messageKey, "MessageLink", session.getUID());
+            messageLink.cancel(messageKey);
+        }
+        SelectionKey fileKey = session.getFileKey();
+        if (fileKey != null) {
+            session.setFileKey(null);
+            Connection.of(fileKey).setSession(null);
+            logUnlink(fileKey, "FileLink", session.getUID());
+            fileLink.cancel(fileKey);
+        }
+        for (SelectionKey stripeKey : session.getStripeKeys()) {
+            session.getStripeKeys().remove(stripeKey);
+            Connection.of(stripeKey).setSession(null);
+            logUnlink(stripeKey, "FileLink", session.getUID());
+            fileLink.cancel(stripeKey);
         }
     }
-    private String getUIDOrToken(SelectionKey key, String UIDOrToken) {
-        ConcurrentHashMap<String, String> temptokenMap = tokenHashMap.get(key);
-        if (temptokenMap != null) {
-            return temptokenMap.get(UIDOrToken);
-        } else {
-            return null;
+    private void logUnlink(SelectionKey key, String linkName, String UID) {
+        try {
+            NetLog.info("连接 [$] ($) 已解除关联UID [$]", ((SocketChannel)key.channel()).getRemoteAddress(), linkName, UID);
+        } catch (IOException e) {
+            NetLog.info("连接 [未知,已被关闭] ($) 已解除关联UID [$]", linkName, UID);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,420 @@
+package net.util;
+
+import net.datapackage.DataPackage;
+import net.datapackage.MessagePackage;
+import net.log.NetLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * 默认的离线消息存储,消息追加写入内存映射的分段日志,堆内只保留每个UID的记录位置索引
+ * 记录全部取走或最后写入超过保存期限的分段整体删除,启动时扫描已有分段重建索引
+ */
+
+public class MappedOfflineStore implements OfflineStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_TTL = 7 * 24 * 3600 * 1000L;
+    private static final long COMPACT_INTERVAL = 60 * 1000;
+    private static final String SUFFIX = ".log";
+    // 记录: 长度(int) 状态(byte) 写入时间(long) UID长度(short) UID 消息 是否有附加消息(byte) [附加消息]
+    private static final int RECORD_HEADER_SIZE = 15;
+    // 未取走
+    private static final byte LIVE = 0;
+    // 已取走
+    private static final byte REMOVED = 1;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long ttl;
+    private final TreeMap<Integer, Segment> segments;
+    private final HashMap<String, Index> indexHashMap;
+    private Segment current;
+    private int nextSegmentId;
+    private TimingWheel.Timeout compactTimeout;
+    private boolean closed;
+
+    public MappedOfflineStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_TTL);
+    }
+    /**
+     * @param segmentSize 单个分段文件的大小
+     * @param ttl 消息的保存期限,单位(ms)
+     */
+    public MappedOfflineStore(File directory, int segmentSize, long ttl) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.ttl = ttl;
+        segments = new TreeMap<>();
+        indexHashMap = new HashMap<>();
+        recover();
+        scheduleCompact();
+    }
+
+    @Override
+    public synchronized boolean append(String UID, MessagePackage messagePackage) {
+        if (closed) {
+            return false;
+        }
+        MessagePackage appendPackage = null;
+        if (messagePackage.getAppendState() == DataPackage.APPEND_1) {
+            if (!(messagePackage.getAppendDataPackage() instanceof MessagePackage MDP)) {
+                NetLog.warn("离线消息 {$} 的附加数据包不是消息,无法存储", messagePackage);
+                return false;
+            }
+            appendPackage = MDP;
+        }
+        byte[] UIDBytes = UID.getBytes();
+        int length = RECORD_HEADER_SIZE - 4 + UIDBytes.length + sizeOf(messagePackage) + 1
+                + (appendPackage != null ? sizeOf(appendPackage) : 0);
+        try {
+            Segment segment = allocate(4 + length);
+            int position = segment.position;
+            long time = System.currentTimeMillis();
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(position + 4);
+            buffer.put(LIVE).putLong(time).putShort((short) UIDBytes.length).put(UIDBytes);
+            encode(buffer, messagePackage);
+            buffer.put((byte) (appendPackage != null ? 1 : 0));
+            if (appendPackage != null) {
+                encode(buffer, appendPackage);
+            }
+            // 长度最后写入,写入中断的记录长度为0,恢复时视为日志末尾
+            segment.buffer.putInt(position, length);
+            segment.position += 4 + length;
+            segment.liveCount++;
+            segment.lastTime = time;
+            indexHashMap.computeIfAbsent(UID, k -> new Index()).add(address(segment.id, position));
+            return true;
+        } catch (IOException e) {
+            NetLog.error(e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized List<MessagePackage> peek(String UID, int max) {
+        Index index = indexHashMap.get(UID);
+        if (index == null) {
+            return List.of();
+        }
+        long deadline = System.currentTimeMillis() - ttl;
+        while (index.size > 0 && readTime(index.get(0)) < deadline) {
+            markRemoved(index.poll());
+        }
+        List<MessagePackage> list = new ArrayList<>(Math.min(max, index.size));
+        for (int i = 0; i < index.size && list.size() < max; i++) {
+            list.add(read(index.get(i)));
+        }
+        if (index.size == 0) {
+            indexHashMap.remove(UID);
+        }
+        return list;
+    }
+
+    @Override
+    public synchronized void remove(String UID, int count) {
+        Index index = indexHashMap.get(UID);
+        if (index == null) {
+            return;
+        }
+        for (int i = 0; i < count && index.size > 0; i++) {
+            markRemoved(index.poll());
+        }
+        if (index.size == 0) {
+            indexHashMap.remove(UID);
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty(String UID) {
+        return !indexHashMap.containsKey(UID);
+    }
+
+    /**
+     * 未取走的消息数量
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Index index : indexHashMap.values()) {
+            size += index.size;
+        }
+        return size;
+    }
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (compactTimeout != null) {
+            compactTimeout.cancel();
+        }
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        indexHashMap.clear();
+        current = null;
+    }
+
+    /**
+     * 删除最后写入超过保存期限的分段,并丢弃索引中指向这些分段的记录
+     * 分段按编号顺序写入,过期的分段总是编号最小的一段
+     */
+    private synchronized void compact() {
+        if (closed) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() - ttl;
+        int expiredId = -1, segmentCount = 0;
+        long messageCount = 0;
+        Iterator<Segment> iterator = segments.values().iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.lastTime >= deadline) {
+                break;
+            }
+            iterator.remove();
+            if (segment == current) {
+                current = null;
+            }
+            expiredId = segment.id;
+            segmentCount++;
+            messageCount += segment.liveCount;
+            segment.delete();
+        }
+        if (expiredId >= 0) {
+            Iterator<Index> indexIterator = indexHashMap.values().iterator();
+            while (indexIterator.hasNext()) {
+                Index index = indexIterator.next();
+                while (index.size > 0 && segmentId(index.get(0)) <= expiredId) {
+                    index.poll();
+                }
+                if (index.size == 0) {
+                    indexIterator.remove();
+                }
+            }
+            NetLog.info("离线消息存储已删除 [$] 个过期分段,丢弃 [$] 条消息", segmentCount, messageCount);
+        }
+        scheduleCompact();
+    }
+    private void scheduleCompact() {
+        compactTimeout = TimingWheel.shared().newTimeout(this::compact, Math.min(ttl, COMPACT_INTERVAL));
+    }
+
+    private void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建离线消息目录 " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        long messageCount = 0;
+        for (File file : files) {
+            int id;
+            try {
+                id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = new Segment(id, file, (int) file.length());
+            nextSegmentId = id + 1;
+            segment.lastTime = 0;
+            scan(segment);
+            if (segment.liveCount > 0) {
+                segments.put(id, segment);
+                messageCount += segment.liveCount;
+            } else {
+                segment.delete();
+            }
+        }
+        if (!segments.isEmpty()) {
+            NetLog.info("离线消息存储 [$] 已恢复 [$] 个分段, [$] 条消息", directory, segments.size(), messageCount);
+        }
+    }
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > segment.capacity) {
+                break;
+            }
+            long time = buffer.getLong(position + 5);
+            if (buffer.get(position + 4) == LIVE) {
+                byte[] UIDBytes = new byte[buffer.getShort(position + 13)];
+                buffer.get(position + RECORD_HEADER_SIZE, UIDBytes);
+                indexHashMap.computeIfAbsent(new String(UIDBytes), k -> new Index()).add(address(segment.id, position));
+                segment.liveCount++;
+            }
+            segment.lastTime = Math.max(segment.lastTime, time);
+            position += 4 + length;
+        }
+        segment.position = position;
+    }
+
+    private Segment allocate(int size) throws IOException {
+        if (current == null || current.capacity - current.position < size) {
+            if (current != null && current.liveCount == 0) {
+                segments.remove(current.id);
+                current.delete();
+            }
+            int id = nextSegmentId++;
+            current = new Segment(id, new File(directory, String.format("%010d", id) + SUFFIX), Math.max(segmentSize, size));
+            segments.put(id, current);
+        }
+        return current;
+    }
+    private void markRemoved(long address) {
+        Segment segment = segments.get(segmentId(address));
+        if (segment == null) {
+            return;
+        }
+        segment.buffer.put(position(address) + 4, REMOVED);
+        if (--segment.liveCount == 0 && segment != current) {
+            segments.remove(segment.id);
+            segment.delete();
+        }
+    }
+    private long readTime(long address) {
+        Segment segment = segments.get(segmentId(address));
+        return segment != null ? segment.buffer.getLong(position(address) + 5) : Long.MIN_VALUE;
+    }
+    private MessagePackage read(long address) {
+        ByteBuffer buffer = segments.get(segmentId(address)).buffer.duplicate();
+        int position = position(address);
+        buffer.position(position + RECORD_HEADER_SIZE + buffer.getShort(position + 13));
+        MessagePackage messagePackage = decode(buffer);
+        if (buffer.get() == 1) {
+            messagePackage.addAppendDataPackage(decode(buffer));
+        }
+        return messagePackage;
+    }
+
+    private static int sizeOf(MessagePackage MDP) {
+        return MessagePackage.HEADER_SIZE + length(MDP.getSenderBytes()) + length(MDP.getReceiverBytes()) + MDP.getDataSize();
+    }
+    private static void encode(ByteBuffer buffer, MessagePackage MDP) {
+        buffer.put(MDP.getWay()).put(MDP.getType()).put(MDP.getAppendState()).putLong(MDP.getTime()).putInt(MDP.getDataSize())
+                .putShort((short) length(MDP.getSenderBytes())).putShort((short) length(MDP.getReceiverBytes()));
+        TaskId.write(buffer, MDP.getTaskId());
+        put(buffer, MDP.getSenderBytes());
+        put(buffer, MDP.getReceiverBytes());
+        if (MDP.getDataSize() > 0) {
+            buffer.put(MDP.getData(), 0, MDP.getDataSize());
+        }
+    }
+    private static MessagePackage decode(ByteBuffer buffer) {
+        MessagePackage MDP = new MessagePackage();
+        MDP.setWay(buffer.get()).setType(buffer.get()).setAppendState(buffer.get())
+                .setTime(buffer.getLong()).setDataSize(buffer.getInt());
+        byte[] senderBytes = new byte[buffer.getShort()];
+        byte[] receiverBytes = new byte[buffer.getShort()];
+        TaskId taskId = TaskId.read(buffer);
+        buffer.get(senderBytes).get(receiverBytes);
+        MDP.setSender(new String(senderBytes)).setReceiver(new String(receiverBytes));
+        // 未分配taskId时写入的是0
+        if (taskId.getHigh() != 0 || taskId.getLow() != 0) {
+            MDP.setTaskId(taskId);
+        }
+        if (MDP.getDataSize() > 0) {
+            byte[] data = new byte[MDP.getDataSize()];
+            buffer.get(data);
+            MDP.setData(data);
+        }
+        return MDP;
+    }
+    private static int length(byte[] bytes) {
+        return bytes != null ? bytes.length : 0;
+    }
+    private static void put(ByteBuffer buffer, byte[] bytes) {
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static long address(int segmentId, int position) {
+        return ((long) segmentId << 32) | position;
+    }
+    private static int segmentId(long address) {
+        return (int) (address >>> 32);
+    }
+    private static int position(long address) {
+        return (int) address;
+    }
+
+    private static class Segment {
+        private final int id, capacity;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int position, liveCount;
+        private long lastTime;
+
+        private Segment(int id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            // 映射在通道关闭后仍然有效
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            lastTime = System.currentTimeMillis();
+        }
+
+        private void close() {
+            buffer.force();
+        }
+        private void delete() {
+            if (!file.delete()) {
+                NetLog.warn("无法删除离线消息分段 [$]", file);
+            }
+        }
+    }
+
+    /**
+     * 单个UID未取走记录的位置,按写入顺序排列的环形数组
+     */
+    private static class Index {
+        private long[] addresses = new long[4];
+        private int head, size;
+
+        private void add(long address) {
+            if (size == addresses.length) {
+                long[] temp = new long[size * 2];
+                for (int i = 0; i < size; i++) {
+                    temp[i] = get(i);
+                }
+                addresses = temp;
+                head = 0;
+            }
+            addresses[(head + size) % addresses.length] = address;
+            size++;
+        }
+        private long get(int i) {
+            return addresses[(head + i) % addresses.length];
+        }
+        private long poll() {
+            long address = addresses[head];
+            head = (head + 1) % addresses.length;
+            size--;
+            return address;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+package net.util;
+
+import net.datapackage.MessagePackage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 保存在堆内的离线消息存储,重启后丢失
+ */
+
+public class MemoryOfflineStore implements OfflineStore {
+    private final ConcurrentHashMap<String, ArrayDeque<MessagePackage>> queueHashMap;
+
+    public MemoryOfflineStore() {
+        queueHashMap = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public boolean append(String UID, MessagePackage messagePackage) {
+        queueHashMap.compute(UID, (k, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+            }
+            queue.add(messagePackage);
+            return queue;
+        });
+        return true;
+    }
+
+    @Override
+    public List<MessagePackage> peek(String UID, int max) {
+        List<MessagePackage> list = new ArrayList<>();
+        queueHashMap.computeIfPresent(UID, (k, queue) -> {
+            Iterator<MessagePackage> iterator = queue.iterator();
+            while (iterator.hasNext() && list.size() < max) {
+                list.add(iterator.next());
+            }
+            return queue;
+        });
+        return list;
+    }
+
+    @Override
+    public void remove(String UID, int count) {
+        queueHashMap.computeIfPresent(UID, (k, queue) -> {
+            for (int i = 0; i < count && queue.poll() != null; i++);
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    @Override
+    public boolean isEmpty(String UID) {
+        return !queueHashMap.containsKey(UID);
+    }
+
+    @Override
+    public void close() {
+        queueHashMap.clear();
+    }
+}
\ No newline at end of file
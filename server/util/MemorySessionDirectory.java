@@ -0,0 +1,30 @@
+package net.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 保存在堆内的会话目录,同一进程中的多个NetServer可共用一个实例组成集群,用于测试或单机多节点部署
+ */
+
+public class MemorySessionDirectory implements SessionDirectory {
+    private final ConcurrentHashMap<String, String> nodeHashMap;
+
+    public MemorySessionDirectory() {
+        nodeHashMap = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void register(String UID, String nodeId) {
+        nodeHashMap.put(UID, nodeId);
+    }
+
+    @Override
+    public void unregister(String UID, String nodeId) {
+        nodeHashMap.remove(UID, nodeId);
+    }
+
+    @Override
+    public String lookup(String UID) {
+        return nodeHashMap.get(UID);
+    }
+}
\ No newline at end of file
@@ -7,13 +7,10 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SelectionKey;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class NetTool {
-    private static int taskId = 0;
-
     public static void sleep() {
         try {
             Thread.sleep(100);
@@ -22,22 +19,8 @@ public class NetTool {
         }
     }
 
-    public static synchronized String produceTaskId() {
-        taskId++;
-        try {
-            return getHashValue((String.valueOf(System.currentTimeMillis() + taskId)).getBytes(), "MD5");
-        } catch (NoSuchAlgorithmException ignored) {
-            return String.valueOf(System.currentTimeMillis() + taskId);
-        }
-    }
-
-    public static String getToken(SelectionKey key, String addition) {
-        String data = key.toString() + System.currentTimeMillis() + addition;
-        try {
-            return getHashValue(data.getBytes(), "MD5");
-        } catch (NoSuchAlgorithmException e) {
-            return data;
-        }
+    public static TaskId produceTaskId() {
+        return TaskId.next();
     }
 
     public static String getHashValue(byte[] data, String algorithm) throws NoSuchAlgorithmException {
@@ -0,0 +1,31 @@
+package net.util;
+
+import net.datapackage.MessagePackage;
+
+import java.util.List;
+
+/**
+ * 离线消息存储,保存消息连接就绪前发往某UID的消息,按写入顺序取出
+ * 实现需保证线程安全
+ */
+
+public interface OfflineStore {
+    /**
+     * @return 存储失败时返回false
+     */
+    boolean append(String UID, MessagePackage messagePackage);
+
+    /**
+     * 按写入顺序取得最早的至多max个消息,不移除
+     */
+    List<MessagePackage> peek(String UID, int max);
+
+    /**
+     * 移除最早的count个消息,在peek()取得的消息发出后调用
+     */
+    void remove(String UID, int count);
+
+    boolean isEmpty(String UID);
+
+    void close();
+}
\ No newline at end of file
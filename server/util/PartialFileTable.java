@@ -0,0 +1,241 @@
+package net.util;
+
+import net.log.NetLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 未接收完整的文件,按taskId登记已写入的区间,连接断开后保留供续传
+ * 临时文件创建时即预分配为文件长度,分段并行发送的各区间可由多条连接按位置同时写入
+ * 超过ttl毫秒未再写入的临时文件被删除
+ */
+
+public class PartialFileTable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentHashMap<TaskId, PartialFile> partialHashMap;
+    private volatile long ttl;
+    private volatile int maxCount;
+
+    public PartialFileTable() {
+        partialHashMap = new ConcurrentHashMap<>();
+        ttl = 30 * 60 * 1000;
+        maxCount = 10000;
+        scheduleSweep();
+    }
+
+    /**
+     * @param ttl 未完成的文件等待续传的最长时间,单位(ms)
+     */
+    public void setLimit(long ttl, int maxCount) {
+        this.ttl = ttl;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * 取得taskId对应的未完成文件,不存在时以fileSupplier提供的临时文件创建
+     * 已存在但UID或文件长度不符,或数量已达上限时返回null
+     */
+    public PartialFile open(TaskId taskId, String UID, long fileSize, Supplier<File> fileSupplier) throws IOException {
+        PartialFile partialFile = partialHashMap.get(taskId);
+        if (partialFile == null) {
+            if (partialHashMap.size() >= maxCount) {
+                NetLog.warn("未完成的文件数量已达上限 [$],已拒绝 [$]", maxCount, taskId);
+                return null;
+            }
+            PartialFile newPartialFile = new PartialFile(taskId, UID, fileSize, fileSupplier.get());
+            partialFile = partialHashMap.putIfAbsent(taskId, newPartialFile);
+            if (partialFile == null) {
+                return newPartialFile;
+            }
+            newPartialFile.discard();
+        }
+        return partialFile.matches(UID, fileSize) ? partialFile : null;
+    }
+    /**
+     * 续传询问时对方已接收的长度,不存在或不符时为0
+     */
+    public long getReceived(TaskId taskId, String UID, long fileSize) {
+        PartialFile partialFile = partialHashMap.get(taskId);
+        return partialFile != null && partialFile.matches(UID, fileSize) ? partialFile.getReceived() : 0;
+    }
+    /**
+     * 已接收完整,移出登记表并关闭文件,文件本身保留
+     */
+    public void finish(PartialFile partialFile) throws IOException {
+        partialHashMap.remove(partialFile.taskId, partialFile);
+        partialFile.fileChannel.close();
+    }
+
+    private void sweep() {
+        long deadline = System.currentTimeMillis() - ttl;
+        for (PartialFile partialFile : partialHashMap.values()) {
+            if (partialFile.lastTime < deadline && partialHashMap.remove(partialFile.taskId, partialFile)) {
+                NetLog.warn("未完成的文件 [$] 超过 [$] 毫秒未续传,已删除 (已接收:$/$)"
+                        , partialFile.taskId, ttl, partialFile.getCovered(), partialFile.fileSize);
+                partialFile.discard();
+            }
+        }
+    }
+    private void scheduleSweep() {
+        TimingWheel.shared().newTimeout(() -> {
+            sweep();
+            scheduleSweep();
+        }, Math.max(1000, Math.min(ttl / 4, 60 * 1000)));
+    }
+
+    public int size() {
+        return partialHashMap.size();
+    }
+
+    public static class PartialFile {
+        private final TaskId taskId;
+        private final String UID;
+        private final long fileSize;
+        private final File file;
+        private final FileChannel fileChannel;
+        // 已写入的区间,起点 -> 终点,相邻或重叠的区间合并
+        private final TreeMap<Long, Long> rangeMap;
+        private long covered;
+        private boolean completed;
+        private volatile long lastTime;
+
+        private PartialFile(TaskId taskId, String UID, long fileSize, File file) throws IOException {
+            this.taskId = taskId;
+            this.UID = UID;
+            this.fileSize = fileSize;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(fileSize);
+            fileChannel = raf.getChannel();
+            rangeMap = new TreeMap<>();
+            lastTime = System.currentTimeMillis();
+        }
+
+        private boolean matches(String UID, long fileSize) {
+            return this.fileSize == fileSize && (this.UID == null ? UID == null : this.UID.equals(UID));
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            long start = position;
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            addRange(start, position);
+        }
+        private synchronized void addRange(long start, long end) {
+            Map.Entry<Long, Long> entry = rangeMap.floorEntry(start);
+            if (entry != null && entry.getValue() >= start) {
+                start = entry.getKey();
+                end = Math.max(end, entry.getValue());
+                covered -= rangeMap.remove(entry.getKey()) - entry.getKey();
+            }
+            while ((entry = rangeMap.ceilingEntry(start)) != null && entry.getKey() <= end) {
+                end = Math.max(end, entry.getValue());
+                covered -= rangeMap.remove(entry.getKey()) - entry.getKey();
+            }
+            rangeMap.put(start, end);
+            covered += end - start;
+            lastTime = System.currentTimeMillis();
+        }
+        /**
+         * 已收齐文件时返回true,同一文件只有一次调用返回true
+         */
+        public synchronized boolean complete() {
+            if (completed || covered < fileSize) {
+                return false;
+            }
+            completed = true;
+            return true;
+        }
+        /**
+         * 从文件开头起连续接收的长度,续传时从该处继续
+         */
+        public synchronized long getReceived() {
+            Map.Entry<Long, Long> first = rangeMap.firstEntry();
+            return first != null && first.getKey() == 0 ? first.getValue() : 0;
+        }
+        public synchronized long getCovered() {
+            return covered;
+        }
+        public File getFile() {
+            return file;
+        }
+
+        private void discard() {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                NetLog.error(e);
+            }
+            if (file.exists() && !file.delete()) {
+                NetLog.warn("无法删除未完成的临时文件 [$]", file);
+            }
+        }
+    }
+
+    /**
+     * 一个分块的接收进度,保存在连接上;每次可读时只读取已到达的数据按位置写入,不等待未到达的部分
+     * partialFile为null时读出并丢弃分块内容
+     */
+    public static class ChunkReceiver {
+        private final PartialFile partialFile;
+        private final long end;
+        private long position;
+
+        public ChunkReceiver(PartialFile partialFile, long offset, int length) throws IOException {
+            if (partialFile != null && (offset < 0 || offset + length > partialFile.fileSize)) {
+                throw new IOException("文件分块超出文件长度 " + partialFile.taskId);
+            }
+            this.partialFile = partialFile;
+            position = offset;
+            end = offset + length;
+        }
+
+        /**
+         * 读入socketChannel中已到达的数据,最多maxBytes字节,返回本次读入的字节数;不足maxBytes且分块未读完时暂无更多数据
+         * 经由缓冲读入,通道非阻塞时transferFrom无法区分暂无数据与连接已关闭
+         */
+        public long receive(SocketChannel socketChannel, long maxBytes) throws IOException {
+            long limit = Math.min(end, position + maxBytes), start = position;
+            if (position == limit) {
+                return 0;
+            }
+            ByteBuffer buffer = BufferPool.acquire((int) Math.min(limit - position, BUFFER_SIZE));
+            try {
+                while (position < limit) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), limit - position));
+                    int readCount = socketChannel.read(buffer);
+                    if (readCount < 0) {
+                        throw new IOException("连接已关闭");
+                    } else if (readCount == 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    if (partialFile != null) {
+                        partialFile.write(buffer, position);
+                    }
+                    position += readCount;
+                }
+                return position - start;
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+        public boolean isFinished() {
+            return position == end;
+        }
+        public PartialFile getPartialFile() {
+            return partialFile;
+        }
+    }
+}
\ No newline at end of file
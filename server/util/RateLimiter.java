@@ -0,0 +1,57 @@
+package net.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按字节计的无锁限速器,与TokenBucket相同以"理论到达时间"代替令牌数
+ * 先传输后记账:每传输bytes字节理论到达时间推后相应时长,超前当前时间超过突发量时返回需等待的毫秒数
+ * 多个传输共用一个限速器时,各自等待的时长随共同的欠账增长,轮流取得带宽
+ */
+
+public class RateLimiter {
+    private final long rate; // 每秒字节数
+    private final long burst; // 可突发的字节对应的时间(ns)
+    private final AtomicLong theoreticalTime; // 理论到达时间(ns)
+
+    public RateLimiter(long rate) {
+        this.rate = Math.max(1, rate);
+        // 突发量须容纳一次等待期间取整误差内的字节,否则达不到设定的速率
+        burst = nanosOf(Math.max(this.rate / 5, 64 * 1024));
+        theoreticalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * rate不大于0时不限速,返回null
+     */
+    public static RateLimiter of(long rate) {
+        return rate > 0 ? new RateLimiter(rate) : null;
+    }
+
+    /**
+     * 记入已传输的bytes字节,返回继续传输前需等待的毫秒数,不需等待时为0
+     */
+    public long consume(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long cost = nanosOf(bytes);
+        while (true) {
+            long time = theoreticalTime.get();
+            // 空闲期间不累计额度,从当前时间起算
+            long nextTime = Math.max(time, now) + cost;
+            if (theoreticalTime.compareAndSet(time, nextTime)) {
+                long wait = nextTime - now - burst;
+                return wait > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)) : 0;
+            }
+        }
+    }
+    private long nanosOf(long bytes) {
+        return TimeUnit.SECONDS.toNanos(bytes) / rate;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,224 @@
+package net.util;
+
+import net.datapackage.DataPackage;
+import net.datapackage.FilePackage;
+import net.log.NetLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 附加数据包(APPEND_1/APPEND_2)的配对表,按taskId分段加锁,每段内按到达顺序保存
+ * 先到的一半最多保留ttl毫秒,超时或超过数量、内存上限时按到达顺序丢弃,丢弃的一半计为孤立数据包
+ */
+
+public class ReassemblyTable {
+    private static final int STRIPE_COUNT = 64;
+    // 每个数据包除数据外的估计开销
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Stripe[] stripes;
+    private final AtomicInteger count;
+    private final AtomicLong bytes, arrivalSequence;
+    private final LongAdder pairedCount, expiredCount, evictedCount;
+    private volatile long ttl;
+    private volatile int maxCount;
+    private volatile long maxBytes;
+
+    public ReassemblyTable() {
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+        count = new AtomicInteger();
+        bytes = new AtomicLong();
+        arrivalSequence = new AtomicLong();
+        pairedCount = new LongAdder();
+        expiredCount = new LongAdder();
+        evictedCount = new LongAdder();
+        ttl = 10 * 60 * 1000;
+        maxCount = 100000;
+        maxBytes = 64 * 1024 * 1024;
+        scheduleSweep();
+    }
+
+    /**
+     * @param ttl 先到的一半等待另一半的最长时间,单位(ms)
+     */
+    public void setLimit(long ttl, int maxCount, long maxBytes) {
+        this.ttl = ttl;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 另一半已在表中时将其取出并返回,否则保存dataPackage并返回null
+     */
+    public DataPackage pair(DataPackage dataPackage) {
+        TaskId taskId = dataPackage.getTaskId();
+        Stripe stripe = stripes[(taskId.hashCode() & 0x7fffffff) % STRIPE_COUNT];
+        Entry entry;
+        synchronized (stripe) {
+            Entry partner = stripe.entryHashMap.remove(taskId);
+            if (partner != null) {
+                count.decrementAndGet();
+                bytes.addAndGet(-partner.size);
+                pairedCount.increment();
+                return partner.dataPackage;
+            }
+            entry = new Entry(dataPackage, arrivalSequence.incrementAndGet(), System.currentTimeMillis() + ttl);
+            stripe.entryHashMap.put(taskId, entry);
+        }
+        count.incrementAndGet();
+        bytes.addAndGet(entry.size);
+        if (count.get() > maxCount || bytes.get() > maxBytes) {
+            sweep(true);
+        }
+        return null;
+    }
+
+    /**
+     * 丢弃已超时的一半,overflow为true时只丢弃各段中最早到达的直至低于上限
+     */
+    private void sweep(boolean overflow) {
+        long now = System.currentTimeMillis();
+        if (overflow) {
+            Entry entry;
+            while ((count.get() > maxCount || bytes.get() > maxBytes) && (entry = pollOldest()) != null) {
+                drop(entry, entry.deadline <= now);
+            }
+            return;
+        }
+        List<Entry> expiredList = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Entry> iterator = stripe.entryHashMap.values().iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entry.deadline > now) {
+                        break;
+                    }
+                    iterator.remove();
+                    expiredList.add(entry);
+                }
+            }
+            for (Entry entry : expiredList) {
+                drop(entry, true);
+            }
+            expiredList.clear();
+        }
+    }
+    /**
+     * 取出各段头部中最早到达的一半
+     */
+    private Entry pollOldest() {
+        while (true) {
+            Stripe oldest = null;
+            long oldestSequence = Long.MAX_VALUE;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    Iterator<Entry> iterator = stripe.entryHashMap.values().iterator();
+                    if (iterator.hasNext()) {
+                        Entry entry = iterator.next();
+                        if (entry.sequence < oldestSequence) {
+                            oldest = stripe;
+                            oldestSequence = entry.sequence;
+                        }
+                    }
+                }
+            }
+            if (oldest == null) {
+                return null;
+            }
+            synchronized (oldest) {
+                // 扫描后该段可能已全部配对,此时重新扫描
+                Iterator<Entry> iterator = oldest.entryHashMap.values().iterator();
+                if (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    iterator.remove();
+                    return entry;
+                }
+            }
+        }
+    }
+    private void drop(Entry entry, boolean expired) {
+        count.decrementAndGet();
+        bytes.addAndGet(-entry.size);
+        if (expired) {
+            expiredCount.increment();
+            NetLog.warn("附加数据包 {$} 等待另一半超时,已丢弃", entry.dataPackage);
+        } else {
+            evictedCount.increment();
+            NetLog.warn("附加数据包配对表已满 (数量:$ 字节:$),已丢弃 {$}", count.get(), bytes.get(), entry.dataPackage);
+        }
+        discard(entry.dataPackage);
+    }
+    private void scheduleSweep() {
+        TimingWheel.shared().newTimeout(() -> {
+            sweep(false);
+            scheduleSweep();
+        }, Math.max(1000, Math.min(ttl / 4, 60 * 1000)));
+    }
+
+    /**
+     * 孤立的文件数据包已写入临时文件,一并删除
+     */
+    private static void discard(DataPackage dataPackage) {
+        if (dataPackage instanceof FilePackage filePackage) {
+            File file = filePackage.getFile();
+            if (file != null && file.exists() && !file.delete()) {
+                NetLog.warn("无法删除孤立的临时文件 [$]", file);
+            }
+        }
+    }
+
+    public int size() {
+        return count.get();
+    }
+    public long getBytes() {
+        return bytes.get();
+    }
+    public long getPairedCount() {
+        return pairedCount.sum();
+    }
+    /**
+     * 超时丢弃的孤立数据包数量
+     */
+    public long getExpiredCount() {
+        return expiredCount.sum();
+    }
+    /**
+     * 超过上限丢弃的孤立数据包数量
+     */
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+    public String getStatistics() {
+        return "ReassemblyTable [size=" + count.get() + ", bytes=" + DataPackage.formatBytes(bytes.get())
+                + ", paired=" + pairedCount.sum() + ", expired=" + expiredCount.sum() + ", evicted=" + evictedCount.sum() + "]";
+    }
+
+    private static class Stripe {
+        private final LinkedHashMap<TaskId, Entry> entryHashMap = new LinkedHashMap<>();
+    }
+
+    private static class Entry {
+        private final DataPackage dataPackage;
+        private final long sequence;
+        private final long deadline;
+        private final int size;
+
+        private Entry(DataPackage dataPackage, long sequence, long deadline) {
+            this.dataPackage = dataPackage;
+            this.sequence = sequence;
+            this.deadline = deadline;
+            size = ENTRY_OVERHEAD + dataPackage.getDataSize();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+package net.util;
+
+import net.datapackage.FilePackage;
+
+import java.nio.channels.SelectionKey;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个已注册UID的会话,保存三条连接及消息、文件连接的状态,同时挂在各连接的Connection上
+ */
+
+public class Session {
+    private final String UID;
+    private final Token token;
+    private final Object messageLock;
+    private final AtomicBoolean replaying;
+    private final ConcurrentLinkedQueue<FilePackage> fileQueue;
+    private final CopyOnWriteArrayList<SelectionKey> stripeKeys;
+    private volatile SelectionKey commandKey, messageKey, fileKey;
+    private volatile byte messageLinkState, fileLinkState;
+    private volatile BandwidthTable.UIDLimit uidLimit;
+
+    protected Session(String UID, Token token, SelectionKey commandKey) {
+        this.UID = UID;
+        this.token = token;
+        this.commandKey = commandKey;
+        messageLock = new Object();
+        replaying = new AtomicBoolean();
+        fileQueue = new ConcurrentLinkedQueue<>();
+        stripeKeys = new CopyOnWriteArrayList<>();
+        messageLinkState = LinkTable.LINK_1;
+        fileLinkState = LinkTable.LINK_1;
+    }
+
+    public String getUID() {
+        return UID;
+    }
+    public Token getToken() {
+        return token;
+    }
+    public SelectionKey getCommandKey() {
+        return commandKey;
+    }
+    public SelectionKey getMessageKey() {
+        return messageKey;
+    }
+    public SelectionKey getFileKey() {
+        return fileKey;
+    }
+    /**
+     * 文件连接之外的分段连接,用于分段并行发送大文件
+     */
+    public List<SelectionKey> getStripeKeys() {
+        return stripeKeys;
+    }
+    public byte getMessageLinkState() {
+        return messageLinkState;
+    }
+    public byte getFileLinkState() {
+        return fileLinkState;
+    }
+
+    void setCommandKey(SelectionKey commandKey) {
+        this.commandKey = commandKey;
+    }
+    void setMessageKey(SelectionKey messageKey) {
+        this.messageKey = messageKey;
+    }
+    void setFileKey(SelectionKey fileKey) {
+        this.fileKey = fileKey;
+    }
+    void setMessageLinkState(byte messageLinkState) {
+        this.messageLinkState = messageLinkState;
+    }
+    void setFileLinkState(byte fileLinkState) {
+        this.fileLinkState = fileLinkState;
+    }
+
+    /**
+     * 消息连接状态与离线存储交接时使用的锁
+     */
+    Object getMessageLock() {
+        return messageLock;
+    }
+    /**
+     * 同一会话同时只有一个线程回放离线消息,成功时返回true
+     */
+    public boolean beginReplay() {
+        return replaying.compareAndSet(false, true);
+    }
+    public void endReplay() {
+        replaying.set(false);
+    }
+    /**
+     * 文件连接就绪前暂存的文件
+     */
+    ConcurrentLinkedQueue<FilePackage> getFileQueue() {
+        return fileQueue;
+    }
+    /**
+     * 按UID的限速器,由BandwidthTable创建
+     */
+    BandwidthTable.UIDLimit getUIDLimit() {
+        return uidLimit;
+    }
+    void setUIDLimit(BandwidthTable.UIDLimit uidLimit) {
+        this.uidLimit = uidLimit;
+    }
+
+    @Override
+    public String toString() {
+        return "Session [UID=" + UID + ", messageLinkState=" + messageLinkState + ", fileLinkState=" + fileLinkState + "]";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+package net.util;
+
+/**
+ * 集群的会话目录,记录每个在线UID所在的节点,集群内各节点需共用同一目录
+ * 实现需保证线程安全;每次向非本节点UID发送时都会查询,远程实现应自行缓存
+ */
+
+public interface SessionDirectory {
+    /**
+     * UID在nodeId上登录,覆盖原有记录
+     */
+    void register(String UID, String nodeId);
+
+    /**
+     * 仅当UID当前记录的节点为nodeId时移除,避免覆盖已在其他节点重新登录的记录
+     */
+    void unregister(String UID, String nodeId);
+
+    /**
+     * @return UID所在的节点,不在线时返回null
+     */
+    String lookup(String UID);
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package net.util;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * 会话Token,32字节随机值,由各线程预先播种的SecureRandom生成
+ * 前8字节作为TokenTable的索引(非0),验证时对全部字节做常数时间比较
+ */
+
+public final class Token {
+    public static final int SIZE = 32;
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(() -> {
+        SecureRandom secureRandom = new SecureRandom();
+        // 在生成Token前完成播种,避免首次登录时阻塞
+        secureRandom.nextBytes(new byte[SIZE]);
+        return secureRandom;
+    });
+
+    private final byte[] value;
+    private final long index;
+
+    private Token(byte[] value) {
+        this.value = value;
+        this.index = index(value);
+    }
+
+    public static Token generate() {
+        SecureRandom secureRandom = random.get();
+        byte[] value = new byte[SIZE];
+        do {
+            secureRandom.nextBytes(value);
+        } while (index(value) == 0);
+        return new Token(value);
+    }
+
+    /**
+     * 取得字节形式Token的索引,长度不符时返回0
+     */
+    static long index(byte[] value) {
+        if (value == null || value.length != SIZE) {
+            return 0;
+        }
+        long index = 0;
+        for (int i = 0; i < 8; i++) {
+            index = index << 8 | (value[i] & 0xFF);
+        }
+        return index;
+    }
+
+    /**
+     * 常数时间比较,耗时与不相同的位置无关
+     */
+    public boolean matches(byte[] value) {
+        return value != null && MessageDigest.isEqual(this.value, value);
+    }
+
+    public long getIndex() {
+        return index;
+    }
+    /**
+     * 返回副本
+     */
+    public byte[] getBytes() {
+        return value.clone();
+    }
+
+    @Override
+    public String toString() {
+        // 只显示索引部分,不在日志中泄露完整Token
+        return HexFormat.of().toHexDigits(index) + "...";
+    }
+}
\ No newline at end of file
@@ -1,37 +1,47 @@
 package net.util;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶,以"理论到达时间"代替令牌数,只需对一个long做CAS
+ * 每取一个令牌理论到达时间推后一个间隔,超前当前时间不超过桶容量个间隔时即可取得令牌
+ */
+
 public class TokenBucket {
     private final long capacity; // 桶的容量
     private final long rate; // 令牌生成速率（每秒生成的令牌数量）
-    private long tokens; // 当前令牌数
-    private long lastTimestamp; // 上次更新时间
+    private final long interval; // 生成一个令牌所需的时间(ns)
+    private final long burst; // 满桶对应的时间(ns)
+    private final AtomicLong theoreticalTime; // 理论到达时间(ns)
 
     public TokenBucket(long capacity, long rate) {
         this.capacity = capacity;
         this.rate = rate;
-        this.tokens = capacity; // 初始化为满桶
-        this.lastTimestamp = System.currentTimeMillis();
+        interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        burst = interval * capacity;
+        theoreticalTime = new AtomicLong(System.nanoTime()); // 初始化为满桶
     }
 
-    public synchronized boolean acquire() {
-        long now = System.currentTimeMillis();
-        // 计算时间差
-        long elapsedTime = now - lastTimestamp;
-        // 计算生成的令牌数量
-        long generatedTokens = elapsedTime * rate / 1000;
-        // 更新桶中令牌数量
-        if (generatedTokens > 0) {
-            tokens = Math.min(capacity, tokens + generatedTokens);
-            lastTimestamp = now;
-        }
-
-        // 如果有令牌可用，获取一个令牌
-        if (tokens > 0) {
-            tokens--;
-            return true; // 获取令牌成功
+    public boolean acquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long time = theoreticalTime.get();
+            // 桶已满时从当前时间起算,多余的令牌不累计
+            long nextTime = Math.max(time, now) + interval;
+            if (nextTime - now > burst) {
+                return false; // 获取令牌失败
+            }
+            if (theoreticalTime.compareAndSet(time, nextTime)) {
+                return true; // 获取令牌成功
+            }
         }
+    }
 
-        // 否则，返回失败
-        return false; // 获取令牌失败
+    public long getCapacity() {
+        return capacity;
+    }
+    public long getRate() {
+        return rate;
     }
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package net.util;
+
+/**
+ * 以Token索引(long)为键的会话表,分段加锁的开放寻址表,查找时不装箱、不分配对象
+ * 命中索引后再对完整Token做常数时间比较
+ */
+
+public class TokenTable {
+    private static final int STRIPE_COUNT = 16;
+    private final Stripe[] stripes;
+
+    public TokenTable() {
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * 索引已被其他会话占用时返回false,调用方应重新生成Token
+     */
+    public boolean putIfAbsent(Token token, Session session) {
+        long index = token.getIndex();
+        Stripe stripe = stripe(index);
+        synchronized (stripe) {
+            Session old = stripe.get(index);
+            if (old != null) {
+                return old == session;
+            }
+            stripe.put(index, session);
+            return true;
+        }
+    }
+    /**
+     * 验证字节形式的Token,不匹配时返回null
+     */
+    public Session get(byte[] token) {
+        long index = Token.index(token);
+        if (index == 0) {
+            return null;
+        }
+        Session session;
+        Stripe stripe = stripe(index);
+        synchronized (stripe) {
+            session = stripe.get(index);
+        }
+        return session != null && session.getToken().matches(token) ? session : null;
+    }
+    public void remove(Token token, Session session) {
+        long index = token.getIndex();
+        Stripe stripe = stripe(index);
+        synchronized (stripe) {
+            if (stripe.get(index) == session) {
+                stripe.remove(index);
+            }
+        }
+    }
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(long index) {
+        return stripes[(int) (index >>> 60) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * 线性探测,键0表示空位,删除时向前移动后续元素,不留墓碑
+     */
+    private static class Stripe {
+        private long[] keys;
+        private Session[] values;
+        private int size;
+
+        private Stripe() {
+            keys = new long[64];
+            values = new Session[64];
+        }
+
+        private int slot(long index, int mask) {
+            return (int) (index ^ (index >>> 32)) & mask;
+        }
+        private Session get(long index) {
+            int mask = keys.length - 1;
+            for (int i = slot(index, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == index) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+        private void put(long index, Session session) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(index, mask);
+            while (keys[i] != 0 && keys[i] != index) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            }
+            keys[i] = index;
+            values[i] = session;
+        }
+        private void remove(long index) {
+            int mask = keys.length - 1;
+            int i = slot(index, mask);
+            while (keys[i] != index) {
+                if (keys[i] == 0) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            size--;
+            // 将探测链上可前移的元素移入空位
+            for (int next = (i + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+                int home = slot(keys[next], mask);
+                if (((next - home) & mask) >= ((next - i) & mask)) {
+                    keys[i] = keys[next];
+                    values[i] = values[next];
+                    i = next;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+        }
+        private void resize() {
+            long[] oldKeys = keys;
+            Session[] oldValues = values;
+            keys = new long[oldKeys.length << 1];
+            values = new Session[oldKeys.length << 1];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file